@@ -3,16 +3,47 @@ package client;
 import main.Main;
 
 import java.io.*;
-import java.math.BigInteger;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Connects to a server using the CS255-FA20 protocol.
  * <p>
  * Input from the user is received through the console using {@link Scanner} and {@link System#in}
  * Allows the user to send multiple messages to the server until they wish to exit.
+ * <p>
+ * Messages from the server are read by a separate thread, so changes pushed for watched
+ * folders are printed as they arrive instead of waiting for the next command.
+ * <p>
+ * A heartbeat thread pings the server every few seconds to keep track of the round trip
+ * time and clock offset, see {@link LatencyTracker}. If not a single byte comes back for a
+ * few heartbeats in a row the connection is closed, and the next command reconnects.
+ * The server answers a connection's requests in order, so a ping would wait behind a
+ * request anyway: while a response is awaited no pings are sent and no heartbeats are
+ * missed, and a long request that sends nothing until it is done keeps its connection.
+ * Set "-Dclient.heartbeatMillis=0" to turn the heartbeat off.
+ * <p>
+ * Commands can also be run from a script without any prompts, see {@link #runBatch(BufferedReader)}.
+ * <p>
+ * Downloads are never held in memory: the reader thread moves them from the socket straight
+ * into a temporary file next to the destination with {@link FileChannel#transferFrom}, and the
+ * file is renamed over the destination once complete. Set "-Dclient.fsyncDownloads=true" to
+ * have them forced to disk before the rename.
  */
 public class Client implements Runnable {
 
@@ -31,10 +62,17 @@ public class Client implements Runnable {
     // ## Content types
     // From Server Only
     private static final String UPDATE_ECHO_CONTENT_TYPE = "update/echo"; // String representing is echo is enabled.
+    private static final String UPDATE_SESSION_CONTENT_TYPE = "update/session"; // Echo mode of a resumed session.
+    private static final String REDIRECT_CONTENT_TYPE = "redirect/node"; // "host:port" of the node to go to.
     private static final String FILE_CONTENT_TYPE = "file/"; // Content to be saved to a file.
     private static final String NONE_CONTENT_TYPE = "None"; // No action necessary, no content either.
+    private static final String DELTA_CONTENT_TYPE = "sync/delta"; // Changes to apply to a downloaded file.
+    private static final String UPDATE_WATCH_CONTENT_TYPE = "update/watch"; // A change under a watched folder.
+    private static final String UPDATE_PONG_CONTENT_TYPE = "update/pong"; // Server time and the token of a ping.
+    private static final String LISTING_PAGE_CONTENT_TYPE = "listing/page"; // A page of a folder, with a cursor.
     // From Client Only
     private static final String COMMAND_CONTENT_TYPE = "console/command"; // String representing a command.
+    private static final String SIGNATURES_CONTENT_TYPE = "sync/signatures"; // Block checksums of a downloaded file.
     // Shared
     private static final String CONSOLE_TEXT_CONTENT_TYPE = "console/text"; // String to be printed to the console.
 
@@ -42,32 +80,83 @@ public class Client implements Runnable {
     private static final String HELP_COMMAND = "help"; // Gets the help page.
     private static final String TOGGLE_ECHO_COMMAND = "toggle echo"; // Turns echo on or off.
     private static final String LS_COMMAND = "ls"; // Lists all files in the current server folder location.
+    private static final String LIST_COMMAND = "list"; // Lists the current folder with sizes, a page at a time.
     private static final String CD_COMMAND = "cd "; // Changes location of the server folder location.
     private static final String DOWNLOAD_COMMAND = "download "; // Downloads a file from the server
+    private static final String SYNC_COMMAND = "sync "; // Downloads only the changes to a file we already have
+    private static final String RESUME_COMMAND = "resume "; // Restores the state of an earlier connection
+    private static final String WATCH_COMMAND = "watch"; // Gets told about changes under a folder
+    private static final String UNWATCH_COMMAND = "unwatch"; // Stops being told about changes under a folder
+    private static final String PING_COMMAND = "ping"; // Measures the round trip to the server
     // All the commands in a nicely packed little array :)
     private static final String[] ALL_COMMANDS = new String[]{
-            HELP_COMMAND, TOGGLE_ECHO_COMMAND, LS_COMMAND, CD_COMMAND, DOWNLOAD_COMMAND
+            HELP_COMMAND, TOGGLE_ECHO_COMMAND, LS_COMMAND, LIST_COMMAND, CD_COMMAND, DOWNLOAD_COMMAND, SYNC_COMMAND,
+            WATCH_COMMAND, UNWATCH_COMMAND, PING_COMMAND
     };
 
+    // Pings sent by the heartbeat have tokens starting with this, their pongs aren't printed
+    private static final String HEARTBEAT_TOKEN = "h";
+    private static final String USER_PING_TOKEN = "u";
+    private static final long HEARTBEAT_MILLIS = Long.getLong("client.heartbeatMillis", 5000);
+    private static final int MISSED_HEARTBEATS = 3; // Heartbeats without any answer before the connection is closed
+
+    // Downloads are moved to their file in pieces this big, so the heartbeat sees them making progress
+    private static final long DOWNLOAD_PIECE_BYTES = 256 * 1024;
+
+    // Commands a script may have sent before the response of the first one is read
+    private static final int PIPELINE_DEPTH = Integer.getInteger("client.pipelineDepth", 32);
+
+    // Force downloads to disk before they replace the destination, so a crash can't leave it empty
+    private static final boolean FSYNC_DOWNLOADS = Boolean.getBoolean("client.fsyncDownloads");
+
     // Status codes
     private static final int OK = 200;
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int NOT_MODIFIED = 304;
+    private static final int TEMPORARY_REDIRECT = 307;
     private static final int BAD_REQUEST = 400;
 
+    // The greeting ends with the session token on a line starting with this
+    private static final String SESSION_LINE = "\nSession: ";
+
+    // Put in the incoming queue by the reader thread when the connection is lost
+    private static final Message CONNECTION_LOST = new Message(0, "", "", new byte[0]);
+
     // Socket parts
-    private final String host; // The server IP address.
-    private final int port; // The server port to connect to.
-    private Socket socket; // The connection to the server.
+    private String host; // The server IP address, changes when redirected to another node.
+    private int port; // The server port to connect to, changes when redirected to another node.
+    private volatile Socket socket; // The connection to the server.
     private InputStream in; // data stream coming from server.
-    private OutputStream out; // data stream going to server.
+    private volatile OutputStream out; // data stream going to server.
+    private BlockingQueue<Message> incoming; // Messages read by the reader thread, except pushed ones.
+    private final Object writeLock = new Object(); // The heartbeat writes to the connection too.
+    private final LatencyTracker latencyTracker = new LatencyTracker();
+    private Thread heartbeat;
+    private volatile int awaitedResponses = 0; // Requests sent whose final response hasn't arrived, the heartbeat waits them out.
+    private boolean batch = false; // No prompts while running a script.
 
     // Location in server
     private String location; // Follows linux model (kind of): e.x. "users/alice/downloads"
 
+    // True while moving to another node, so a second redirect isn't followed
+    private boolean redirecting = false;
+
+    // Token to restore the location and echo mode after reconnecting, from the greeting
+    private String sessionToken = null;
+
     // In echo mode
     private boolean echo = true; // If true, most input typed in the console and sent to the server will be echoed back.
 
     // Name of file being downloaded
     private String fileName = null; // The server does not send the name of the file.
+    private boolean downloadStarted = false; // True once part of a streamed download was saved.
+    private ByteArrayOutputStream delta = new ByteArrayOutputStream(); // Parts of a sync received so far.
+
+    // Cursor of the next page of the last "list", null once the last page was received
+    private String listCursor = null;
+
+    // Hashes of the files already downloaded, so unchanged files aren't downloaded again
+    private final FileHashCache fileHashCache = new FileHashCache();
 
     /**
      * Creates a Client object to connect to a server.
@@ -96,11 +185,14 @@ public class Client implements Runnable {
         }
 
         // Handle the greeting message
-        if (!this.handleGreetingMessageAndSetLocation()) {
+        if (!this.handleGreetingMessageAndSetLocation(true)) {
             this.close();
             return;
         }
 
+        // Keep measuring the connection in the background
+        this.startHeartbeat();
+
         // Send and receive messages until finished
         this.connectionLoop();
 
@@ -108,6 +200,121 @@ public class Client implements Runnable {
         this.close();
     }
 
+    /**
+     * A command of a script that was sent, and what is needed to handle its response.
+     */
+    private static class PendingCommand {
+        final String input;
+        final String fileName;
+
+        PendingCommand(String input, String fileName) {
+            this.input = input;
+            this.fileName = fileName;
+        }
+    }
+
+    /**
+     * The download a reader thread is writing to a temporary file.
+     */
+    private static class Download {
+        Path path;
+        FileChannel file;
+        long bytes = 0;
+    }
+
+    /**
+     * Runs the commands of a script without prompting, then prints the throughput.
+     * <p>
+     * Commands are pipelined: up to "client.pipelineDepth" of them are sent before the
+     * response of the first one is read, so the server never sits idle waiting on a round
+     * trip. A "cd" waits for its own response before anything else is sent, since it may
+     * move the client to another node. Blank lines and lines starting with "#" are skipped,
+     * "exit" ends the script early.
+     *
+     * @param script the commands, one per line.
+     * @return true if every command was answered without a bad request.
+     */
+    public boolean runBatch(BufferedReader script) {
+        this.batch = true;
+        if (!this.initConnection() || !this.handleGreetingMessageAndSetLocation(false)) {
+            this.close();
+            return false;
+        }
+        this.startHeartbeat();
+
+        ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+        boolean echo = this.echo; // The echo mode the server will be in once everything sent is handled
+        boolean moreCommands = true;
+        boolean waitingOnCd = false;
+        int commands = 0;
+        int failed = 0;
+        long receivedBytes = 0;
+        long started = System.nanoTime();
+        try {
+            while (moreCommands || !pending.isEmpty()) {
+                // Fill the pipeline
+                while (moreCommands && !waitingOnCd && pending.size() < PIPELINE_DEPTH) {
+                    String line = script.readLine();
+                    if (line == null || line.trim().equals("exit")) {
+                        moreCommands = false;
+                        break;
+                    }
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    this.echo = echo;
+                    Message message = this.createMessageFromInput(line);
+                    if (line.equals(TOGGLE_ECHO_COMMAND)) {
+                        echo = !echo;
+                    }
+                    this.writeMessage(message, false);
+                    pending.add(new PendingCommand(line, this.fileName));
+                    this.fileName = null;
+                    commands++;
+                    // "list more" needs the cursor in the response to the last "list"
+                    waitingOnCd = line.startsWith(CD_COMMAND) || line.startsWith(LIST_COMMAND);
+                }
+                this.flushOut();
+                this.awaitedResponses = pending.size();
+
+                // Handle the oldest response, streamed parts first
+                PendingCommand command = pending.poll();
+                if (command == null) {
+                    continue;
+                }
+                this.fileName = command.fileName;
+                Message response = this.readIncoming();
+                while (response.statusCode == PARTIAL_CONTENT) {
+                    receivedBytes += response.contentLength;
+                    this.handleResponse(response);
+                    response = this.readIncoming();
+                }
+                receivedBytes += response.contentLength;
+                if (response.statusCode == BAD_REQUEST) {
+                    Main.println("[Client] Failed: " + command.input);
+                    failed++;
+                }
+                this.handleResponse(response);
+                if (pending.isEmpty()) {
+                    waitingOnCd = false;
+                    echo = this.echo; // A redirect or resume may have changed it
+                }
+            }
+        } catch (IOException e) {
+            Main.println("[Client] Lost the connection to the server, stopping the script. " + e.getMessage());
+            failed += pending.size() + 1;
+        } finally {
+            this.awaitedResponses = 0;
+        }
+
+        double seconds = (System.nanoTime() - started) / 1e9;
+        Main.println(String.format("[Client] Ran %d commands in %.2f s (%.1f commands/s), received %.2f MB (%.2f MB/s), %d failed.",
+                commands, seconds, commands / seconds, receivedBytes / 1e6, receivedBytes / 1e6 / seconds, failed));
+        this.close();
+        return failed == 0;
+    }
+
     /**
      * Opens a connection to the server and gets the {@link InputStream} and
      * {@link OutputStream} of the connection.
@@ -115,28 +322,160 @@ public class Client implements Runnable {
      * @return true if the connection and streams were established successfully, false otherwise.
      */
     private boolean initConnection() {
+        SocketChannel channel;
         try {
-            // Establish the connection
-            this.socket = new Socket(this.host, this.port);
+            // Establish the connection, through a channel so downloads can go straight to a file
+            channel = SocketChannel.open(new InetSocketAddress(this.host, this.port));
+            this.socket = channel.socket();
             // Get the data streams
             this.in = this.socket.getInputStream();
-            this.out = this.socket.getOutputStream();
-        } catch (IOException e) {
+            // Buffered so a message leaves in one segment instead of waiting on Nagle for each header field
+            this.out = new BufferedOutputStream(this.socket.getOutputStream());
+        } catch (IOException | UnresolvedAddressException e) {
             // There was a problem either making the connection or getting the data streams
             Main.println("[Client] Failed to start Socket and get the data streams.");
             return false;
         }
+
+        // Every connection gets its own reader and queue, so one that was lost can't mix in
+        InputStream in = this.in;
+        BlockingQueue<Message> incoming = new LinkedBlockingQueue<>();
+        this.incoming = incoming;
+        Thread reader = new Thread(() -> this.readLoop(in, channel, incoming), "client-reader");
+        reader.setDaemon(true);
+        reader.start();
         return true;
     }
 
+    /**
+     * Reads messages from the server until the connection is lost. Pushed changes are
+     * printed right away, everything else is queued for {@link #readIncoming()}.
+     *
+     * @param in       the stream of the connection.
+     * @param channel  the channel of the same connection, downloads are read from it.
+     * @param incoming where to queue the messages.
+     */
+    private void readLoop(InputStream in, SocketChannel channel, BlockingQueue<Message> incoming) {
+        ByteBuffer header = ByteBuffer.allocate(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES
+                + CONTENT_TYPE_LENGTH_BYTES + CONTENT_LENGTH_BYTES);
+        Download download = new Download();
+        try {
+            while (true) {
+                Message message = this.readMessage(in, channel, header, download);
+                if (message.contentType.equals(UPDATE_PONG_CONTENT_TYPE) && this.recordPong(message)) {
+                    continue; // Answer to a heartbeat, nobody is waiting for it
+                }
+                if (message.contentType.equals(UPDATE_WATCH_CONTENT_TYPE)) {
+                    Main.println("");
+                    Main.println("[Client] " + new String(message.content));
+                    if (!this.batch) {
+                        this.printInputPrompt();
+                    }
+                } else {
+                    incoming.add(message);
+                }
+            }
+        } catch (IOException e) {
+            this.discardDownload(download);
+            incoming.add(CONNECTION_LOST);
+        }
+    }
+
+    /**
+     * Adds the round trip of a pong to the {@link LatencyTracker}.
+     *
+     * @param pong the pong message.
+     * @return true if the pong answers a heartbeat, false if it answers the user.
+     */
+    private boolean recordPong(Message pong) {
+        if (pong.content.length <= Long.BYTES) {
+            return false;
+        }
+        ByteBuffer content = ByteBuffer.wrap(pong.content);
+        long serverMicros = content.getLong();
+        String token = new String(pong.content, Long.BYTES, pong.content.length - Long.BYTES);
+        try {
+            this.latencyTracker.record(Long.parseLong(token.substring(1)), serverMicros);
+        } catch (NumberFormatException e) {
+            return false; // Not one of ours
+        }
+        return token.startsWith(HEARTBEAT_TOKEN);
+    }
+
+    private void startHeartbeat() {
+        if (HEARTBEAT_MILLIS > 0) {
+            this.heartbeat = new Thread(this::heartbeatLoop, "client-heartbeat");
+            this.heartbeat.setDaemon(true);
+            this.heartbeat.start();
+        }
+    }
+
+    /**
+     * Pings the server every heartbeat, and closes the connection if the server
+     * hasn't sent anything for a few of them. Skipped while a response is awaited.
+     */
+    private void heartbeatLoop() {
+        long timeoutNanos = HEARTBEAT_MILLIS * 1_000_000 * MISSED_HEARTBEATS;
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Socket socket = this.socket;
+            if (socket.isClosed()) {
+                continue; // Reconnected by the next command
+            }
+            if (this.awaitedResponses > 0) {
+                continue; // The count starts over when the response arrives
+            }
+            if (!this.latencyTracker.isHealthy(timeoutNanos)) {
+                Main.println(String.format("[Client] No answer from the server for %d ms, closing the connection.",
+                        HEARTBEAT_MILLIS * MISSED_HEARTBEATS));
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Closed already
+                }
+                continue;
+            }
+            try {
+                this.writeMessage(this.createPingMessage(HEARTBEAT_TOKEN));
+            } catch (IOException e) {
+                // The reader thread notices the connection is gone
+            }
+        }
+    }
+
+    /**
+     * @param tokenPrefix tells heartbeats and user pings apart.
+     * @return a ping carrying the time it was created.
+     */
+    private Message createPingMessage(String tokenPrefix) {
+        return new Message(
+                OK,
+                this.location,
+                COMMAND_CONTENT_TYPE,
+                (PING_COMMAND + " " + tokenPrefix + System.nanoTime()).getBytes()
+        );
+    }
+
     /**
      * Gets the greeting message from the server and prints it. Also sets
      * the location the server says the client is at.
+     *
+     * @param print false to skip printing the greeting, ex. when reconnecting.
      */
-    private boolean handleGreetingMessageAndSetLocation() {
+    private boolean handleGreetingMessageAndSetLocation(boolean print) {
         // Get the server greeting message. We know the content will always be text that
         // can be printed to the console!
-        Message greetingMessage = readIncoming();
+        Message greetingMessage;
+        try {
+            greetingMessage = readIncoming();
+        } catch (IOException e) {
+            Main.println("[Client] Failed to get greeting message from server.");
+            return false;
+        }
 
         // If the server did not send OK, return early.
         if (greetingMessage.statusCode != OK) {
@@ -144,12 +483,23 @@ public class Client implements Runnable {
             return false;
         }
 
+        // Keep the session token for reconnecting, it's not part of the greeting text
+        String greeting = new String(greetingMessage.content);
+        int sessionLine = greeting.lastIndexOf(SESSION_LINE);
+        if (sessionLine >= 0) {
+            this.sessionToken = greeting.substring(sessionLine + SESSION_LINE.length()).trim();
+            greeting = greeting.substring(0, sessionLine);
+        }
+
         // Print the greeting.
-        Main.println("[Client] Server Greeting:");
-        Main.println(new String(greetingMessage.content));
+        if (print) {
+            Main.println("[Client] Server Greeting:");
+            Main.println(greeting);
+        }
 
-        // Set the location given to us in the greeting message!
+        // Set the location given to us in the greeting message! A new connection is always in echo mode.
         this.location = greetingMessage.location;
+        this.echo = true;
 
         // Everything went OK!
         return true;
@@ -183,8 +533,17 @@ public class Client implements Runnable {
             try {
                 response = sendMessage(message);
             } catch (IOException e) {
-                Main.println("[Client] Failed to send message to server.");
-                return;
+                // Reconnect and send it again, once
+                Main.println("[Client] Lost the connection to the server, reconnecting.");
+                try {
+                    if (!this.reconnect()) {
+                        return;
+                    }
+                    response = sendMessage(message);
+                } catch (IOException reconnectException) {
+                    Main.println("[Client] Failed to send message to server.");
+                    return;
+                }
             }
 
             // Handle the server's response
@@ -196,6 +555,85 @@ public class Client implements Runnable {
         }
     }
 
+    /**
+     * Opens a new connection and resumes the session of the old one, so the
+     * location and echo mode are the same as before the connection was lost.
+     *
+     * @return true if connected again, false otherwise.
+     * @throws IOException if the connection was lost again while resuming.
+     */
+    private boolean reconnect() throws IOException {
+        String oldToken = this.sessionToken;
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Already broken, nothing to do
+        }
+        if (!this.initConnection() || !this.handleGreetingMessageAndSetLocation(false)) {
+            return false;
+        }
+        if (oldToken != null) {
+            this.handleResponse(this.sendMessage(new Message(
+                    OK,
+                    this.location,
+                    COMMAND_CONTENT_TYPE,
+                    (RESUME_COMMAND + oldToken).getBytes()
+            )));
+        }
+        return true;
+    }
+
+    /**
+     * Connects to another node of the cluster and moves to the location there.
+     * <p>
+     * Sessions are kept by each node, so the echo mode is set again
+     * and the location is reached with a "cd" from the users folder.
+     *
+     * @param node     the "host:port" of the node.
+     * @param location the location to move to, ex. "users/bob/pictures".
+     */
+    private void followRedirect(String node, String location) {
+        // The nodes disagree on who owns the folder, don't bounce between them
+        if (this.redirecting) {
+            Main.println(String.format("[Client] Redirected again to %s, giving up.", node));
+            return;
+        }
+        Main.println(String.format("[Client] %s is on %s, connecting to it.", location, node));
+        boolean echo = this.echo;
+        int separator = node.lastIndexOf(':');
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            // Already broken, nothing to do
+        }
+        this.host = node.substring(0, separator);
+        this.port = Integer.parseInt(node.substring(separator + 1));
+        if (!this.initConnection() || !this.handleGreetingMessageAndSetLocation(false)) {
+            return;
+        }
+        this.redirecting = true;
+        try {
+            if (!echo) {
+                this.handleResponse(this.sendMessage(new Message(
+                        OK,
+                        this.location,
+                        COMMAND_CONTENT_TYPE,
+                        TOGGLE_ECHO_COMMAND.getBytes()
+                )));
+            }
+            this.handleResponse(this.sendMessage(new Message(
+                    OK,
+                    this.location,
+                    COMMAND_CONTENT_TYPE,
+                    (CD_COMMAND + location.substring(location.indexOf('/') + 1)).getBytes()
+            )));
+        } catch (IOException e) {
+            Main.println("[Client] Failed to move to " + location + " on " + node);
+        } finally {
+            this.redirecting = false;
+        }
+    }
+
     /**
      * Prints the input prompt to the console for the user.
      */
@@ -266,6 +704,23 @@ public class Client implements Runnable {
                         input.getBytes()
                 );
                 break;
+            // List the current location a page at a time, "list more" gets the next page of the last one
+            case LIST_COMMAND:
+                String list = LIST_COMMAND;
+                String cursor = commandVariable.trim();
+                if (cursor.equals("more")) {
+                    cursor = this.listCursor != null ? this.listCursor : "";
+                }
+                if (!cursor.isEmpty()) {
+                    list += " " + cursor;
+                }
+                message = new Message(
+                        OK,
+                        this.location,
+                        COMMAND_CONTENT_TYPE,
+                        list.getBytes()
+                );
+                break;
             // Change the current location in the server
             case CD_COMMAND:
                 message = new Message(
@@ -277,16 +732,46 @@ public class Client implements Runnable {
                 break;
             // Download a file from the server
             case DOWNLOAD_COMMAND:
-                // Get just the file name
-                this.fileName = commandVariable.substring(commandVariable.lastIndexOf("/"));
+                // Get just the file name, folders may end with a "/"
+                String path = commandVariable.replaceAll("/+$", "");
+                this.fileName = path.substring(path.lastIndexOf("/") + 1);
+
+                // Send the hash of our copy so the server can skip sending it if it didn't change
+                String request = DOWNLOAD_COMMAND + commandVariable;
+                String localHash = this.fileHashCache.getHash(new File(SAVE_FOLDER_LOCATION + this.fileName));
+                if (localHash != null) {
+                    request += "\n" + localHash;
+                }
 
                 message = new Message(
                         OK,
                         this.location,
                         COMMAND_CONTENT_TYPE,
-                        (DOWNLOAD_COMMAND + commandVariable).getBytes()
+                        request.getBytes()
                 );
                 break;
+            // Measure the round trip to the server
+            case PING_COMMAND:
+                message = this.createPingMessage(USER_PING_TOKEN);
+                // This command ignores the echo mode!
+                ignoreEcho = true;
+                break;
+            // Start or stop getting told about changes under a folder
+            case WATCH_COMMAND:
+            case UNWATCH_COMMAND:
+                message = new Message(
+                        OK,
+                        this.location,
+                        COMMAND_CONTENT_TYPE,
+                        (input + " " + commandVariable.trim()).getBytes()
+                );
+                break;
+            // Download only what changed in a file we already have
+            case SYNC_COMMAND:
+                if (!this.echo) {
+                    message = this.createSyncMessage(commandVariable);
+                }
+                break;
         }
 
         // A command that doesn't ignore echo was used while echo is enabled
@@ -315,6 +800,37 @@ public class Client implements Runnable {
         return message;
     }
 
+    /**
+     * Creates a message with the block signatures of our copy of a file.
+     * <p>
+     * If we don't have a copy yet, the whole file is downloaded instead.
+     *
+     * @param path the path of the file on the server.
+     * @return a message to send to the server.
+     */
+    private Message createSyncMessage(String path) {
+        this.fileName = path.substring(path.lastIndexOf("/") + 1);
+        File file = new File(SAVE_FOLDER_LOCATION + this.fileName);
+        if (file.isFile()) {
+            try {
+                return new Message(
+                        OK,
+                        this.location,
+                        SIGNATURES_CONTENT_TYPE,
+                        DeltaSync.createRequest(path, file)
+                );
+            } catch (IOException e) {
+                Main.println("[Client] Failed to read " + file.getName() + ", downloading all of it.");
+            }
+        }
+        return new Message(
+                OK,
+                this.location,
+                COMMAND_CONTENT_TYPE,
+                (DOWNLOAD_COMMAND + path).getBytes()
+        );
+    }
+
     /**
      * Separates a command and its variable if the input starts with the command.
      * <p>
@@ -329,8 +845,9 @@ public class Client implements Runnable {
         // Default return value if the input was not the given command
         String[] values = new String[]{input, null};
 
-        // Check if the input starts with the command
-        if (input.startsWith(command)) {
+        // Check if the input starts with the command as a whole word, so "pingu" isn't taken for "ping"
+        if (input.startsWith(command) && (command.endsWith(" ")
+                || input.length() == command.length() || input.charAt(command.length()) == ' ')) {
             values[0] = command; // command
             values[1] = input.substring(command.length()); // commandVariable
         }
@@ -351,6 +868,25 @@ public class Client implements Runnable {
         if (message.statusCode == BAD_REQUEST) {
             Main.println("[Client] Sent a bad request.");
             Main.println(new String(message.content));
+            if (this.downloadStarted) {
+                // The reader thread already deleted the parts
+                Main.println(String.format("[Client] Dropped the partial download of %s.", this.fileName));
+                this.fileName = null;
+                this.downloadStarted = false;
+            }
+            return;
+        }
+
+        // The folder is served by another node of the cluster
+        if (message.statusCode == TEMPORARY_REDIRECT) {
+            this.followRedirect(new String(message.content), message.location);
+            return;
+        }
+
+        // Our copy of the file is the same as the server's
+        if (message.statusCode == NOT_MODIFIED) {
+            Main.println(String.format("[Client] %s is already up to date.", this.fileName));
+            this.fileName = null;
             return;
         }
 
@@ -366,6 +902,11 @@ public class Client implements Runnable {
                 this.echo = variable.equals("true");
                 Main.println("Echo: " + this.echo);
                 break;
+            // Resumed an earlier session, the location was already updated
+            case UPDATE_SESSION_CONTENT_TYPE:
+                this.echo = new String(message.content).equals("true");
+                Main.println(String.format("[Client] Resumed session at %s, Echo: %s", this.location, this.echo));
+                break;
             // Text for console
             case CONSOLE_TEXT_CONTENT_TYPE:
                 String content = new String(message.content);
@@ -374,10 +915,38 @@ public class Client implements Runnable {
             // Nothing to do
             case NONE_CONTENT_TYPE:
                 break;
-            // File to save
+            // Answer to a ping, already measured by the reader thread
+            case UPDATE_PONG_CONTENT_TYPE:
+                Main.println("[Client] " + this.latencyTracker.report());
+                break;
+            // File to save, big downloads such as folders come in parts
             case FILE_CONTENT_TYPE:
-                this.saveFile(this.fileName, message.content);
-                this.fileName = null;
+                if (!this.downloadStarted) {
+                    // Folders don't have an extension, so use the one the server sent (ex. "zip")
+                    if (this.fileName.lastIndexOf('.') < 0) {
+                        this.fileName += "." + message.contentType.substring(FILE_CONTENT_TYPE.length());
+                    }
+                }
+                if (message.statusCode == PARTIAL_CONTENT) {
+                    this.downloadStarted = true; // Already written to the temporary file
+                } else {
+                    if (this.saveFile(this.fileName, message.contentFile)) {
+                        Main.println("[Client] Saved " + this.fileName);
+                    }
+                    this.fileName = null;
+                    this.downloadStarted = false;
+                }
+                break;
+            // Changes to our copy of a file, big ones come in parts
+            case DELTA_CONTENT_TYPE:
+                this.delta.write(message.content, 0, message.content.length);
+                if (message.statusCode != PARTIAL_CONTENT) {
+                    this.applyDelta();
+                }
+                break;
+            // A page of a folder
+            case LISTING_PAGE_CONTENT_TYPE:
+                this.printListingPage(message.content);
                 break;
             // Unknown content-type
             default:
@@ -385,6 +954,62 @@ public class Client implements Runnable {
         }
     }
 
+    /**
+     * Prints a page of a "list" and keeps its cursor for "list more".
+     * <p>
+     * Example output: "[File] todo.txt 1024 2020-11-02T18:03:11Z"
+     *
+     * @param page the page, see server.DirectoryPager for the format.
+     */
+    private void printListingPage(byte[] page) {
+        try {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(page));
+            int count = input.readInt();
+            byte[] cursor = new byte[input.readUnsignedShort()];
+            input.readFully(cursor);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < count; i++) {
+                byte type = input.readByte();
+                long size = input.readLong();
+                long lastModified = input.readLong();
+                byte[] name = new byte[input.readUnsignedShort()];
+                input.readFully(name);
+                sb.append(type == 1 ? "[Folder] " : type == 0 ? "[File] " : "[Other] ")
+                        .append(new String(name, StandardCharsets.UTF_8))
+                        .append(' ').append(size)
+                        .append(' ').append(Instant.ofEpochMilli(lastModified))
+                        .append('\n');
+            }
+            this.listCursor = cursor.length == 0 ? null : new String(cursor, StandardCharsets.UTF_8);
+            if (this.listCursor != null) {
+                sb.append("[Client] More entries, type \"list more\" for the next page.");
+            } else if (sb.length() > 0) {
+                sb.setLength(sb.length() - 1);
+            }
+            Main.println(sb.toString());
+        } catch (IOException e) {
+            Main.println("[Client] Received a malformed listing page.");
+            this.listCursor = null;
+        }
+    }
+
+    /**
+     * Applies the received delta to our copy of the file being synced.
+     */
+    private void applyDelta() {
+        File file = new File(SAVE_FOLDER_LOCATION + this.fileName);
+        try {
+            DeltaSync.Result result = DeltaSync.apply(file, this.delta.toByteArray());
+            Main.println(String.format("[Client] Synced %s, reused %d bytes and received %d bytes.",
+                    this.fileName, result.copiedBytes, result.dataBytes));
+        } catch (IOException e) {
+            Main.println(String.format("[Client] Failed to sync %s, download it again instead. %s",
+                    this.fileName, e.getMessage()));
+        }
+        this.fileName = null;
+        this.delta = new ByteArrayOutputStream();
+    }
+
     // Read and Send
 
     /**
@@ -394,6 +1019,40 @@ public class Client implements Runnable {
      * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
      */
     private Message sendMessage(Message message) throws IOException {
+        this.awaitedResponses = 1;
+        try {
+            this.writeMessage(message);
+
+            // Get the response from the server, handling any parts streamed before it
+            Message response = this.readIncoming();
+            while (response.statusCode == PARTIAL_CONTENT) {
+                this.handleResponse(response);
+                response = this.readIncoming();
+            }
+            return response;
+        } finally {
+            this.awaitedResponses = 0;
+        }
+    }
+
+    /**
+     * Writes a {@link Message} to the {@link Socket} without waiting for the response.
+     *
+     * @param message the Message to send.
+     * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
+     */
+    private void writeMessage(Message message) throws IOException {
+        this.writeMessage(message, true);
+    }
+
+    /**
+     * Writes a {@link Message} to the {@link Socket}, see {@link #writeMessage(Message)}.
+     *
+     * @param message the Message to send.
+     * @param flush   false to leave it in the buffer with the messages that follow it, see {@link #flushOut()}.
+     * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
+     */
+    private void writeMessage(Message message, boolean flush) throws IOException {
         // Data bytes
         byte[] statusCodeBytes = this.convertIntToBytes(message.statusCode, STATUS_CODE_BYTES);
         byte[] locationBytes = message.location.getBytes();
@@ -404,80 +1063,166 @@ public class Client implements Runnable {
         byte[] contentTypeLengthBytes = this.convertIntToBytes(contentTypeBytes.length, CONTENT_TYPE_LENGTH_BYTES);
         byte[] contentLengthBytes = this.convertIntToBytes(message.content.length, CONTENT_LENGTH_BYTES);
 
-        // Send headers
-        out.write(statusCodeBytes);
-        out.write(locationLengthBytes);
-        out.write(contentTypeLengthBytes);
-        out.write(contentLengthBytes);
-
-        // Send data
-        out.write(locationBytes);
-        out.write(contentTypeBytes);
-        out.write(message.content);
+        // The whole message goes out in one piece, the heartbeat can't get in between
+        synchronized (this.writeLock) {
+            // Send headers
+            out.write(statusCodeBytes);
+            out.write(locationLengthBytes);
+            out.write(contentTypeLengthBytes);
+            out.write(contentLengthBytes);
+
+            // Send data
+            out.write(locationBytes);
+            out.write(contentTypeBytes);
+            out.write(message.content);
+
+            // Force buffer to send payload
+            if (flush) {
+                out.flush();
+            }
+        }
+    }
 
-        // Force buffer to send payload
-        out.flush();
+    /**
+     * Sends the messages left in the buffer by {@link #writeMessage(Message, boolean)}.
+     *
+     * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
+     */
+    private void flushOut() throws IOException {
+        synchronized (this.writeLock) {
+            this.out.flush();
+        }
+    }
 
-        // Get the response from the server
-        return this.readIncoming();
+    /**
+     * Waits for the next message from the server that isn't a pushed change.
+     *
+     * @return a Message from the Socket.
+     * @throws IOException if the connection was lost.
+     */
+    private Message readIncoming() throws IOException {
+        Message message;
+        try {
+            message = this.incoming.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[readIncoming] Interrupted.", e);
+        }
+        if (message == CONNECTION_LOST) {
+            throw new IOException("[readIncoming] Connection lost.");
+        }
+        return message;
     }
 
     /**
      * Waits to receive data from the {@link Socket}
      * and parses it into a {@link server.Message} object once received.
      *
+     * @param in       the stream of the connection.
+     * @param channel  the channel of the same connection.
+     * @param header   the buffer the header is read into, reused for every message of the connection.
+     * @param download the download in progress on the connection.
      * @return a Message from the Socket.
+     * @throws IOException if the connection was lost.
      */
-    private Message readIncoming() {
-        // Read in the Header sizes
-        byte[] statusCodeBytes = this.readBytesIn(STATUS_CODE_BYTES);
-        byte[] locationLengthBytes = this.readBytesIn(LOCATION_LENGTH_BYTES);
-        byte[] contentTypeLengthBytes = this.readBytesIn(CONTENT_TYPE_LENGTH_BYTES);
-        byte[] contentLengthBytes = this.readBytesIn(CONTENT_LENGTH_BYTES);
+    private Message readMessage(InputStream in, SocketChannel channel, ByteBuffer header, Download download)
+            throws IOException {
+        // Read in the Header sizes, all four in one go
+        this.readBytesIn(in, header.array(), header.capacity());
 
         // Convert bytes to ints
-        int statusCode = this.convertBytesToInt(statusCodeBytes);
-        int locationLength = this.convertBytesToInt(locationLengthBytes);
-        int contentTypeLength = this.convertBytesToInt(contentTypeLengthBytes);
-        int contentLength = this.convertBytesToInt(contentLengthBytes);
+        int statusCode = header.getInt(0);
+        int locationLength = header.getInt(STATUS_CODE_BYTES);
+        int contentTypeLength = header.getInt(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES);
+        int contentLength = header.getInt(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES + CONTENT_TYPE_LENGTH_BYTES);
 
-        // Read in data
-        byte[] locationBytes = this.readBytesIn(locationLength);
-        byte[] contentTypeBytes = this.readBytesIn(contentTypeLength);
-        byte[] contentBytes = this.readBytesIn(contentLength);
+        // Read in data, except the content
+        byte[] locationBytes = this.readBytesIn(in, locationLength);
+        byte[] contentTypeBytes = this.readBytesIn(in, contentTypeLength);
 
-        // Convert bytes to Strings, except data (which may be a file)
+        // Convert bytes to Strings
         String location = new String(locationBytes);
         String contentType = new String(contentTypeBytes);
 
+        // A download that fails part way ends with a bad request, the parts so far are of no use
+        if (statusCode == BAD_REQUEST) {
+            this.discardDownload(download);
+        }
+
+        // Downloads go to a file without passing through memory
+        if (contentType.startsWith(FILE_CONTENT_TYPE) && (statusCode == OK || statusCode == PARTIAL_CONTENT)) {
+            Path contentFile = this.receiveDownload(channel, download, contentLength, statusCode == PARTIAL_CONTENT);
+            return new Message(statusCode, location, contentType, contentFile, contentLength);
+        }
+
         // Create Message object
-        return new Message(statusCode, location, contentType, contentBytes);
+        return new Message(statusCode, location, contentType, this.readBytesIn(in, contentLength));
     }
 
-    // Utility
-
     /**
-     * Converts a byte array of size 4 into an int.
-     * <p>
-     * If the array is not of size 4 a {@link RuntimeException}
-     * will be thrown.
+     * Moves the content of a download message from the socket to the end of the download's temporary file.
      *
-     * @param bytes the byte array representing an int.
-     * @return the int represented by the given byte array.
+     * @param channel       the channel of the connection, the content is next on it.
+     * @param download      the download in progress, started if there is none.
+     * @param contentLength the number of content bytes.
+     * @param more          true if more parts of the download follow, the file is closed otherwise.
+     * @return the temporary file.
+     * @throws IOException if the connection was lost or the file could not be written.
      */
-    private int convertBytesToInt(byte[] bytes) {
-        // Must pass in array of length 4
-        if (bytes.length != 4) {
-            throw new RuntimeException("[convertBytesToInt] passed in byte array not of size 4.");
+    private Path receiveDownload(SocketChannel channel, Download download, int contentLength, boolean more)
+            throws IOException {
+        if (download.file == null) {
+            // Next to the destination, so the rename can't cross file systems
+            download.path = Paths.get(SAVE_FOLDER_LOCATION, ".download-" + System.nanoTime() + ".part");
+            download.file = FileChannel.open(download.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            download.bytes = 0;
         }
 
-        // Convert bytes to BigInteger
-        BigInteger bigInteger = new BigInteger(bytes);
+        long remaining = contentLength;
+        while (remaining > 0) {
+            // A blocking channel only comes back with nothing at the end of the stream
+            long transferred = download.file.transferFrom(channel, download.bytes, Math.min(remaining, DOWNLOAD_PIECE_BYTES));
+            if (transferred <= 0) {
+                throw new IOException("[receiveDownload] Missing bytes.");
+            }
+            this.latencyTracker.received();
+            download.bytes += transferred;
+            remaining -= transferred;
+        }
 
-        // Convert BigInteger to int
-        return bigInteger.intValue();
+        Path path = download.path;
+        if (!more) {
+            if (FSYNC_DOWNLOADS) {
+                download.file.force(true);
+            }
+            download.file.close();
+            download.file = null;
+            download.path = null;
+        }
+        return path;
     }
 
+    /**
+     * Closes and deletes the temporary file of a download that will never be completed.
+     *
+     * @param download the download in progress, if any.
+     */
+    private void discardDownload(Download download) {
+        if (download.file == null) {
+            return;
+        }
+        try {
+            download.file.close();
+            Files.deleteIfExists(download.path);
+        } catch (IOException e) {
+            Main.println("[Client] Failed to delete the partial download " + download.path);
+        }
+        download.file = null;
+        download.path = null;
+    }
+
+    // Utility
+
     /**
      * Converts an int into an array of bytes.
      *
@@ -491,15 +1236,13 @@ public class Client implements Runnable {
 
     /**
      * Reads in data from the {@link InputStream} of the given {@link Socket}.
-     * <p>
-     * If the InputStream can not be successfully retrieved from the Socket or
-     * there is an error while reading from the InputStream, an empty byte array
-     * will be returned and the error printed to the console.
      *
+     * @param in            the stream to read from.
      * @param amountOfBytes the number of bytes to read.
      * @return a byte array containing the data read in from the socket.
+     * @throws IOException if there was an error while reading, or the connection was closed.
      */
-    private byte[] readBytesIn(int amountOfBytes) {
+    private byte[] readBytesIn(InputStream in, int amountOfBytes) throws IOException {
         // Return empty array if no data needs to be read in.
         if (amountOfBytes <= 0) {
             return new byte[0];
@@ -507,62 +1250,79 @@ public class Client implements Runnable {
 
         // Create byte array
         byte[] bytesIn = new byte[amountOfBytes];
+        this.readBytesIn(in, bytesIn, amountOfBytes);
 
-        // Read from the InputStream
-        try {
-            // Read in the bytes to fill the array
-            int bytesReadIn = in.read(bytesIn);
+        // Return the bytes
+        return bytesIn;
+    }
 
-            if (bytesReadIn != amountOfBytes) {
-                throw new IOException("Missing bytes.");
+    /**
+     * Fills the start of an existing array from the {@link InputStream}.
+     *
+     * @param in            the stream to read from.
+     * @param bytesIn       the array to read into.
+     * @param amountOfBytes the number of bytes to read.
+     * @throws IOException if there was an error while reading, or the connection was closed.
+     */
+    private void readBytesIn(InputStream in, byte[] bytesIn, int amountOfBytes) throws IOException {
+        // Keep reading until the array is full, large messages arrive in pieces
+        int totalBytesReadIn = 0;
+        while (totalBytesReadIn < amountOfBytes) {
+            int bytesReadIn = in.read(bytesIn, totalBytesReadIn, amountOfBytes - totalBytesReadIn);
+            if (bytesReadIn < 0) {
+                throw new IOException("[readBytesIn] Missing bytes.");
             }
-        } catch (IOException e) {
-            System.err.println("[readBytesIn] Failed to read from Input Stream.");
-            e.printStackTrace();
-            return new byte[0];
+            // Any byte counts, a long response isn't a dead connection
+            this.latencyTracker.received();
+            totalBytesReadIn += bytesReadIn;
         }
-
-        // Return the bytes
-        return bytesIn;
     }
 
     /**
-     * Saves the byte array into a file.
+     * Moves a completed download over its destination.
      * <p>
-     * Will create the file at the static path set in the class.
+     * The rename is atomic, so the destination is always either the old file or the whole new one.
      *
-     * @param fileName the name of the file to save into.
-     * @param content  the data to save in the file.
+     * @param fileName    the name of the file to save into.
+     * @param contentFile the temporary file the download was written to.
+     * @return true if the file was saved.
      */
-    private void saveFile(String fileName, byte[] content) {
-        // Create the File object
+    private boolean saveFile(String fileName, Path contentFile) {
         File file = new File(SAVE_FOLDER_LOCATION + fileName);
-
-        // Create a FileOutputStream
-        FileOutputStream fileOutputStream;
         try {
-            fileOutputStream = new FileOutputStream(file);
-        } catch (FileNotFoundException e) {
-            Main.println("[Client] Failed to create output stream using file: " + file.getName());
-            e.printStackTrace();
-            return;
-        }
-
-        // Write the content to the file
-        try {
-            fileOutputStream.write(content);
+            Files.move(contentFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
         } catch (IOException e) {
-            Main.println("Failed to write to file with name: " + file.getName());
+            Main.println("[Client] Failed to save the file with name: " + file.getName());
             e.printStackTrace();
+            try {
+                Files.deleteIfExists(contentFile);
+            } catch (IOException deleteException) {
+                // Nothing else to do
+            }
+            return false;
         }
+    }
 
-        // Close the file
-        try {
-            fileOutputStream.flush();
-            fileOutputStream.close();
-        } catch (IOException e) {
-            Main.println("Failed to close the file with name: " + file.getName());
-            e.printStackTrace();
+    /**
+     * Usage: Client [host] [port] [script]
+     * <p>
+     * Without a script the commands are typed in the console. With one, the commands in
+     * the file are run by {@link #runBatch(BufferedReader)}, "-" reads them from stdin.
+     * ex. "Client localhost 8080 nightly-sync.txt"
+     */
+    public static void main(String[] args) throws IOException {
+        String host = args.length > 0 ? args[0] : "localhost";
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+        Client client = new Client(host, port);
+        if (args.length < 3) {
+            client.run();
+            return;
+        }
+        try (BufferedReader script = args[2].equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : new BufferedReader(new FileReader(args[2]))) {
+            System.exit(client.runBatch(script) ? 0 : 1);
         }
     }
 
@@ -573,6 +1333,9 @@ public class Client implements Runnable {
      */
     public void close() {
         Main.println("[Client] Closing connection.");
+        if (this.heartbeat != null) {
+            this.heartbeat.interrupt();
+        }
         try {
             this.socket.close();
         } catch (IOException e) {
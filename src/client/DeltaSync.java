@@ -0,0 +1,168 @@
+package client;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The client side of a delta sync (the rsync algorithm).
+ * <p>
+ * The client sends the checksums of every block of its copy of a file, and the server
+ * answers with a delta: which of those blocks to copy and the new bytes in between.
+ * The file is then rebuilt from the old copy and the delta without downloading it again.
+ */
+public class DeltaSync {
+
+    private static final byte COPY = 0;
+    private static final byte DATA = 1;
+    private static final byte END = 2;
+
+    private static final int MIN_BLOCK_SIZE = 512;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+    private static final int SHA_256_BYTES = 32;
+
+    /**
+     * What happened when a delta was applied.
+     */
+    public static class Result {
+        public final long copiedBytes;
+        public final long dataBytes;
+
+        Result(long copiedBytes, long dataBytes) {
+            this.copiedBytes = copiedBytes;
+            this.dataBytes = dataBytes;
+        }
+    }
+
+    /**
+     * Picks a block size of about the square root of the file size, like rsync.
+     *
+     * @param length the size of the file.
+     * @return the block size.
+     */
+    public static int chooseBlockSize(long length) {
+        int blockSize = (int) Math.sqrt(length);
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+    }
+
+    /**
+     * Creates the content of a sync request.
+     * <p>
+     * Format: [int pathLength][path][int blockSize][int blockCount] then for each
+     * whole block [int weak checksum][16 byte MD5].
+     *
+     * @param path the path of the file on the server, relative to the current location.
+     * @param file the local copy of the file.
+     * @return the request content.
+     * @throws IOException if the local copy could not be read.
+     */
+    public static byte[] createRequest(String path, File file) throws IOException {
+        int blockSize = chooseBlockSize(file.length());
+        int blockCount = (int) (file.length() / blockSize);
+        byte[] pathBytes = path.getBytes();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(12 + pathBytes.length + blockCount * 20);
+        DataOutputStream request = new DataOutputStream(bytes);
+        request.writeInt(pathBytes.length);
+        request.write(pathBytes);
+        request.writeInt(blockSize);
+        request.writeInt(blockCount);
+
+        MessageDigest md5 = digest("MD5");
+        byte[] block = new byte[blockSize];
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            for (int i = 0; i < blockCount; i++) {
+                input.readFully(block);
+                request.writeInt(weakChecksum(block));
+                request.write(md5.digest(block));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuilds a file from its old copy and a delta.
+     * <p>
+     * The new version is written next to the old one and checked against the hash the
+     * server sent before it replaces the old copy, so a bad delta never breaks the file.
+     *
+     * @param file  the local copy, replaced by the new version.
+     * @param delta the delta from the server.
+     * @return how many bytes were copied and how many were sent.
+     * @throws IOException if the delta is malformed or the result doesn't match the server's file.
+     */
+    public static Result apply(File file, byte[] delta) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(delta));
+        int blockSize = input.readInt();
+        long newLength = input.readLong();
+        byte[] expectedHash = new byte[SHA_256_BYTES];
+        input.readFully(expectedHash);
+
+        File tempFile = new File(file.getPath() + ".sync");
+        MessageDigest sha256 = digest("SHA-256");
+        long copiedBytes = 0;
+        long dataBytes = 0;
+        byte[] buffer = new byte[blockSize];
+
+        try (RandomAccessFile oldFile = new RandomAccessFile(file, "r");
+             OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            byte op;
+            while ((op = input.readByte()) != END) {
+                if (op == COPY) {
+                    long firstBlock = input.readInt();
+                    int blockCount = input.readInt();
+                    oldFile.seek(firstBlock * blockSize);
+                    for (int i = 0; i < blockCount; i++) {
+                        oldFile.readFully(buffer);
+                        output.write(buffer);
+                        sha256.update(buffer);
+                    }
+                    copiedBytes += (long) blockCount * blockSize;
+                } else if (op == DATA) {
+                    byte[] data = new byte[input.readInt()];
+                    input.readFully(data);
+                    output.write(data);
+                    sha256.update(data);
+                    dataBytes += data.length;
+                } else {
+                    throw new IOException("[DeltaSync] Unknown delta instruction: " + op);
+                }
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        if (copiedBytes + dataBytes != newLength || !Arrays.equals(sha256.digest(), expectedHash)) {
+            tempFile.delete();
+            throw new IOException("[DeltaSync] The rebuilt file does not match the server's file.");
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return new Result(copiedBytes, dataBytes);
+    }
+
+    /**
+     * The rsync weak checksum of a whole block, must match the server's rolling checksum.
+     */
+    private static int weakChecksum(byte[] block) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < block.length; i++) {
+            int x = block[i] & 0xff;
+            a += x;
+            b += (block.length - i) * x;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    private static MessageDigest digest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("[DeltaSync] " + algorithm + " is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Remembers the SHA-256 hash of downloaded files so they are only hashed again after they change.
+ * <p>
+ * The hash is sent with a download request so the server can answer with
+ * "not modified" instead of sending the same bytes again.
+ */
+public class FileHashCache {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final String hash;
+
+        Entry(long lastModified, long length, String hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * Gets the hash of a local file.
+     *
+     * @param file the local copy of a downloaded file.
+     * @return the hex encoded SHA-256 hash, or null if there is no readable local copy.
+     */
+    public String getHash(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        long lastModified = file.lastModified();
+        long length = file.length();
+        Entry entry = this.entries.get(file.getPath());
+        if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+            return entry.hash;
+        }
+
+        try {
+            String hash = hash(file);
+            this.entries.put(file.getPath(), new Entry(lastModified, length, hash));
+            return hash;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Computes the SHA-256 hash of a file, reading it in chunks.
+     *
+     * @param file the file to hash.
+     * @return the hex encoded hash.
+     * @throws IOException if the file could not be read.
+     */
+    private static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("[FileHashCache] SHA-256 is not available.", e);
+        }
+
+        byte[] buffer = new byte[READ_BUFFER_BYTES];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int bytesReadIn;
+            while ((bytesReadIn = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytesReadIn);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,101 @@
+package client;
+
+import java.time.Instant;
+
+/**
+ * Keeps the round trip times and clock offsets measured by the last pings.
+ * <p>
+ * Each ping carries the time it was sent, and the pong carries the server's clock.
+ * The round trip is measured with {@link System#nanoTime()}, so it's only the network and
+ * the server's queue, not the handling of other requests. The clock offset assumes the
+ * pong was stamped halfway through the round trip, and is taken from the sample with the
+ * shortest round trip in the window, since that one has the least room for error.
+ */
+public class LatencyTracker {
+
+    private static final int WINDOW = 32;
+
+    private final long[] roundTripNanos = new long[WINDOW];
+    private final long[] offsetMicros = new long[WINDOW];
+    private int count = 0;
+    private long samples = 0;
+    private long lastReceivedNanos = System.nanoTime();
+
+    /**
+     * Adds the measurement of a pong.
+     *
+     * @param sentNanos    the {@link System#nanoTime()} the ping was sent at.
+     * @param serverMicros the server time in the pong, in microseconds since the epoch.
+     */
+    public synchronized void record(long sentNanos, long serverMicros) {
+        long now = System.nanoTime();
+        long roundTrip = now - sentNanos;
+        Instant wallNow = Instant.now();
+        long clientMidMicros = wallNow.getEpochSecond() * 1_000_000 + wallNow.getNano() / 1_000 - roundTrip / 2_000;
+
+        int index = (int) (this.samples % WINDOW);
+        this.roundTripNanos[index] = roundTrip;
+        this.offsetMicros[index] = serverMicros - clientMidMicros;
+        this.count = Math.min(this.count + 1, WINDOW);
+        this.samples++;
+        this.lastReceivedNanos = now;
+    }
+
+    /**
+     * Notes that something arrived from the server, so a busy connection isn't mistaken for a dead one.
+     */
+    public synchronized void received() {
+        this.lastReceivedNanos = System.nanoTime();
+    }
+
+    /**
+     * @param timeoutNanos how long the server may go without sending anything.
+     * @return true if the server sent anything, pong or not, within the timeout.
+     */
+    public synchronized boolean isHealthy(long timeoutNanos) {
+        return System.nanoTime() - this.lastReceivedNanos <= timeoutNanos;
+    }
+
+    /**
+     * @return the round trip of the last pong in nanoseconds, or -1 if there was none yet.
+     */
+    public synchronized long getLastRoundTripNanos() {
+        return this.count == 0 ? -1 : this.roundTripNanos[(int) ((this.samples - 1) % WINDOW)];
+    }
+
+    /**
+     * @return how far the server's clock is ahead of ours in microseconds, 0 if there was no pong yet.
+     */
+    public synchronized long getOffsetMicros() {
+        if (this.count == 0) {
+            return 0;
+        }
+        int best = 0;
+        for (int i = 1; i < this.count; i++) {
+            if (this.roundTripNanos[i] < this.roundTripNanos[best]) {
+                best = i;
+            }
+        }
+        return this.offsetMicros[best];
+    }
+
+    /**
+     * @return the round trip and clock offset, ex. "rtt last 0.41 ms, min 0.30 ms, avg 0.52 ms, max 1.90 ms over 12 pings, clock offset +0.12 ms".
+     */
+    public synchronized String report() {
+        if (this.count == 0) {
+            return "No pongs yet.";
+        }
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        long total = 0;
+        for (int i = 0; i < this.count; i++) {
+            min = Math.min(min, this.roundTripNanos[i]);
+            max = Math.max(max, this.roundTripNanos[i]);
+            total += this.roundTripNanos[i];
+        }
+        return String.format("rtt last %.2f ms, min %.2f ms, avg %.2f ms, max %.2f ms over %d pings, clock offset %+.2f ms",
+                this.getLastRoundTripNanos() / 1e6, min / 1e6, total / (double) this.count / 1e6, max / 1e6,
+                this.count, this.getOffsetMicros() / 1e3);
+    }
+}
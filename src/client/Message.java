@@ -1,5 +1,7 @@
 package client;
 
+import java.nio.file.Path;
+
 /**
  * Represents a message following the defined protocol for the CS255 programming assignment.
  */
@@ -9,7 +11,11 @@ public class Message {
      * The status code for the message.
      *
      * 200 = OK
+     * 206 = Partial content, more messages for the same request follow
+     * 304 = Not modified, the client's copy of a downloaded file is up to date
+     * 307 = Temporary redirect, the location is served by the cluster node in the content
      * 400 = Bad request
+     * 503 = Service unavailable, the server is too busy to start a download, try again later
      */
     public final int statusCode;
 
@@ -24,8 +30,16 @@ public class Message {
      * Possible values are:
      * console/text -- a String to be printed to the console.
      * console/command -- a command for the server.
-     * file/<extension> -- a File to be saved.
+     * file/<extension> -- a File to be saved. Folders are sent as "file/zip" in parts.
      * None -- nothing to do.
+     * update/session -- the echo mode of a resumed session, the location is in the header.
+     * redirect/node -- the "host:port" of the cluster node to reconnect to.
+     * update/watch -- a change under a watched folder, pushed by the server at any time.
+     * update/pong -- the server time in microseconds as 8 bytes, then the token sent with "ping".
+     * sync/signatures -- the path and block checksums of the client's copy of a file.
+     * sync/delta -- the changes to apply to that copy, sent in parts.
+     * listing/page -- a page of a folder's entries with their type, size and modified time,
+     *                 and the cursor to ask for the next page with, empty on the last one.
      */
     public final String contentType;
 
@@ -33,9 +47,23 @@ public class Message {
      * The content of the message.
      *
      * May be an empty byte array of length 0.
+     * Empty for downloads, their content is in the content file.
      */
     public final byte[] content;
 
+    /**
+     * The temporary file the content of a download was written to, or null for any other message.
+     * <p>
+     * Every part of the same download goes to the same file, it is complete once the
+     * message that isn't Partial Content arrives.
+     */
+    public final Path contentFile;
+
+    /**
+     * The number of content bytes of the message, in the content or in the content file.
+     */
+    public final long contentLength;
+
     /**
      * A message to send to the server, or received from the server.
      *
@@ -49,5 +77,25 @@ public class Message {
         this.location = location;
         this.contentType = contentType;
         this.content = content;
+        this.contentFile = null;
+        this.contentLength = content.length;
+    }
+
+    /**
+     * A download received from the server, with the content written to a file.
+     *
+     * @param statusCode -- OK, or Partial Content if more of the download follows.
+     * @param location -- the location in the server.
+     * @param contentType -- the content type, "file/<extension>".
+     * @param contentFile -- the temporary file the content was written to.
+     * @param contentLength -- the number of content bytes in this message.
+     */
+    public Message(int statusCode, String location, String contentType, Path contentFile, long contentLength) {
+        this.statusCode = statusCode;
+        this.location = location;
+        this.contentType = contentType;
+        this.content = new byte[0];
+        this.contentFile = contentFile;
+        this.contentLength = contentLength;
     }
 }
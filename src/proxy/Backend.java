@@ -0,0 +1,97 @@
+package proxy;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A server behind the {@link Proxy} and the connections currently sent to it.
+ */
+public class Backend {
+
+    public final String host;
+    public final int port;
+
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder totalConnections = new LongAdder();
+    private final Set<ProxyConnection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean healthy = true;
+    private volatile boolean draining = false;
+    private int failedChecks = 0; // Only touched by the health checker
+
+    public Backend(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * @return true if new connections may be sent to this server.
+     */
+    public boolean isAvailable() {
+        return this.healthy && !this.draining;
+    }
+
+    void add(ProxyConnection connection) {
+        this.activeConnections.incrementAndGet();
+        this.totalConnections.increment();
+        this.connections.add(connection);
+    }
+
+    void remove(ProxyConnection connection) {
+        if (this.connections.remove(connection)) {
+            this.activeConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * Records the result of a health check.
+     *
+     * @param passed    true if the server answered the check.
+     * @param threshold the number of failed checks in a row before the server is unhealthy.
+     * @return true if the health of the server changed.
+     */
+    boolean recordCheck(boolean passed, int threshold) {
+        boolean wasHealthy = this.healthy;
+        this.failedChecks = passed ? 0 : this.failedChecks + 1;
+        this.healthy = passed || (wasHealthy && this.failedChecks < threshold);
+        return wasHealthy != this.healthy;
+    }
+
+    /**
+     * Marks the server unhealthy right away, ex. when a connection to it was refused.
+     * It gets new connections again after it passes a health check.
+     */
+    void markDown() {
+        this.healthy = false;
+    }
+
+    void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    Set<ProxyConnection> getConnections() {
+        return this.connections;
+    }
+
+    public int getActiveConnections() {
+        return this.activeConnections.get();
+    }
+
+    public long getTotalConnections() {
+        return this.totalConnections.sum();
+    }
+
+    public boolean isHealthy() {
+        return this.healthy;
+    }
+
+    public boolean isDraining() {
+        return this.draining;
+    }
+
+    @Override
+    public String toString() {
+        return this.host + ":" + this.port;
+    }
+}
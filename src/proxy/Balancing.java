@@ -0,0 +1,62 @@
+package proxy;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How the {@link Proxy} picks a server for a new connection.
+ */
+public enum Balancing {
+
+    /**
+     * The server with the fewest open connections, ties go to the first one listed.
+     */
+    LEAST_CONNECTIONS {
+        @Override
+        Backend pick(List<Backend> candidates) {
+            Backend best = null;
+            for (Backend backend : candidates) {
+                if (best == null || backend.getActiveConnections() < best.getActiveConnections()) {
+                    best = backend;
+                }
+            }
+            return best;
+        }
+    },
+
+    /**
+     * The less loaded of two servers picked at random.
+     * <p>
+     * Nearly as even as least connections, but a burst of new connections doesn't
+     * all pile onto the same server before its count goes up.
+     */
+    POWER_OF_TWO_CHOICES {
+        @Override
+        Backend pick(List<Backend> candidates) {
+            if (candidates.isEmpty()) {
+                return null;
+            }
+            if (candidates.size() == 1) {
+                return candidates.get(0);
+            }
+            // Two different servers
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(candidates.size());
+            int second = random.nextInt(candidates.size() - 1);
+            if (second >= first) {
+                second++;
+            }
+            Backend a = candidates.get(first);
+            Backend b = candidates.get(second);
+            return b.getActiveConnections() < a.getActiveConnections() ? b : a;
+        }
+    };
+
+    /**
+     * Picks a server.
+     *
+     * @param candidates the servers that can take new connections.
+     * @return the server, or null if there are no candidates.
+     */
+    abstract Backend pick(List<Backend> candidates);
+}
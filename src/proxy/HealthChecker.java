@@ -0,0 +1,116 @@
+package proxy;
+
+import server.AsyncLogger;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks every server on a fixed schedule by connecting, reading the greeting and
+ * sending "help", which every server answers even in echo mode.
+ * <p>
+ * A server that fails a few checks in a row stops getting new connections until
+ * it passes one again.
+ */
+public class HealthChecker {
+
+    private static final int OK = 200;
+    private static final String COMMAND_CONTENT_TYPE = "console/command";
+    private static final String HELP_COMMAND = "help";
+
+    private final List<Backend> backends;
+    private final ProxyConfig config;
+    private final AsyncLogger logger;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "health-checker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public HealthChecker(List<Backend> backends, ProxyConfig config, AsyncLogger logger) {
+        this.backends = backends;
+        this.config = config;
+        this.logger = logger;
+    }
+
+    public void start() {
+        this.scheduler.scheduleWithFixedDelay(this::checkAll, 0, this.config.getHealthCheckMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void checkAll() {
+        for (Backend backend : this.backends) {
+            boolean passed = this.check(backend);
+            if (backend.recordCheck(passed, this.config.getUnhealthyThreshold())) {
+                this.logger.info(0, String.format("%s is now %s", backend, backend.isHealthy() ? "healthy" : "unhealthy"));
+            }
+        }
+    }
+
+    /**
+     * Runs one health check.
+     *
+     * @param backend the server to check.
+     * @return true if the server answered "help" with OK in time.
+     */
+    private boolean check(Backend backend) {
+        int timeout = this.config.getHealthCheckTimeoutMillis();
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(backend.host, backend.port), timeout);
+            socket.setSoTimeout(timeout);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            // Greeting
+            if (this.readStatus(in) != OK) {
+                return false;
+            }
+
+            byte[] contentType = COMMAND_CONTENT_TYPE.getBytes();
+            byte[] content = HELP_COMMAND.getBytes();
+            out.writeInt(OK);
+            out.writeInt(0);
+            out.writeInt(contentType.length);
+            out.writeInt(content.length);
+            out.write(contentType);
+            out.write(content);
+            out.flush();
+            return this.readStatus(in) == OK;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads a whole message and throws everything but the status code away.
+     */
+    private int readStatus(DataInputStream in) throws IOException {
+        int statusCode = in.readInt();
+        int locationLength = in.readInt();
+        int contentTypeLength = in.readInt();
+        int contentLength = in.readInt();
+        if (locationLength < 0 || contentTypeLength < 0 || contentLength < 0) {
+            throw new IOException("[readStatus] Invalid message header.");
+        }
+        long remaining = (long) locationLength + contentTypeLength + contentLength;
+        while (remaining > 0) {
+            int skipped = in.skipBytes((int) Math.min(remaining, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                in.readByte(); // Throws at the end of the stream
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return statusCode;
+    }
+
+    public void close() {
+        this.scheduler.shutdownNow();
+    }
+}
@@ -0,0 +1,338 @@
+package proxy;
+
+import server.AsyncLogger;
+import server.Metrics;
+import server.Server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accepts client connections and passes each one through to one of several servers.
+ * <p>
+ * New connections go to a healthy server picked by the configured {@link Balancing}.
+ * A server can be drained: it gets no new connections and its connections are closed
+ * once they have no request in flight, so clients reconnect through the proxy to
+ * another server.
+ * <p>
+ * Usage: Proxy [port] [serverPort...]
+ * <p>
+ * With "-Dproxy.localServers=N" it also starts N servers on free ports in the same
+ * process, to try scaling out on a single machine. Type "status", "drain port" or
+ * "undrain port" in the console while it runs.
+ */
+public class Proxy implements Runnable {
+
+    private static final int SERVICE_UNAVAILABLE = 503;
+    private static final String CONSOLE_TEXT_CONTENT_TYPE = "console/text";
+
+    private final ServerSocket serverSocket;
+    private final List<Backend> backends = new CopyOnWriteArrayList<>();
+    private final ProxyConfig config;
+    private final Metrics metrics = new Metrics();
+    private final AsyncLogger logger;
+    private final HealthChecker healthChecker;
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder rejectedConnections = new LongAdder();
+    private final ExecutorService connectionPool = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Must call {@link #run()} to start accepting connections.
+     *
+     * @param port     the port to listen on, 0 for any free port.
+     * @param backends the servers to pass connections to.
+     * @param config   the proxy settings.
+     * @throws IOException if the port could not be bound.
+     */
+    public Proxy(int port, List<Backend> backends, ProxyConfig config) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.config = config;
+        this.logger = new AsyncLogger(8192, config.getLogFile(), "Proxy");
+        this.healthChecker = new HealthChecker(this.backends, config, this.logger);
+        this.metrics.register("connections.accepted", this.acceptedConnections::sum);
+        this.metrics.register("connections.rejected", this.rejectedConnections::sum);
+        for (Backend backend : backends) {
+            this.addBackend(backend);
+        }
+    }
+
+    /**
+     * Starts passing new connections to a server.
+     *
+     * @param backend the server.
+     */
+    public void addBackend(Backend backend) {
+        this.backends.add(backend);
+        String name = "backend." + backend.port;
+        this.metrics.register(name + ".active", backend::getActiveConnections);
+        this.metrics.register(name + ".total", backend::getTotalConnections);
+        this.metrics.register(name + ".healthy", () -> backend.isHealthy() ? 1 : 0);
+        this.metrics.register(name + ".draining", () -> backend.isDraining() ? 1 : 0);
+    }
+
+    @Override
+    public void run() {
+        this.healthChecker.start();
+        this.logger.info(0, String.format("Listening on port %d, %s over %s",
+                this.getPort(), this.config.getBalancing(), this.backends));
+        try {
+            while (true) {
+                Socket clientSocket = this.serverSocket.accept();
+                this.acceptedConnections.increment();
+                this.connectionPool.execute(() -> this.connect(clientSocket));
+            }
+        } catch (IOException e) {
+            if (!this.serverSocket.isClosed()) {
+                this.logger.error(0, "Stopped accepting connections.", e);
+            }
+        }
+    }
+
+    /**
+     * Connects a client to a server and passes messages until either side closes.
+     * <p>
+     * If the picked server can't be reached it is marked down and another one is
+     * picked. If none can be reached the client gets a 503 message.
+     *
+     * @param clientSocket the connection from the client.
+     */
+    private void connect(Socket clientSocket) {
+        for (int attempt = 0; attempt < this.backends.size(); attempt++) {
+            Backend backend = this.pick();
+            if (backend == null) {
+                break;
+            }
+            Socket serverSocket = new Socket();
+            try {
+                serverSocket.connect(new InetSocketAddress(backend.host, backend.port), this.config.getConnectTimeoutMillis());
+            } catch (IOException e) {
+                this.logger.info(clientSocket.getPort(), "Could not connect to " + backend + ", trying another server.");
+                backend.markDown();
+                this.closeQuietly(serverSocket);
+                continue;
+            }
+            new ProxyConnection(clientSocket, serverSocket, backend, this.config, this.logger, this.connectionPool).run();
+            return;
+        }
+
+        this.rejectedConnections.increment();
+        this.rejectConnection(clientSocket);
+    }
+
+    /**
+     * @return a server that can take a new connection, or null if there is none.
+     */
+    private Backend pick() {
+        List<Backend> candidates = new ArrayList<>(this.backends.size());
+        for (Backend backend : this.backends) {
+            if (backend.isAvailable()) {
+                candidates.add(backend);
+            }
+        }
+        return this.config.getBalancing().pick(candidates);
+    }
+
+    /**
+     * Tells the client no server is available in place of the greeting, then closes the connection.
+     *
+     * @param clientSocket the connection from the client.
+     */
+    private void rejectConnection(Socket clientSocket) {
+        this.logger.info(clientSocket.getPort(), "No server available.");
+        try {
+            byte[] contentType = CONSOLE_TEXT_CONTENT_TYPE.getBytes();
+            byte[] content = "No server is available, try again later.".getBytes();
+            OutputStream out = clientSocket.getOutputStream();
+            out.write(ByteBuffer.allocate(16)
+                    .putInt(SERVICE_UNAVAILABLE)
+                    .putInt(0)
+                    .putInt(contentType.length)
+                    .putInt(content.length)
+                    .array());
+            out.write(contentType);
+            out.write(content);
+            out.flush();
+        } catch (IOException e) {
+            // The client is gone already
+        }
+        this.closeQuietly(clientSocket);
+    }
+
+    /**
+     * Stops sending new connections to a server and closes its connections as they go idle.
+     * <p>
+     * Waits up to the drain timeout for the connections to finish, then closes the rest.
+     *
+     * @param port the port of the server.
+     * @return true if all connections finished in time, false if some were cut off or there is no such server.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean drain(int port) throws InterruptedException {
+        Backend backend = this.findBackend(port);
+        if (backend == null) {
+            return false;
+        }
+        backend.setDraining(true);
+        this.logger.info(0, String.format("Draining %s with %d connections", backend, backend.getActiveConnections()));
+        for (ProxyConnection connection : backend.getConnections()) {
+            connection.drain();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.config.getDrainTimeoutMillis());
+        while (backend.getActiveConnections() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        int remaining = backend.getActiveConnections();
+        for (ProxyConnection connection : backend.getConnections()) {
+            connection.close();
+        }
+        this.logger.info(0, String.format("Drained %s, closed %d busy connections", backend, remaining));
+        return remaining == 0;
+    }
+
+    /**
+     * Lets a drained server get new connections again.
+     *
+     * @param port the port of the server.
+     * @return true if the server was found.
+     */
+    public boolean undrain(int port) {
+        Backend backend = this.findBackend(port);
+        if (backend == null) {
+            return false;
+        }
+        backend.setDraining(false);
+        this.logger.info(0, "Undrained " + backend);
+        return true;
+    }
+
+    private Backend findBackend(int port) {
+        for (Backend backend : this.backends) {
+            if (backend.port == port) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param parts a console command split into words.
+     * @return the port given after the command, or -1 if it is missing or not a port.
+     */
+    private static int parsePort(String[] parts) {
+        if (parts.length != 2) {
+            return -1;
+        }
+        try {
+            int port = Integer.parseInt(parts[1]);
+            return port > 0 && port <= 65535 ? port : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing else to do
+        }
+    }
+
+    public void close() throws IOException {
+        this.serverSocket.close();
+        this.healthChecker.close();
+        for (Backend backend : this.backends) {
+            for (ProxyConnection connection : backend.getConnections()) {
+                connection.close();
+            }
+        }
+        this.connectionPool.shutdown();
+        this.logger.close();
+    }
+
+    public int getPort() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        List<Backend> backends = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            backends.add(new Backend("localhost", Integer.parseInt(args[i])));
+        }
+
+        // Servers in this process, each on a free port
+        List<Server> localServers = new ArrayList<>();
+        for (int i = 0; i < Integer.getInteger("proxy.localServers", 0); i++) {
+            Server server = new Server(0, new File("src/users"));
+            Thread serverThread = new Thread(server, "server-" + server.getPort());
+            serverThread.setDaemon(true);
+            serverThread.start();
+            localServers.add(server);
+            backends.add(new Backend("localhost", server.getPort()));
+        }
+
+        Proxy proxy = new Proxy(port, backends, ProxyConfig.fromSystemProperties());
+        Thread proxyThread = new Thread(proxy, "proxy");
+        proxyThread.setDaemon(true);
+        proxyThread.start();
+
+        Scanner scanner = new Scanner(System.in);
+        while (scanner.hasNextLine()) {
+            String[] parts = scanner.nextLine().trim().split("\\s+");
+            switch (parts[0]) {
+                case "status":
+                    System.out.println(proxy.getMetrics().snapshot());
+                    break;
+                case "drain": {
+                    int serverPort = parsePort(parts);
+                    if (serverPort < 0) {
+                        System.out.println("Usage: drain <port>");
+                    } else if (proxy.findBackend(serverPort) == null) {
+                        System.out.println("Unknown server.");
+                    } else {
+                        System.out.println(proxy.drain(serverPort) ? "Drained." : "Drained, some connections were cut off.");
+                    }
+                    break;
+                }
+                case "undrain": {
+                    int serverPort = parsePort(parts);
+                    if (serverPort < 0) {
+                        System.out.println("Usage: undrain <port>");
+                    } else {
+                        System.out.println(proxy.undrain(serverPort) ? "Undrained." : "Unknown server.");
+                    }
+                    break;
+                }
+                case "exit":
+                    proxy.close();
+                    for (Server server : localServers) {
+                        server.close();
+                    }
+                    return;
+                default:
+                    System.out.println("Commands: status, drain <port>, undrain <port>, exit");
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package proxy;
+
+/**
+ * Tunable settings for a {@link Proxy}.
+ * <p>
+ * Every setting has a sane default and can be overridden with a system property,
+ * ex. "-Dproxy.balancing=LEAST_CONNECTIONS".
+ */
+public class ProxyConfig {
+
+    private Balancing balancing = Balancing.POWER_OF_TWO_CHOICES;
+    private long healthCheckMillis = 1000;
+    private int healthCheckTimeoutMillis = 1000;
+    private int unhealthyThreshold = 2;
+    private int connectTimeoutMillis = 1000;
+    private long drainTimeoutMillis = 30_000;
+    private int maxLocationBytes = 4 * 1024;
+    private int maxContentTypeBytes = 256;
+    private int transferBufferBytes = 64 * 1024;
+    private String logFile = null;
+
+    /**
+     * Creates a config with all default values.
+     */
+    public ProxyConfig() {
+    }
+
+    /**
+     * Creates a config with the defaults overridden by any "proxy.*" system properties.
+     *
+     * @return the config.
+     */
+    public static ProxyConfig fromSystemProperties() {
+        ProxyConfig config = new ProxyConfig();
+        config.balancing = Balancing.valueOf(System.getProperty("proxy.balancing", config.balancing.name()));
+        config.healthCheckMillis = Long.getLong("proxy.healthCheckMillis", config.healthCheckMillis);
+        config.healthCheckTimeoutMillis = Integer.getInteger("proxy.healthCheckTimeoutMillis", config.healthCheckTimeoutMillis);
+        config.unhealthyThreshold = Integer.getInteger("proxy.unhealthyThreshold", config.unhealthyThreshold);
+        config.connectTimeoutMillis = Integer.getInteger("proxy.connectTimeoutMillis", config.connectTimeoutMillis);
+        config.drainTimeoutMillis = Long.getLong("proxy.drainTimeoutMillis", config.drainTimeoutMillis);
+        config.maxLocationBytes = Integer.getInteger("proxy.maxLocationBytes", config.maxLocationBytes);
+        config.maxContentTypeBytes = Integer.getInteger("proxy.maxContentTypeBytes", config.maxContentTypeBytes);
+        config.transferBufferBytes = Integer.getInteger("proxy.transferBufferBytes", config.transferBufferBytes);
+        config.logFile = System.getProperty("proxy.logFile", config.logFile);
+        return config;
+    }
+
+    /**
+     * @return how new connections are spread over the servers.
+     */
+    public Balancing getBalancing() {
+        return balancing;
+    }
+
+    public ProxyConfig setBalancing(Balancing balancing) {
+        this.balancing = balancing;
+        return this;
+    }
+
+    /**
+     * @return the time between health checks of each server, in milliseconds.
+     */
+    public long getHealthCheckMillis() {
+        return healthCheckMillis;
+    }
+
+    public ProxyConfig setHealthCheckMillis(long healthCheckMillis) {
+        this.healthCheckMillis = healthCheckMillis;
+        return this;
+    }
+
+    /**
+     * @return how long a server has to answer a health check, in milliseconds.
+     */
+    public int getHealthCheckTimeoutMillis() {
+        return healthCheckTimeoutMillis;
+    }
+
+    public ProxyConfig setHealthCheckTimeoutMillis(int healthCheckTimeoutMillis) {
+        this.healthCheckTimeoutMillis = healthCheckTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of failed checks in a row before a server stops getting new connections.
+     */
+    public int getUnhealthyThreshold() {
+        return unhealthyThreshold;
+    }
+
+    public ProxyConfig setUnhealthyThreshold(int unhealthyThreshold) {
+        this.unhealthyThreshold = unhealthyThreshold;
+        return this;
+    }
+
+    /**
+     * @return how long connecting to a server may take before the next one is tried, in milliseconds.
+     */
+    public int getConnectTimeoutMillis() {
+        return connectTimeoutMillis;
+    }
+
+    public ProxyConfig setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return how long a draining server's connections get to go idle before they are closed anyway.
+     */
+    public long getDrainTimeoutMillis() {
+        return drainTimeoutMillis;
+    }
+
+    public ProxyConfig setDrainTimeoutMillis(long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the largest location frame either side may send, in bytes.
+     */
+    public int getMaxLocationBytes() {
+        return maxLocationBytes;
+    }
+
+    public ProxyConfig setMaxLocationBytes(int maxLocationBytes) {
+        this.maxLocationBytes = maxLocationBytes;
+        return this;
+    }
+
+    /**
+     * @return the largest content-type frame either side may send, in bytes.
+     */
+    public int getMaxContentTypeBytes() {
+        return maxContentTypeBytes;
+    }
+
+    public ProxyConfig setMaxContentTypeBytes(int maxContentTypeBytes) {
+        this.maxContentTypeBytes = maxContentTypeBytes;
+        return this;
+    }
+
+    /**
+     * @return the size of the buffer each direction of a connection copies through.
+     */
+    public int getTransferBufferBytes() {
+        return transferBufferBytes;
+    }
+
+    public ProxyConfig setTransferBufferBytes(int transferBufferBytes) {
+        this.transferBufferBytes = transferBufferBytes;
+        return this;
+    }
+
+    /**
+     * @return the file the proxy log is appended to, null for the console.
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public ProxyConfig setLogFile(String logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+}
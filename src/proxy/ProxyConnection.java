@@ -0,0 +1,225 @@
+package proxy;
+
+import server.AsyncLogger;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executor;
+
+/**
+ * A client connection passed through to one server.
+ * <p>
+ * Each direction is copied a whole message at a time, so the proxy always knows
+ * whether a request is waiting on its response. The server sends exactly one final
+ * (non 206) message for the greeting and for every request, which lets a draining
+ * connection be closed between requests instead of in the middle of one. Changes pushed
+ * for watched folders can arrive at any time and don't answer a request, so they aren't counted.
+ */
+public class ProxyConnection implements Runnable {
+
+    private static final int HEADER_BYTES = 16;
+    private static final int PARTIAL_CONTENT = 206;
+    private static final String PUSHED_CONTENT_TYPE = "update/watch";
+
+    private final Socket clientSocket;
+    private final Socket serverSocket;
+    private final Backend backend;
+    private final ProxyConfig config;
+    private final AsyncLogger logger;
+    private final Executor executor;
+    private final int port;
+
+    // The greeting is the first response the connection waits for
+    private int pendingResponses = 1;
+    private boolean draining = false;
+    private boolean closed = false;
+
+    /**
+     * Must call {@link #run()} to start passing messages.
+     *
+     * @param clientSocket the connection from the client.
+     * @param serverSocket the connection to the server.
+     * @param backend      the server.
+     * @param config       the proxy settings.
+     * @param logger       the proxy log.
+     * @param executor     runs the server to client direction.
+     */
+    public ProxyConnection(Socket clientSocket, Socket serverSocket, Backend backend, ProxyConfig config,
+                           AsyncLogger logger, Executor executor) {
+        this.clientSocket = clientSocket;
+        this.serverSocket = serverSocket;
+        this.backend = backend;
+        this.config = config;
+        this.logger = logger;
+        this.executor = executor;
+        this.port = clientSocket.getPort();
+        backend.add(this);
+    }
+
+    /**
+     * Passes messages both ways until either side closes the connection.
+     */
+    @Override
+    public void run() {
+        try {
+            InputStream clientIn = this.clientSocket.getInputStream();
+            OutputStream clientOut = this.clientSocket.getOutputStream();
+            InputStream serverIn = this.serverSocket.getInputStream();
+            OutputStream serverOut = this.serverSocket.getOutputStream();
+
+            this.executor.execute(() -> this.pump(serverIn, clientOut, false));
+            this.pump(clientIn, serverOut, true);
+        } catch (IOException e) {
+            this.logger.error(this.port, "Failed to get data streams.", e);
+            this.close();
+        }
+    }
+
+    /**
+     * Copies messages from one side to the other, one buffer at a time.
+     * <p>
+     * Each buffer is flushed as soon as it is read, so large messages such as echoes
+     * and downloads keep streaming through instead of being held by the proxy.
+     *
+     * @param in       the side to read from.
+     * @param out      the side to write to.
+     * @param requests true for the client to server direction.
+     */
+    private void pump(InputStream in, OutputStream out, boolean requests) {
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] header = new byte[HEADER_BYTES];
+        byte[] buffer = new byte[this.config.getTransferBufferBytes()];
+        try {
+            while (true) {
+                dataIn.readFully(header);
+                ByteBuffer fields = ByteBuffer.wrap(header);
+                int statusCode = fields.getInt();
+                int locationLength = fields.getInt();
+                int contentTypeLength = fields.getInt();
+                int contentLength = fields.getInt();
+                if (locationLength < 0 || locationLength > this.config.getMaxLocationBytes()
+                        || contentTypeLength < 0 || contentTypeLength > this.config.getMaxContentTypeBytes()
+                        || contentLength < 0) {
+                    throw new IOException("[pump] Invalid message header.");
+                }
+
+                // A request that shows up once the connection is draining is dropped, the client resends
+                // it after reconnecting. Requests already in flight still get their responses, the
+                // last one closes the connection.
+                if (requests && !this.startRequest()) {
+                    return;
+                }
+
+                out.write(header);
+                // The location and content type are small, read them whole to tell pushes apart
+                byte[] locationAndContentType = new byte[locationLength + contentTypeLength];
+                dataIn.readFully(locationAndContentType);
+                out.write(locationAndContentType);
+                boolean pushed = !requests && isPushed(locationAndContentType, locationLength);
+                long remaining = contentLength;
+                while (remaining > 0) {
+                    int bytesReadIn = in.read(buffer, 0, (int) Math.min(remaining, buffer.length));
+                    if (bytesReadIn < 0) {
+                        throw new EOFException("[pump] Missing bytes.");
+                    }
+                    out.write(buffer, 0, bytesReadIn);
+                    out.flush();
+                    remaining -= bytesReadIn;
+                }
+                out.flush();
+
+                if (!requests && !pushed && statusCode != PARTIAL_CONTENT) {
+                    this.finishResponse();
+                }
+            }
+        } catch (EOFException e) {
+            // The other side closed the connection
+        } catch (IOException e) {
+            if (!this.isClosed()) {
+                this.logger.info(this.port, "Connection to " + this.backend + " failed: " + e.getMessage());
+            }
+        } finally {
+            this.closeUnlessDraining();
+        }
+    }
+
+    /**
+     * @return true if the message was pushed by the server instead of answering a request.
+     */
+    private static boolean isPushed(byte[] locationAndContentType, int locationLength) {
+        String contentType = new String(locationAndContentType, locationLength,
+                locationAndContentType.length - locationLength, StandardCharsets.UTF_8);
+        return contentType.equals(PUSHED_CONTENT_TYPE);
+    }
+
+    private synchronized boolean startRequest() {
+        if (this.closed || this.draining) {
+            return false;
+        }
+        this.pendingResponses++;
+        return true;
+    }
+
+    private synchronized void finishResponse() {
+        this.pendingResponses--;
+        if (this.draining && this.pendingResponses == 0) {
+            this.close();
+        }
+    }
+
+    /**
+     * Closes the connection as soon as no request is waiting on a response.
+     */
+    public synchronized void drain() {
+        this.draining = true;
+        if (this.pendingResponses == 0) {
+            this.close();
+        }
+    }
+
+    /**
+     * Closes the connection when a side stopped passing messages, unless it stopped because
+     * the connection is draining and a response is still on its way to the client.
+     */
+    private void closeUnlessDraining() {
+        synchronized (this) {
+            if (this.draining && this.pendingResponses > 0 && !this.closed) {
+                return;
+            }
+        }
+        this.close();
+    }
+
+    private synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    /**
+     * Closes both sides of the connection.
+     */
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+        try {
+            this.clientSocket.close();
+        } catch (IOException e) {
+            this.logger.error(this.port, "Failed to close client connection.", e);
+        }
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            this.logger.error(this.port, "Failed to close server connection.", e);
+        }
+        this.backend.remove(this);
+    }
+}
@@ -0,0 +1,117 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how many connections per second are accepted on loopback.
+ * <p>
+ * Usage: AcceptBenchmark [acceptorThreads] [clientThreads] [seconds] [backlog] [accept|server]
+ * <p>
+ * Client threads connect and immediately close in a tight loop. In "accept" mode (the default)
+ * the listeners are bound the way the {@link Server} binds them and the acceptor threads only
+ * accept and close, so the accept path is measured on its own. In "server" mode a full server
+ * takes the connections, and every one also pays for its handler, session and greeting; its
+ * "connections.accepted" metric is sampled at the start and the end of the run.
+ */
+public class AcceptBenchmark {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int acceptorThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int clientThreads = args.length > 1 ? Integer.parseInt(args[1]) : 4 * Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int backlog = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+        boolean serverMode = args.length > 4 && args[4].equals("server");
+
+        Server server = null;
+        List<ServerSocketChannel> listeners = null;
+        LongAdder acceptedCount = new LongAdder();
+        int port;
+        if (serverMode) {
+            // Keep the per-connection log lines out of the results
+            File logFile = File.createTempFile("accept-benchmark", ".log");
+            logFile.deleteOnExit();
+
+            ServerConfig config = ServerConfig.fromSystemProperties()
+                    .setAcceptorThreads(acceptorThreads)
+                    .setAcceptBacklog(backlog)
+                    .setLogFile(logFile.getPath());
+            server = new Server(0, new File("src/users"), config);
+            Thread serverThread = new Thread(server);
+            serverThread.setDaemon(true);
+            serverThread.start();
+            port = server.getPort();
+        } else {
+            listeners = Server.bindListeners(0, Math.max(1, acceptorThreads), backlog);
+            port = listeners.get(0).socket().getLocalPort();
+            for (int i = 0; i < acceptorThreads; i++) {
+                ServerSocketChannel listener = listeners.get(i % listeners.size());
+                Thread acceptor = new Thread(() -> acceptLoop(listener, acceptedCount));
+                acceptor.setDaemon(true);
+                acceptor.start();
+            }
+        }
+
+        InetSocketAddress address = new InetSocketAddress("localhost", port);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        List<Thread> clients = new ArrayList<>();
+        for (int i = 0; i < clientThreads; i++) {
+            Thread client = new Thread(() -> {
+                while (System.nanoTime() < deadline) {
+                    try (Socket socket = new Socket()) {
+                        socket.setSoLinger(true, 0); // Skip TIME_WAIT so the ephemeral ports last the run
+                        socket.connect(address);
+                    } catch (IOException e) {
+                        // Refused because the backlog was full, try again
+                    }
+                }
+            });
+            client.setDaemon(true);
+            clients.add(client);
+        }
+
+        long start = System.nanoTime();
+        long acceptedAtStart = serverMode ? server.getMetrics().get("connections.accepted") : acceptedCount.sum();
+        for (Thread client : clients) {
+            client.start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        long accepted = (serverMode ? server.getMetrics().get("connections.accepted") : acceptedCount.sum()) - acceptedAtStart;
+        double elapsed = (System.nanoTime() - start) / 1_000_000_000.0;
+
+        System.out.printf("mode=%s listeners=%d acceptors=%d clients=%d backlog=%d%n",
+                serverMode ? "server" : "accept", serverMode ? server.getMetrics().get("listeners") : listeners.size(),
+                acceptorThreads, clientThreads, backlog);
+        System.out.printf("accepted %d connections in %.2fs = %.0f connections/s%n",
+                accepted, elapsed, accepted / elapsed);
+        if (serverMode) {
+            server.close();
+        } else {
+            for (ServerSocketChannel listener : listeners) {
+                listener.close();
+            }
+        }
+    }
+
+    private static void acceptLoop(ServerSocketChannel listener, LongAdder acceptedCount) {
+        while (true) {
+            try (SocketChannel channel = listener.accept()) {
+                acceptedCount.increment();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // The client reset the connection first, carry on
+            }
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package server;
+
+import java.io.*;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logs server events without making the logging threads wait on each other or on I/O.
+ * <p>
+ * Threads append {@link LogEvent}s to a bounded lock-free ring buffer, and a single background
+ * thread formats and writes them in batches. If the ring is full the event is dropped and
+ * counted instead of blocking the caller.
+ */
+public class AsyncLogger implements Runnable {
+
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 1_000_000L;
+
+    private final int capacity;
+    private final int mask;
+    private final AtomicReferenceArray<LogEvent> events;
+    // The position each slot is ready for, tells producers and the consumer whose turn it is
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head = 0; // Only touched by the logger thread
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final Writer writer;
+    private final String name;
+    private final boolean ownsWriter;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Creates and starts a logger for the server.
+     *
+     * @param capacity the number of events the ring can hold, rounded up to a power of two.
+     * @param logFile  the file to append to, or null to write to {@link System#out}.
+     * @throws IOException if the log file could not be opened.
+     */
+    public AsyncLogger(int capacity, String logFile) throws IOException {
+        this(capacity, logFile, "Server");
+    }
+
+    /**
+     * Creates and starts a logger.
+     *
+     * @param capacity the number of events the ring can hold, rounded up to a power of two.
+     * @param logFile  the file to append to, or null to write to {@link System#out}.
+     * @param name     the name every line is tagged with, ex. "Server".
+     * @throws IOException if the log file could not be opened.
+     */
+    public AsyncLogger(int capacity, String logFile, String name) throws IOException {
+        this.name = name;
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = this.capacity - 1;
+        this.events = new AtomicReferenceArray<>(this.capacity);
+        this.sequences = new AtomicLongArray(this.capacity);
+        for (int i = 0; i < this.capacity; i++) {
+            this.sequences.set(i, i);
+        }
+
+        this.ownsWriter = logFile != null;
+        if (this.ownsWriter) {
+            this.writer = new BufferedWriter(new FileWriter(logFile, true));
+        } else {
+            this.writer = new BufferedWriter(new OutputStreamWriter(System.out));
+        }
+
+        this.thread = new Thread(this, "async-logger");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Logs an info event.
+     *
+     * @param port    the client port the event belongs to, 0 if none.
+     * @param message what happened.
+     */
+    public void info(int port, String message) {
+        this.log(LogEvent.Level.INFO, port, message, null);
+    }
+
+    /**
+     * Logs an error event.
+     *
+     * @param port    the client port the event belongs to, 0 if none.
+     * @param message what happened.
+     * @param error   the cause, may be null.
+     */
+    public void error(int port, String message, Throwable error) {
+        this.log(LogEvent.Level.ERROR, port, message, error);
+    }
+
+    /**
+     * Appends an event to the ring, never blocks.
+     *
+     * @return true if the event was accepted, false if the ring was full and it was dropped.
+     */
+    public boolean log(LogEvent.Level level, int port, String message, Throwable error) {
+        LogEvent event = new LogEvent(System.currentTimeMillis(), level, port, message, error);
+        long position = this.tail.get();
+        while (true) {
+            int slot = (int) (position & this.mask);
+            long difference = this.sequences.get(slot) - position;
+            if (difference == 0) {
+                // The slot is free for this position, try to claim it
+                if (this.tail.compareAndSet(position, position + 1)) {
+                    this.events.lazySet(slot, event);
+                    this.sequences.lazySet(slot, position + 1);
+                    return true;
+                }
+                position = this.tail.get();
+            } else if (difference < 0) {
+                // The logger thread hasn't gotten to this slot yet, the ring is full
+                this.dropped.increment();
+                return false;
+            } else {
+                // Another producer took this position
+                position = this.tail.get();
+            }
+        }
+    }
+
+    /**
+     * Writes events in batches until closed.
+     */
+    @Override
+    public void run() {
+        StringBuilder sb = new StringBuilder();
+        while (this.running) {
+            if (!this.writeBatch(sb)) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        // Write whatever was logged before closing
+        while (this.writeBatch(sb)) {
+            // Keep going until the ring is empty
+        }
+    }
+
+    /**
+     * Takes up to a batch of events off the ring and writes them.
+     *
+     * @param sb a reusable builder for formatting.
+     * @return true if anything was written.
+     */
+    private boolean writeBatch(StringBuilder sb) {
+        int count = 0;
+        LogEvent event;
+        while (count < BATCH_SIZE && (event = this.poll()) != null) {
+            this.format(event, sb);
+            count++;
+        }
+        if (count == 0) {
+            return false;
+        }
+
+        try {
+            this.writer.write(sb.toString());
+            this.writer.flush();
+        } catch (IOException e) {
+            System.err.println("[AsyncLogger] Failed to write log events.");
+        }
+        sb.setLength(0);
+        this.written.add(count);
+        return true;
+    }
+
+    /**
+     * Takes the next event off the ring.
+     *
+     * @return the next event, or null if the ring is empty.
+     */
+    private LogEvent poll() {
+        int slot = (int) (this.head & this.mask);
+        if (this.sequences.get(slot) != this.head + 1) {
+            return null;
+        }
+        LogEvent event = this.events.get(slot);
+        this.events.lazySet(slot, null);
+        // Free the slot for the producer that wraps around to it
+        this.sequences.lazySet(slot, this.head + this.capacity);
+        this.head++;
+        return event;
+    }
+
+    /**
+     * Formats an event as a single line, plus a stack trace if it has an error.
+     * <p>
+     * Example output: "2020-10-22T12:00:00Z INFO [Server] port=51234 closing connection"
+     */
+    private void format(LogEvent event, StringBuilder sb) {
+        sb.append(Instant.ofEpochMilli(event.timeMillis)).append(' ')
+                .append(event.level).append(" [").append(this.name).append("] ");
+        if (event.port != 0) {
+            sb.append("port=").append(event.port).append(' ');
+        }
+        sb.append(event.message).append(System.lineSeparator());
+        if (event.error != null) {
+            StringWriter stackTrace = new StringWriter();
+            event.error.printStackTrace(new PrintWriter(stackTrace));
+            sb.append(stackTrace);
+        }
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full.
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * @return the number of events written out.
+     */
+    public long getWritten() {
+        return this.written.sum();
+    }
+
+    /**
+     * Writes out the remaining events and stops the logger thread.
+     */
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this.thread);
+        try {
+            this.thread.join(1000);
+            if (this.ownsWriter) {
+                this.writer.close();
+            } else {
+                this.writer.flush();
+            }
+        } catch (InterruptedException | IOException e) {
+            System.err.println("[AsyncLogger] Failed to close cleanly.");
+        }
+    }
+}
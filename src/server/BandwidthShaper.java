@@ -0,0 +1,78 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Limits download bandwidth per connection, per user folder and server-wide.
+ * <p>
+ * Each level is a {@link TokenBucket}. A chunk is charged to all three buckets
+ * and the writer parks for the longest of the waits, so the tightest limit wins.
+ */
+public class BandwidthShaper {
+
+    private final ServerConfig config;
+    private final Metrics metrics;
+    private final TokenBucket serverBucket;
+    private final Map<String, TokenBucket> userBuckets = new ConcurrentHashMap<>();
+
+    public BandwidthShaper(ServerConfig config, Metrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.serverBucket = new TokenBucket(config.getServerDownloadBytesPerSecond(), config.getDownloadBurstBytes());
+        metrics.register("download.server.bytesPerSecond", this.serverBucket::getBytesPerSecond);
+    }
+
+    /**
+     * Creates the bucket for a single connection.
+     *
+     * @param connectionId the id of the connection, unique for the life of the server, used to name its metric.
+     * @return a new bucket.
+     */
+    public TokenBucket newConnectionBucket(long connectionId) {
+        TokenBucket bucket = new TokenBucket(this.config.getConnectionDownloadBytesPerSecond(), this.config.getDownloadBurstBytes());
+        this.metrics.register("download.connection." + connectionId + ".bytesPerSecond", bucket::getBytesPerSecond);
+        return bucket;
+    }
+
+    /**
+     * Removes the metric of a connection's bucket once the connection is closed.
+     *
+     * @param connectionId the id the bucket was created with.
+     */
+    public void removeConnectionBucket(long connectionId) {
+        this.metrics.unregister("download.connection." + connectionId + ".bytesPerSecond");
+    }
+
+    /**
+     * Gets the bucket shared by everyone downloading from a user folder.
+     *
+     * @param user the name of the user folder, ex. "alice".
+     * @return the bucket for that folder.
+     */
+    public TokenBucket getUserBucket(String user) {
+        return this.userBuckets.computeIfAbsent(user, name -> {
+            TokenBucket bucket = new TokenBucket(this.config.getUserDownloadBytesPerSecond(), this.config.getDownloadBurstBytes());
+            this.metrics.register("download.user." + name + ".bytesPerSecond", bucket::getBytesPerSecond);
+            return bucket;
+        });
+    }
+
+    /**
+     * Charges a chunk to all the buckets and parks the calling thread until it may be sent.
+     *
+     * @param connectionBucket the bucket of the sending connection.
+     * @param userBucket       the bucket of the user folder, may be null.
+     * @param bytes            the size of the chunk.
+     */
+    public void acquire(TokenBucket connectionBucket, TokenBucket userBucket, int bytes) {
+        long wait = Math.max(connectionBucket.reserve(bytes), this.serverBucket.reserve(bytes));
+        if (userBucket != null) {
+            wait = Math.max(wait, userBucket.reserve(bytes));
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+}
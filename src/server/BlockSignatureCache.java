@@ -0,0 +1,115 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the block signatures of file versions for delta syncs.
+ * <p>
+ * A signature is the rolling (weak) and MD5 (strong) checksum of each whole block of a file.
+ * Entries are keyed by path, last modified time, size and block size, so a changed file gets
+ * new signatures and repeated syncs of the same version cost no hashing at all.
+ */
+public class BlockSignatureCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private final Map<String, Signatures> entries = new LinkedHashMap<String, Signatures>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Signatures> eldest) {
+            return this.size() > MAX_ENTRIES;
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * The signatures of every whole block of one version of a file.
+     */
+    public static class Signatures {
+        public final int blockSize;
+        public final int[] weak;
+        public final byte[][] strong;
+
+        Signatures(int blockSize, int[] weak, byte[][] strong) {
+            this.blockSize = blockSize;
+            this.weak = weak;
+            this.strong = strong;
+        }
+    }
+
+    public BlockSignatureCache(Metrics metrics) {
+        metrics.register("signatureCache.hits", this.hits::sum);
+        metrics.register("signatureCache.misses", this.misses::sum);
+    }
+
+    /**
+     * Gets the signatures of the current version of a file, computing them if needed.
+     *
+     * @param file      the file.
+     * @param blockSize the size of each block.
+     * @return the signatures of every whole block.
+     * @throws IOException if the file could not be read.
+     */
+    public Signatures get(File file, int blockSize) throws IOException {
+        String key = file.getCanonicalPath() + "|" + file.lastModified() + "|" + file.length() + "|" + blockSize;
+        synchronized (this.entries) {
+            Signatures signatures = this.entries.get(key);
+            if (signatures != null) {
+                this.hits.increment();
+                return signatures;
+            }
+        }
+
+        this.misses.increment();
+        Signatures signatures = compute(file, blockSize);
+        synchronized (this.entries) {
+            this.entries.put(key, signatures);
+        }
+        return signatures;
+    }
+
+    private static Signatures compute(File file, int blockSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = Math.min(channel.size(), DeltaEncoder.MAX_FILE_BYTES);
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            int blockCount = (int) (length / blockSize);
+            int[] weak = new int[blockCount];
+            byte[][] strong = new byte[blockCount][];
+            MessageDigest md5 = md5();
+            for (int i = 0; i < blockCount; i++) {
+                weak[i] = RollingChecksum.of(data, i * blockSize, blockSize);
+                strong[i] = strongChecksum(md5, data, i * blockSize, blockSize);
+            }
+            return new Signatures(blockSize, weak, strong);
+        }
+    }
+
+    /**
+     * Computes the MD5 checksum of part of a buffer.
+     */
+    static byte[] strongChecksum(MessageDigest md5, ByteBuffer data, int offset, int length) {
+        ByteBuffer slice = data.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        md5.update(slice);
+        return md5.digest();
+    }
+
+    static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("[BlockSignatureCache] MD5 is not available.", e);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out byte arrays for socket I/O and gets them back, so handling a request
+ * doesn't leave garbage behind.
+ * <p>
+ * Arrays come in size classes of 4 KB, 16 KB, 64 KB and 256 KB, a request is rounded up to
+ * the next class. Every thread keeps a few released arrays of each class for itself, the
+ * rest go to a shared pool of limited size. Anything larger than the largest class is
+ * allocated as usual and dropped on release.
+ * <p>
+ * With leak detection on, every array handed out is remembered with the stack that asked
+ * for it, releasing an array twice is logged, and {@link #reportLeaks()} logs every array
+ * that was never released. It costs a lock and a stack trace per array, so it's meant for tests.
+ */
+public class BufferPool {
+
+    private static final int MIN_CLASS_BYTES = 4 * 1024;
+    private static final int CLASSES = 4;
+    private static final int THREAD_CACHE_SIZE = 4;
+
+    private final List<ConcurrentLinkedDeque<byte[]>> shared = new ArrayList<>(CLASSES);
+    private final AtomicInteger[] sharedCounts = new AtomicInteger[CLASSES];
+    private final int[] sharedLimits = new int[CLASSES];
+    private final ThreadLocal<List<ArrayDeque<byte[]>>> threadCaches = ThreadLocal.withInitial(() -> {
+        List<ArrayDeque<byte[]>> caches = new ArrayList<>(CLASSES);
+        for (int i = 0; i < CLASSES; i++) {
+            caches.add(new ArrayDeque<>(THREAD_CACHE_SIZE));
+        }
+        return caches;
+    });
+    private final AsyncLogger logger;
+    private final Map<byte[], Throwable> outstanding;
+    private final LongAdder acquired = new LongAdder();
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * @param sharedBytes   the most bytes kept in the shared pool, split evenly between the size classes.
+     * @param leakDetection true to remember every array handed out, see {@link #reportLeaks()}.
+     * @param logger        where leaks and double releases are logged.
+     * @param metrics       where the hit rate of the pool is reported.
+     */
+    public BufferPool(long sharedBytes, boolean leakDetection, AsyncLogger logger, Metrics metrics) {
+        this.logger = logger;
+        this.outstanding = leakDetection ? Collections.synchronizedMap(new IdentityHashMap<>()) : null;
+        for (int i = 0; i < CLASSES; i++) {
+            this.shared.add(new ConcurrentLinkedDeque<>());
+            this.sharedCounts[i] = new AtomicInteger();
+            this.sharedLimits[i] = (int) Math.min(Integer.MAX_VALUE, sharedBytes / CLASSES / classBytes(i));
+        }
+        metrics.register("buffers.acquired", this.acquired::sum);
+        metrics.register("buffers.allocated", this.allocated::sum);
+        metrics.register("buffers.pooled.bytes", () -> {
+            long bytes = 0;
+            for (int i = 0; i < CLASSES; i++) {
+                bytes += (long) this.sharedCounts[i].get() * classBytes(i);
+            }
+            return bytes;
+        });
+        if (leakDetection) {
+            metrics.register("buffers.outstanding", () -> this.outstanding.size());
+        }
+    }
+
+    private static int classBytes(int sizeClass) {
+        return MIN_CLASS_BYTES << (2 * sizeClass);
+    }
+
+    /**
+     * @return the smallest size class that fits, or -1 if none does.
+     */
+    private static int classFor(int bytes) {
+        for (int i = 0; i < CLASSES; i++) {
+            if (bytes <= classBytes(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets an array of at least the given size, its content is left over from its last use.
+     *
+     * @param minBytes the fewest bytes needed.
+     * @return the array, hand it back with {@link #release(byte[])} once done with it.
+     */
+    public byte[] acquire(int minBytes) {
+        this.acquired.increment();
+        int sizeClass = classFor(minBytes);
+        byte[] array = null;
+        if (sizeClass >= 0) {
+            array = this.threadCaches.get().get(sizeClass).pollLast();
+            if (array == null) {
+                array = this.shared.get(sizeClass).pollLast();
+                if (array != null) {
+                    this.sharedCounts[sizeClass].decrementAndGet();
+                }
+            }
+        }
+        if (array == null) {
+            this.allocated.increment();
+            array = new byte[sizeClass >= 0 ? classBytes(sizeClass) : minBytes];
+        }
+        if (this.outstanding != null) {
+            this.outstanding.put(array, new Throwable("Acquired " + array.length + " bytes here"));
+        }
+        return array;
+    }
+
+    /**
+     * Hands an array back, it must not be used afterwards.
+     *
+     * @param array an array from {@link #acquire(int)}.
+     */
+    public void release(byte[] array) {
+        if (this.outstanding != null && this.outstanding.remove(array) == null) {
+            this.logger.error(0, "[BufferPool] Released an array that was not handed out, or released it twice.",
+                    new Throwable("Released here"));
+            return;
+        }
+        int sizeClass = classFor(array.length);
+        if (sizeClass < 0 || array.length != classBytes(sizeClass)) {
+            return;
+        }
+        ArrayDeque<byte[]> cache = this.threadCaches.get().get(sizeClass);
+        if (cache.size() < THREAD_CACHE_SIZE) {
+            cache.addLast(array);
+            return;
+        }
+        // Arrays are often released by another thread than the one that took them, ex. the outbound writers
+        if (this.sharedCounts[sizeClass].incrementAndGet() <= this.sharedLimits[sizeClass]) {
+            this.shared.get(sizeClass).addLast(array);
+        } else {
+            this.sharedCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Logs every array that was handed out and not released, with where it was acquired.
+     * Does nothing unless leak detection is on.
+     *
+     * @return the number of arrays not released.
+     */
+    public int reportLeaks() {
+        if (this.outstanding == null) {
+            return 0;
+        }
+        List<Throwable> leaks;
+        synchronized (this.outstanding) {
+            leaks = new ArrayList<>(this.outstanding.values());
+        }
+        for (Throwable leak : leaks) {
+            this.logger.error(0, "[BufferPool] Array was never released.", leak);
+        }
+        return leaks.size();
+    }
+}
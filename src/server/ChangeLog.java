@@ -0,0 +1,201 @@
+package server;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * An append-only log of the changes under the users folder, numbered in the order they happened.
+ * <p>
+ * Every change reported by the {@link FileWatcher} is appended to a file and kept in memory,
+ * so {@link ReplicationPrimary} can send replicas everything after the last change they applied.
+ * Only the newest entries are kept in memory, a replica that is further behind than that
+ * gets a full snapshot instead. The numbering carries on after a restart.
+ */
+public class ChangeLog implements FileChangeListener {
+
+    private static final int MAX_BATCH = 1024;
+
+    /**
+     * A single change. The kind is 'C'reate, 'M'odify, 'D'elete or 'O'verflow,
+     * an overflow means changes were lost and replicas need a snapshot.
+     */
+    public static class Entry {
+        public final long sequence;
+        public final long timeMillis;
+        public final char kind;
+        public final String path;
+
+        Entry(long sequence, long timeMillis, char kind, String path) {
+            this.sequence = sequence;
+            this.timeMillis = timeMillis;
+            this.kind = kind;
+            this.path = path;
+        }
+    }
+
+    private final Path root;
+    private final File logFile;
+    private final int capacity;
+    private final AsyncLogger logger;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private long headSequence = 0;
+    private long linesInFile = 0;
+    private Writer writer;
+
+    /**
+     * Opens the log, reading back the entries already in the file.
+     *
+     * @param root     the folder the paths are relative to.
+     * @param logFile  the file the log is appended to.
+     * @param capacity the number of newest entries kept in memory.
+     * @param logger   where to log problems.
+     * @param metrics  where the newest sequence number is reported.
+     * @throws IOException if the log file could not be opened.
+     */
+    public ChangeLog(Path root, File logFile, int capacity, AsyncLogger logger, Metrics metrics) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.logFile = logFile;
+        this.capacity = capacity;
+        this.logger = logger;
+        this.load();
+        this.writer = new BufferedWriter(new FileWriter(logFile, true));
+        metrics.register("replication.sequence", this::getHeadSequence);
+    }
+
+    /**
+     * Reads the entries of an earlier run, lines look like "sequence time kind path".
+     */
+    private void load() {
+        if (!this.logFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(this.logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.split(" ", 4);
+                if (parts.length < 4) {
+                    continue; // Cut off by a crash
+                }
+                this.keep(new Entry(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2].charAt(0), parts[3]));
+                this.linesInFile++;
+            }
+        } catch (IOException | RuntimeException e) {
+            this.logger.error(0, "[ChangeLog] Failed to read " + this.logFile + ", continuing from entry " + this.headSequence, e);
+        }
+    }
+
+    @Override
+    public void onFileChange(Path path, WatchEvent.Kind<?> kind) {
+        char kindCode;
+        if (kind == ENTRY_CREATE) {
+            kindCode = 'C';
+        } else if (kind == ENTRY_MODIFY) {
+            kindCode = 'M';
+        } else if (kind == ENTRY_DELETE) {
+            kindCode = 'D';
+        } else {
+            kindCode = 'O';
+        }
+        String relativePath = this.root.relativize(path.toAbsolutePath().normalize()).toString().replace(File.separatorChar, '/');
+        this.append(kindCode, relativePath);
+    }
+
+    private synchronized void append(char kind, String path) {
+        Entry entry = new Entry(this.headSequence + 1, System.currentTimeMillis(), kind, path);
+        this.keep(entry);
+        try {
+            this.writer.write(entry.sequence + " " + entry.timeMillis + " " + entry.kind + " " + entry.path + "\n");
+            this.writer.flush();
+            this.linesInFile++;
+            if (this.linesInFile > 2L * this.capacity) {
+                this.compact();
+            }
+        } catch (IOException e) {
+            this.logger.error(0, "[ChangeLog] Failed to append entry " + entry.sequence, e);
+        }
+        this.notifyAll();
+    }
+
+    private void keep(Entry entry) {
+        this.entries.addLast(entry);
+        this.headSequence = entry.sequence;
+        if (this.entries.size() > this.capacity) {
+            this.entries.removeFirst();
+        }
+    }
+
+    /**
+     * Rewrites the file with only the entries kept in memory, so it doesn't grow forever.
+     */
+    private void compact() throws IOException {
+        this.writer.close();
+        File tempFile = new File(this.logFile.getPath() + ".tmp");
+        try (Writer compacted = new BufferedWriter(new FileWriter(tempFile))) {
+            for (Entry entry : this.entries) {
+                compacted.write(entry.sequence + " " + entry.timeMillis + " " + entry.kind + " " + entry.path + "\n");
+            }
+        }
+        Files.move(tempFile.toPath(), this.logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.linesInFile = this.entries.size();
+        this.writer = new BufferedWriter(new FileWriter(this.logFile, true));
+    }
+
+    /**
+     * Gets the entries after the given one, at most a batch at a time,
+     * waiting for a while if there are none yet.
+     *
+     * @param sequence      the last entry the caller has.
+     * @param timeoutMillis how long to wait for a new entry.
+     * @return the entries in order, empty if none came in time, or null if some of
+     * them are no longer kept and the caller needs a snapshot.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized List<Entry> entriesAfter(long sequence, long timeoutMillis) throws InterruptedException {
+        if (sequence == this.headSequence) {
+            this.wait(timeoutMillis);
+        }
+        if (sequence > this.headSequence) {
+            return null; // From before the log was lost
+        }
+        List<Entry> after = new ArrayList<>();
+        if (sequence == this.headSequence) {
+            return after;
+        }
+        if (this.entries.isEmpty() || this.entries.peekFirst().sequence > sequence + 1) {
+            return null;
+        }
+        // Sequences have no gaps, so the first one needed is at a known offset
+        int skip = (int) (sequence + 1 - this.entries.peekFirst().sequence);
+        for (Entry entry : this.entries) {
+            if (skip-- > 0) {
+                continue;
+            }
+            after.add(entry);
+            if (after.size() == MAX_BATCH) {
+                break;
+            }
+        }
+        return after;
+    }
+
+    public synchronized long getHeadSequence() {
+        return this.headSequence;
+    }
+
+    public Path getRoot() {
+        return this.root;
+    }
+
+    public synchronized void close() {
+        try {
+            this.writer.close();
+        } catch (IOException e) {
+            this.logger.error(0, "[ChangeLog] Failed to close " + this.logFile, e);
+        }
+    }
+}
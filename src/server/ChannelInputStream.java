@@ -0,0 +1,86 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Reads a non-blocking {@link SocketChannel} as a blocking stream.
+ * <p>
+ * The channel of a connection is non-blocking so the {@link OutboundWriter} never waits on
+ * a client, but the {@link ClientHandler} still reads one request at a time. When there is
+ * nothing to read, the reading thread waits on a selector of its own.
+ */
+public class ChannelInputStream extends InputStream {
+
+    // How often a waiting read checks whether the channel was closed by another thread
+    private static final long CLOSED_CHECK_MILLIS = 1000;
+
+    private final SocketChannel channel;
+    private final Selector selector;
+
+    /**
+     * @param channel the connection to read, must be non-blocking.
+     * @throws IOException if the selector could not be opened.
+     */
+    public ChannelInputStream(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.selector = Selector.open();
+        try {
+            channel.register(this.selector, SelectionKey.OP_READ);
+        } catch (IOException e) {
+            this.selector.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+        while (true) {
+            int bytesRead = this.channel.read(buffer);
+            if (bytesRead != 0) {
+                return bytesRead;
+            }
+            this.awaitReadable();
+        }
+    }
+
+    private void awaitReadable() throws IOException {
+        try {
+            this.selector.select(CLOSED_CHECK_MILLIS);
+            this.selector.selectedKeys().clear();
+        } catch (ClosedSelectorException e) {
+            throw new ClosedChannelException();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new InterruptedIOException("[ChannelInputStream] Interrupted while waiting to read.");
+        }
+        if (!this.channel.isOpen()) {
+            throw new ClosedChannelException();
+        }
+    }
+
+    /**
+     * Closes the selector, which also wakes up a waiting read. The channel is closed with its socket.
+     */
+    @Override
+    public void close() throws IOException {
+        this.selector.close();
+    }
+}
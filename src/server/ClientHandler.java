@@ -1,12 +1,38 @@
 package server;
 
-import main.Main;
+import server.events.BodyReadEvent;
+import server.events.ChangeLocationEvent;
+import server.events.DownloadEvent;
+import server.events.FileReadEvent;
+import server.events.HeaderReadEvent;
+import server.events.ListEvent;
+import server.events.ProtocolEvent;
+import server.events.ProtocolRecording;
+import server.events.RequestEvent;
+import server.events.SendEvent;
 
 import java.io.*;
-import java.math.BigInteger;
 import java.net.Socket;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientHandler implements Runnable {
 
@@ -14,35 +40,115 @@ public class ClientHandler implements Runnable {
     private static final int LOCATION_LENGTH_BYTES = 4;
     private static final int CONTENT_TYPE_LENGTH_BYTES = 4;
     private static final int CONTENT_LENGTH_BYTES = 4;
+    private static final int HEADER_BYTES = STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES + CONTENT_TYPE_LENGTH_BYTES
+            + CONTENT_LENGTH_BYTES;
+
+    // Content types are a handful of constants and file extensions, their bytes are kept up to this many
+    private static final int MAX_CACHED_CONTENT_TYPES = 256;
+    private static final Map<String, byte[]> CONTENT_TYPE_BYTES = new ConcurrentHashMap<>();
 
     private static final String CONSOLE_TEXT_CONTENT_TYPE = "console/text";
     private static final String COMMAND_CONTENT_TYPE = "console/command";
     private static final String FILE_CONTENT_TYPE = "file/";
+    private static final String ZIP_CONTENT_TYPE = FILE_CONTENT_TYPE + "zip";
     private static final String NONE_CONTENT_TYPE = "None";
     private static final String UPDATE_ECHO_CONTENT_TYPE = "update/echo";
+    private static final String UPDATE_SESSION_CONTENT_TYPE = "update/session";
+    private static final String UPDATE_WATCH_CONTENT_TYPE = "update/watch";
+    private static final String UPDATE_PONG_CONTENT_TYPE = "update/pong";
+    private static final String REDIRECT_CONTENT_TYPE = "redirect/node";
+    private static final String SIGNATURES_CONTENT_TYPE = "sync/signatures";
+    // Content types clients send, read back as these same Strings instead of new ones
+    private static final String[] REQUEST_CONTENT_TYPES = new String[]{
+            COMMAND_CONTENT_TYPE, CONSOLE_TEXT_CONTENT_TYPE, SIGNATURES_CONTENT_TYPE
+    };
+    private static final byte[] NO_CONTENT = new byte[0];
+    private static final String DELTA_CONTENT_TYPE = "sync/delta";
+    private static final String LISTING_PAGE_CONTENT_TYPE = "listing/page";
 
     private static final String HELP_COMMAND = "help";
     private static final String TOGGLE_ECHO_COMMAND = "toggle echo";
     private static final String LS_COMMAND = "ls";
+    private static final String LIST_COMMAND = "list";
     private static final String CD_COMMAND = "cd ";
     private static final String DOWNLOAD_COMMAND = "download ";
+    private static final String STATS_COMMAND = "stats";
+    private static final String FIND_COMMAND = "find ";
+    private static final String DU_COMMAND = "du";
+    private static final String SEARCH_COMMAND = "search ";
+    private static final String RESUME_COMMAND = "resume ";
+    private static final String TRACE_COMMAND = "trace ";
+    private static final String WATCH_COMMAND = "watch";
+    private static final String UNWATCH_COMMAND = "unwatch";
+    private static final String PING_COMMAND = "ping";
     private static final String[] ALL_COMMANDS = new String[]{
-            HELP_COMMAND, TOGGLE_ECHO_COMMAND, LS_COMMAND, CD_COMMAND, DOWNLOAD_COMMAND
+            HELP_COMMAND, TOGGLE_ECHO_COMMAND, LS_COMMAND, LIST_COMMAND, CD_COMMAND, DOWNLOAD_COMMAND, STATS_COMMAND,
+            FIND_COMMAND, DU_COMMAND, SEARCH_COMMAND, RESUME_COMMAND, TRACE_COMMAND, WATCH_COMMAND, UNWATCH_COMMAND,
+            PING_COMMAND
     };
 
     private static final String[] VALID_FILES = new String[]{"snek.png", "todo.txt", "dog.jpg", "cat.jpg"};
 
     private static final int OK = 200;
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int NOT_MODIFIED = 304;
+    private static final int TEMPORARY_REDIRECT = 307;
     private static final int BAD_REQUEST = 400;
+    private static final int SERVICE_UNAVAILABLE = 503;
 
     private static final String BASE_FOLDER = "users";
 
+    // Client ports repeat across hosts and over time, so connections are told apart by this
+    private static final AtomicLong NEXT_CONNECTION_ID = new AtomicLong();
+
+    // Commands that work in echo mode are all shorter than this, anything longer is just echoed
+    private static final int MAX_ECHO_COMMAND_BYTES = 256;
+
+    // The greeting is the same for everyone, only the session token is added per connection
+    private static final byte[] GREETING_BYTES = (String.format("Hello and welcome to the server!!\n" +
+                    "By default the server is in Echo mode. This means anything you\n" +
+                    "send to the server will just get send right back to you!\n" +
+                    "Well, most of the time... To learn how to disable this, send\n" +
+                    "a message with content-type as \"%s\" and a String in the content as \"%s\".\n" +
+                    "This will get you the help page that lists all available commands\n" +
+                    "and what they do!\n" +
+                    "Session: ",
+            COMMAND_CONTENT_TYPE,
+            HELP_COMMAND
+    )).getBytes();
+
+    // How long a closing connection waits for its queued responses to be sent
+    private static final long CLOSE_LINGER_MILLIS = 1000;
+
+    // Commands are cut to this length in protocol events
+    private static final int MAX_EVENT_COMMAND_LENGTH = 64;
+
+    // Streamed results are sent once this many are waiting, or after this long
+    private static final int STREAM_BATCH_SIZE = 512;
+    private static final long STREAM_FLUSH_MILLIS = 50;
+
     private final Socket socket;
     private final Server server;
+    private final ServerConfig config;
+    private final byte[] transferBuffer;
+    private final BufferPool bufferPool;
+    private final ByteBuffer headerIn = ByteBuffer.allocate(HEADER_BYTES);
+    private final ByteBuffer headerOut = ByteBuffer.allocate(HEADER_BYTES);
+    private String lastLocation;
+    private byte[] lastLocationBytes;
+    private final BandwidthShaper bandwidthShaper;
+    private final long connectionId = NEXT_CONNECTION_ID.incrementAndGet();
+    private final TokenBucket downloadBucket;
+    private volatile TokenBucket userBucket; // The user folder the download being sent is charged to
+    private final AsyncLogger logger;
+    private final int port;
     private InputStream in;
-    private OutputStream out;
+    private OutboundQueue out;
     private boolean echo = true;
     private String location = BASE_FOLDER;
+    private SessionTable.Session session;
+    private final DirectoryPager directoryPager;
+    private volatile String command; // The request being handled, only kept while protocol events are recorded
 
     /**
      * Prepares the communication with the client.
@@ -55,6 +161,14 @@ public class ClientHandler implements Runnable {
     public ClientHandler(Socket socket, Server server) {
         this.socket = socket;
         this.server = server;
+        this.config = server.getConfig();
+        this.logger = server.getLogger();
+        this.port = socket.getPort();
+        this.transferBuffer = new byte[this.config.getTransferBufferBytes()];
+        this.bufferPool = server.getBufferPool();
+        this.bandwidthShaper = server.getBandwidthShaper();
+        this.downloadBucket = this.bandwidthShaper.newConnectionBucket(this.connectionId);
+        this.directoryPager = new DirectoryPager(this.config.getListingPageEntries(), this.config.getTransferBufferBytes());
     }
 
     /**
@@ -82,10 +196,12 @@ public class ClientHandler implements Runnable {
             return;
         }
 
-        // Handle requests
-        this.connectionLoop();
-
-        this.close();
+        // Handle requests, whatever ends the loop the client must not be left on a dead connection
+        try {
+            this.connectionLoop();
+        } finally {
+            this.close();
+        }
     }
 
     /**
@@ -98,7 +214,7 @@ public class ClientHandler implements Runnable {
         try {
             this.socket.setKeepAlive(value);
         } catch (SocketException e) {
-            Main.println("[Server] Failed to set Keep Alive True for client.");
+            this.logger.info(this.port, "Failed to set Keep Alive True for client.");
             return false;
         }
         return true;
@@ -111,32 +227,30 @@ public class ClientHandler implements Runnable {
      */
     private boolean getAndSetDataStreams() {
         try {
-            this.in = this.socket.getInputStream();
-            this.out = this.socket.getOutputStream();
+            this.in = new ChannelInputStream(this.socket.getChannel());
+            this.out = new OutboundQueue(this.socket, this.server.getOutboundWriter(), this.bufferPool, this.config);
         } catch (IOException e) {
-            Main.println("[Server] Failed to get data streams from client socket.");
+            this.logger.info(this.port, "Failed to get data streams from client socket.");
             return false;
         }
         return true;
     }
 
     /**
-     * Sends the server greeting message to the client.
+     * Starts a new session and sends the server greeting message to the client.
+     * <p>
+     * The last line of the greeting is "Session: " followed by the session token,
+     * which the client can send with "resume" after reconnecting.
      *
      * @return true if the message was sent, false otherwise.
      */
     private boolean sendGreetingMessage() {
         try {
-            byte[] greetingBytes = (String.format("Hello and welcome to the server!!\n" +
-                            "By default the server is in Echo mode. This means anything you\n" +
-                            "send to the server will just get send right back to you!\n" +
-                            "Well, most of the time... To learn how to disable this, send\n" +
-                            "a message with content-type as \"%s\" and a String in the content as \"%s\".\n" +
-                            "This will get you the help page that lists all available commands\n" +
-                            "and what they do!",
-                    COMMAND_CONTENT_TYPE,
-                    HELP_COMMAND
-            )).getBytes();
+            this.session = this.server.getSessionTable().create(this.location, this.echo);
+            byte[] tokenBytes = this.session.token.getBytes();
+            byte[] greetingBytes = new byte[GREETING_BYTES.length + tokenBytes.length];
+            System.arraycopy(GREETING_BYTES, 0, greetingBytes, 0, GREETING_BYTES.length);
+            System.arraycopy(tokenBytes, 0, greetingBytes, GREETING_BYTES.length, tokenBytes.length);
             Message greetingMessage = new Message(
                     OK,
                     this.location,
@@ -145,7 +259,7 @@ public class ClientHandler implements Runnable {
             );
             this.sendMessage(greetingMessage);
         } catch (IOException e) {
-            Main.println("[Server] Failed to send greeting");
+            this.logger.info(this.port, "Failed to send greeting");
             return false;
         }
         return true;
@@ -163,32 +277,148 @@ public class ClientHandler implements Runnable {
             // Read request
             Message request;
             try {
-                request = readIncoming();
+                MessageHeader header = this.readHeader();
+
+                // Echoed content goes straight back out as it arrives
+                if (this.isRelayedEcho(header)) {
+                    this.relayEcho(header);
+                    continue;
+                }
+
+                // Too big to hold in memory, so discard it instead
+                if (header.contentLength > this.config.getMaxContentBytes()) {
+                    this.rejectOversizedRequest(header);
+                    continue;
+                }
+
+                request = this.readIncoming(header);
             } catch (IOException e) {
-                Main.println("[Server] Failed to read incoming message.");
+                this.logger.info(this.port, "Failed to read incoming message.");
                 return;
             }
 
-            // Handle request
-            Message response = this.handleRequest(request);
-
-            // Send response
+            // Handle request and send response
             try {
-                this.sendMessage(response);
+                this.scheduleRequest(request);
             } catch (IOException e) {
-                Main.println("[Server] Failed to send response message.");
+                this.logger.info(this.port, "Failed to send response message.");
                 return;
             }
         }
     }
 
+    /**
+     * Handles a request on the pool for its kind, see {@link RequestScheduler}, and sends the response.
+     * <p>
+     * The response is sent from this connection's own thread, so a client that is slow to
+     * read it holds up no pool thread. Only bulk requests stream parts from the pool.
+     * A bulk request that finds the bulk pool full is answered with 503 right away,
+     * and one that fails with an unexpected exception is answered with 400.
+     *
+     * @param request the message from the client.
+     * @throws IOException if there was an error while sending the response.
+     */
+    private void scheduleRequest(Message request) throws IOException {
+        RequestScheduler scheduler = this.server.getRequestScheduler();
+        // The content goes back to the pool once handled, nothing in the response points into it
+        Callable<Message> task = () -> {
+            try {
+                return this.handleRequest(request);
+            } finally {
+                this.releaseContent(request);
+            }
+        };
+        Message response;
+        try {
+            if (!this.isBulkRequest(request)) {
+                response = scheduler.runInteractive(task);
+            } else {
+                try {
+                    response = scheduler.runBulk(task);
+                } catch (RejectedExecutionException e) {
+                    this.releaseContent(request);
+                    response = new Message(
+                            SERVICE_UNAVAILABLE,
+                            this.location,
+                            CONSOLE_TEXT_CONTENT_TYPE,
+                            "The server is busy, try again later.".getBytes()
+                    );
+                }
+            }
+            this.session.save(this.location, this.echo);
+        } catch (RuntimeException e) {
+            // A bug in one handler, the state it left behind isn't saved
+            // The content is back in the pool by now, so only its type is logged
+            this.logger.error(this.port, "[scheduleRequest] Request failed, content-type: " + request.contentType, e);
+            response = new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    "The request failed on the server.".getBytes()
+            );
+        }
+        try {
+            this.sendMessage(response);
+        } finally {
+            this.command = null;
+            this.userBucket = null;
+        }
+    }
+
+    /**
+     * Checks if a request reads a lot from disk: downloads, syncs and folder walks.
+     *
+     * @param request the message from the client.
+     * @return true if the request should run on the bulk pool.
+     */
+    private boolean isBulkRequest(Message request) {
+        if (this.echo) {
+            return false;
+        }
+        if (request.contentType.equals(SIGNATURES_CONTENT_TYPE)) {
+            return true;
+        }
+        if (!request.contentType.equals(COMMAND_CONTENT_TYPE)) {
+            return false;
+        }
+        String command = new String(request.content, 0, Math.min(request.contentLength, DOWNLOAD_COMMAND.length()));
+        return command.startsWith(DOWNLOAD_COMMAND) || command.startsWith(FIND_COMMAND)
+                || this.splitCommand(command, DU_COMMAND)[1] != null;
+    }
+
     /**
      * Creates a return message based on the client's request.
      *
      * @param request the message from the client.
      * @return a message to send to the client.
+     * @throws IOException if there was an error while streaming part of the response.
+     */
+    private Message handleRequest(Message request) throws IOException {
+        RequestEvent event = new RequestEvent();
+        event.begin();
+        if (event.isEnabled()) {
+            this.command = this.describeCommand(request);
+        }
+
+        Message response = this.routeRequest(request);
+
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.contentType = request.contentType;
+            event.statusCode = response.statusCode;
+            event.commit();
+        }
+        return response;
+    }
+
+    /**
+     * Hands a request to the method for its kind.
+     *
+     * @param request the message from the client.
+     * @return a message to send to the client.
+     * @throws IOException if there was an error while streaming part of the response.
      */
-    private Message handleRequest(Message request) {
+    private Message routeRequest(Message request) throws IOException {
         if (this.echo) {
             return this.handleEchoMessage(request);
         }
@@ -199,15 +429,46 @@ public class ClientHandler implements Runnable {
             return this.handleCommands(request);
         }
 
+        // Block signatures of a file the client already has
+        if (request.contentType.equals(SIGNATURES_CONTENT_TYPE)) {
+            return this.handleSync(request);
+        }
+
         // Fail safe. Send Bad Request.
         return new Message(
                 BAD_REQUEST,
-                request.location,
+                this.location,
                 CONSOLE_TEXT_CONTENT_TYPE,
                 "Unknown request.".getBytes()
         );
     }
 
+    /**
+     * Gets a short description of a request for the protocol events, ex. "download snek.png".
+     *
+     * @param request the message from the client.
+     * @return the first line of a command, or the content type of anything else.
+     */
+    private String describeCommand(Message request) {
+        if (!request.contentType.equals(COMMAND_CONTENT_TYPE)) {
+            return request.contentType;
+        }
+        String command = new String(request.content, 0, Math.min(request.contentLength, MAX_EVENT_COMMAND_LENGTH));
+        int newline = command.indexOf('\n');
+        return newline < 0 ? command : command.substring(0, newline);
+    }
+
+    /**
+     * Fills in the fields every protocol event has.
+     *
+     * @param event the event to fill in.
+     */
+    private void describe(ProtocolEvent event) {
+        event.port = this.port;
+        event.command = this.command;
+        event.location = this.location;
+    }
+
     /**
      * Creates a message to return based on the request when echo is enabled.
      *
@@ -219,7 +480,15 @@ public class ClientHandler implements Runnable {
 
         // Client tried sending a command while in echo
         if (request.contentType.equals(COMMAND_CONTENT_TYPE)) {
-            String content = new String(request.content);
+            String content = new String(request.content, 0, request.contentLength);
+            // Resume command ignores echo, a new connection always starts in echo mode
+            if (content.startsWith(RESUME_COMMAND)) {
+                return this.resumeSession(content.substring(RESUME_COMMAND.length()));
+            }
+            // Ping command ignores echo, heartbeats are sent in either mode
+            if (content.equals(PING_COMMAND) || content.startsWith(PING_COMMAND + " ")) {
+                return this.createPongMessage(content.substring(PING_COMMAND.length()).trim());
+            }
             switch (content) {
                 // Help command ignores echo
                 case HELP_COMMAND:
@@ -247,6 +516,58 @@ public class ClientHandler implements Runnable {
         return response;
     }
 
+    /**
+     * Checks if a request will only be echoed, so its content never has to be held in memory.
+     * <p>
+     * In echo mode everything is echoed except the few commands that ignore echo,
+     * which are all short commands.
+     *
+     * @param header the header of the request, the content has not been read yet.
+     * @return true if the content should be relayed back as it arrives.
+     */
+    private boolean isRelayedEcho(MessageHeader header) {
+        if (!this.echo) {
+            return false;
+        }
+        return !header.contentType.equals(COMMAND_CONTENT_TYPE) || header.contentLength > MAX_ECHO_COMMAND_BYTES;
+    }
+
+    /**
+     * Echoes a request by sending the response header first and then relaying the
+     * content from the InputStream to the OutputStream one buffer at a time.
+     * <p>
+     * The client starts getting its echo after the first buffer arrives,
+     * no matter how large the content is. It has to read while it is still sending,
+     * as the client's reader thread does, or a payload bigger than the socket buffers
+     * leaves both ends waiting on each other until the write timeout evicts it.
+     *
+     * @param header the header of the request, the content has not been read yet.
+     * @throws IOException if there was an error reading from or writing to the Socket.
+     */
+    private void relayEcho(MessageHeader header) throws IOException {
+        this.sendHeader(OK, this.location, CONSOLE_TEXT_CONTENT_TYPE, header.contentLength);
+        this.relayBytes(header.contentLength);
+        this.out.flush();
+    }
+
+    /**
+     * Discards the content of a request that is larger than the server is willing to
+     * hold in memory and sends a Bad Request.
+     *
+     * @param header the header of the request, the content has not been read yet.
+     * @throws IOException if there was an error reading from or writing to the Socket.
+     */
+    private void rejectOversizedRequest(MessageHeader header) throws IOException {
+        this.skipBytes(header.contentLength);
+        this.sendMessage(new Message(
+                BAD_REQUEST,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                String.format("Content of %d bytes is larger than the limit of %d bytes.",
+                        header.contentLength, this.config.getMaxContentBytes()).getBytes()
+        ));
+    }
+
     /**
      * Create a message the just repeats back the information in the request.
      *
@@ -258,14 +579,15 @@ public class ClientHandler implements Runnable {
                 OK,
                 this.location,
                 CONSOLE_TEXT_CONTENT_TYPE,
-                request.content
+                // Only short commands get here, the content itself goes back to the pool
+                Arrays.copyOf(request.content, request.contentLength)
         );
     }
 
-    private Message handleCommands(Message request) {
+    private Message handleCommands(Message request) throws IOException {
         // Check if input is a command and split the parts if true
         String[] parts;
-        String baseInput = new String(request.content);
+        String baseInput = new String(request.content, 0, request.contentLength);
         String command = baseInput;
         String commandVariable = "";
 
@@ -297,10 +619,25 @@ public class ClientHandler implements Runnable {
                         OK,
                         this.location,
                         CONSOLE_TEXT_CONTENT_TYPE,
-                        this.getLs(request.location).getBytes()
+                        this.getLs(this.location).getBytes()
                 );
+            case LIST_COMMAND:
+                return this.handleList(commandVariable.trim());
             case CD_COMMAND:
+                String previousLocation = this.location;
                 boolean pass = this.cdLocation(commandVariable);
+                // The user folder is served by another node in the cluster, send the client there
+                String owner = pass ? this.server.getOwner(this.location) : null;
+                if (owner != null) {
+                    String target = this.location;
+                    this.location = previousLocation;
+                    return new Message(
+                            TEMPORARY_REDIRECT,
+                            target,
+                            REDIRECT_CONTENT_TYPE,
+                            owner.getBytes()
+                    );
+                }
                 if (pass) {
                     return new Message(
                             OK,
@@ -317,18 +654,193 @@ public class ClientHandler implements Runnable {
                     );
                 }
             case DOWNLOAD_COMMAND:
-                return handleDownload(commandVariable);
+                return this.handleDownload(commandVariable);
+            case STATS_COMMAND:
+                return new Message(
+                        OK,
+                        this.location,
+                        CONSOLE_TEXT_CONTENT_TYPE,
+                        this.server.getMetrics().snapshot().getBytes()
+                );
+            case FIND_COMMAND:
+                return this.handleFind(commandVariable);
+            case DU_COMMAND:
+                return this.handleDu(commandVariable.trim());
+            case SEARCH_COMMAND:
+                return this.handleSearch(commandVariable);
+            case RESUME_COMMAND:
+                return this.resumeSession(commandVariable);
+            case TRACE_COMMAND:
+                return this.handleTrace(commandVariable.trim());
+            case PING_COMMAND:
+                return this.createPongMessage(commandVariable.trim());
+            case WATCH_COMMAND:
+                return this.handleWatch(commandVariable.trim(), true);
+            case UNWATCH_COMMAND:
+                return this.handleWatch(commandVariable.trim(), false);
             default:
                 String content = String.format("\"%s\" is not a recognized command.", command);
                 return new Message(
                         BAD_REQUEST,
-                        request.location,
+                        this.location,
                         CONSOLE_TEXT_CONTENT_TYPE,
                         content.getBytes()
                 );
         }
     }
 
+    /**
+     * Answers a ping with the time on the server, so the client can tell the network
+     * round trip apart from the time spent handling its requests, and how far its clock is off.
+     * <p>
+     * The content is the time in microseconds since the epoch as 8 bytes, followed by the
+     * token the client sent, ex. the time it sent the ping.
+     *
+     * @param token whatever followed "ping", sent back as is.
+     * @return the pong message.
+     */
+    private Message createPongMessage(String token) {
+        Instant now = Instant.now();
+        byte[] tokenBytes = token.getBytes();
+        return new Message(
+                OK,
+                this.location,
+                UPDATE_PONG_CONTENT_TYPE,
+                ByteBuffer.allocate(Long.BYTES + tokenBytes.length)
+                        .putLong(now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000)
+                        .put(tokenBytes)
+                        .array()
+        );
+    }
+
+    /**
+     * Starts or stops pushing the changes under a folder to this client.
+     *
+     * @param path  the folder relative to the current location, empty for the current location.
+     * @param watch true to start watching, false to stop.
+     * @return a message saying what happened.
+     */
+    private Message handleWatch(String path, boolean watch) throws IOException {
+        Message elsewhere = this.checkServedHere(path.isEmpty() ? "." : path);
+        if (elsewhere != null) {
+            return elsewhere;
+        }
+        File folder = this.resolveInBase(path.isEmpty() ? "." : path);
+        if (folder == null || !folder.isDirectory()) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("\"%s\" is not a valid location", path).getBytes()
+            );
+        }
+
+        WatchHub watchHub = this.server.getWatchHub();
+        String result;
+        if (watch) {
+            result = String.format("Watching %s for changes.", watchHub.subscribe(folder, this.out));
+        } else {
+            result = watchHub.unsubscribe(folder, this.out)
+                    ? String.format("Stopped watching \"%s\".", path)
+                    : String.format("Not watching \"%s\".", path);
+        }
+        return new Message(
+                OK,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                result.getBytes()
+        );
+    }
+
+    /**
+     * Starts or stops recording the protocol events of the whole server.
+     *
+     * @param mode "on" or "off".
+     * @return a message saying what happened.
+     */
+    private Message handleTrace(String mode) {
+        if (!this.config.isTraceCommandEnabled()) {
+            // A recording covers every connection and writes a file on the server
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    "Tracing is not enabled on this server.".getBytes()
+            );
+        }
+        ProtocolRecording recording = this.server.getProtocolRecording();
+        String traceFile = this.config.getTraceFile();
+        String result;
+        switch (mode) {
+            case "on":
+                result = recording.start(Duration.ofMillis(this.config.getTraceThresholdMillis()))
+                        ? "Recording protocol events."
+                        : "Already recording protocol events.";
+                break;
+            case "off":
+                try {
+                    result = recording.stop(Paths.get(traceFile))
+                            ? String.format("Wrote protocol events to %s", traceFile)
+                            : "Not recording protocol events.";
+                } catch (IOException e) {
+                    this.logger.error(this.port, "Failed to write protocol events to " + traceFile, e);
+                    return new Message(
+                            BAD_REQUEST,
+                            this.location,
+                            CONSOLE_TEXT_CONTENT_TYPE,
+                            String.format("Failed to write protocol events to %s", traceFile).getBytes()
+                    );
+                }
+                break;
+            default:
+                return new Message(
+                        BAD_REQUEST,
+                        this.location,
+                        CONSOLE_TEXT_CONTENT_TYPE,
+                        String.format("\"%s\" is not \"on\" or \"off\"", mode).getBytes()
+                );
+        }
+        return new Message(
+                OK,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                result.getBytes()
+        );
+    }
+
+    /**
+     * Restores the location and echo mode of an earlier connection.
+     * <p>
+     * The session of this connection is replaced by the resumed one,
+     * so the token keeps working for the next reconnect.
+     *
+     * @param token the session token from the greeting of the earlier connection.
+     * @return a message with the restored location and echo mode.
+     */
+    private Message resumeSession(String token) {
+        SessionTable sessionTable = this.server.getSessionTable();
+        SessionTable.Session resumed = sessionTable.resume(token.trim());
+        if (resumed == null) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    "Unknown or expired session.".getBytes()
+            );
+        }
+        // A connection still holding the token keeps its state but no longer saves it
+        sessionTable.remove(this.session);
+        this.session = resumed;
+        this.location = resumed.getLocation();
+        this.echo = resumed.isEcho();
+        return new Message(
+                OK,
+                this.location,
+                UPDATE_SESSION_CONTENT_TYPE,
+                ("" + this.echo).getBytes()
+        );
+    }
+
     /**
      * Separates a command and its variable if the input starts with the command.
      * <p>
@@ -343,8 +855,9 @@ public class ClientHandler implements Runnable {
         // Default return value if the input was not the given command
         String[] values = new String[]{input, null};
 
-        // Check if the input starts with the command
-        if (input.startsWith(command)) {
+        // Check if the input starts with the command as a whole word, so "dump" isn't taken for "du"
+        if (input.startsWith(command) && (command.endsWith(" ")
+                || input.length() == command.length() || input.charAt(command.length()) == ' ')) {
             values[0] = command; // command
             values[1] = input.substring(command.length()); // commandVariable
         }
@@ -364,11 +877,41 @@ public class ClientHandler implements Runnable {
                         "help ------------ Gets the help page. Returns text for the console.\n" +
                         "toggle echo ----- Toggles echo mode. Returns text for the console.\n" +
                         "ls -------------- Lists files and folders of the current location. Returns text for the console\n" +
+                        "list [cursor] --- Lists the current location with the type, size and modified time of every\n" +
+                        "                  entry, a page at a time. Returns \"%s\" content, see server.DirectoryPager.\n" +
+                        "                  Send \"list <cursor>\" with the cursor of a page to get the next one.\n" +
                         "cd <path> ------- Changes the folder you are currently in. ex. \"cd alice\"\n" +
+                        "                  In a cluster, a user folder on another node returns status 307 with\n" +
+                        "                  the location and the \"host:port\" of that node as the content.\n" +
                         "download <file> - Downloads the specified file. ex. \"download snek.png\"\n" +
+                        "                  A folder is downloaded as a zip archive. ex. \"download pictures\"\n" +
+                        "                  Add a newline and the SHA-256 hash of your copy to only download it\n" +
+                        "                  if it changed. Returns status 304 if it did not.\n" +
+                        "stats ----------- Lists the server metrics, such as download rates. Returns text for the console\n" +
+                        "find <pattern> -- Finds files and folders under the current location with names matching\n" +
+                        "                  the glob pattern. ex. \"find *.txt\". Streams text for the console\n" +
+                        "du [path] ------- Lists the size in bytes of everything in a folder. Streams text for the console\n" +
+                        "search <terms> -- Lists the text files containing the terms, best matches first. Returns text for the console\n" +
+                        "resume <token> -- Restores the location and echo mode of an earlier connection, works in echo mode.\n" +
+                        "                  The token is on the last line of the greeting. Returns \"%s\" with the echo mode\n" +
+                        "watch [path] ---- Pushes a message with the \"%s\" content type whenever something is\n" +
+                        "                  created, changed or deleted under the folder, until \"unwatch [path]\"\n" +
+                        "ping [token] ---- Returns \"%s\" with the server time in microseconds as an 8 byte long,\n" +
+                        "                  followed by the token. Works in echo mode.\n" +
+                        "trace on|off ---- Records timings of every protocol phase as JFR events. \"trace off\" writes\n" +
+                        "                  them to a file on the server, if the server allows it. Returns text for the console\n" +
+                        "Sync ------------ Send a message with \"%s\" as the content-type header, and the path of\n" +
+                        "                  a file followed by the block signatures of your copy in the content payload.\n" +
+                        "                  Returns \"%s\" content with only the changes to apply to your copy.\n" +
                         "\n" +
                         "Hope that helps!",
-                COMMAND_CONTENT_TYPE
+                COMMAND_CONTENT_TYPE,
+                LISTING_PAGE_CONTENT_TYPE,
+                UPDATE_SESSION_CONTENT_TYPE,
+                UPDATE_WATCH_CONTENT_TYPE,
+                UPDATE_PONG_CONTENT_TYPE,
+                SIGNATURES_CONTENT_TYPE,
+                DELTA_CONTENT_TYPE
         );
         return new Message(
                 OK,
@@ -382,16 +925,54 @@ public class ClientHandler implements Runnable {
      * Packs the requested file in a message.
      *
      * Returns a Bad Request message if the file cannot be found.
+     * If the client sent the hash of its copy and it matches the file,
+     * returns a Not Modified message without the file instead.
      *
-     * @param requestedFilePath the file to put in the message.
+     * Folders are sent as a zip archive instead, see {@link #handleFolderDownload(File)}.
+     *
+     * @param commandVariable the file to put in the message, optionally followed by a newline and a hash.
      * @return a message with the requested file as the content.
+     * @throws IOException if there was an error while streaming a folder.
+     */
+    private Message handleDownload(String commandVariable) throws IOException {
+        DownloadEvent event = new DownloadEvent();
+        event.begin();
+
+        Message response = this.prepareDownload(commandVariable);
+
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.path = commandVariable.split("\n", 2)[0];
+            event.bytes = response.contentLength;
+            event.statusCode = response.statusCode;
+            event.commit();
+        }
+        return response;
+    }
+
+    /**
+     * Does the work of {@link #handleDownload(String)}.
      */
-    private Message handleDownload(String requestedFilePath) {
+    private Message prepareDownload(String commandVariable) throws IOException {
+        String[] parts = commandVariable.split("\n", 2);
+        String requestedFilePath = parts[0];
+        String clientHash = parts.length > 1 ? parts[1].trim() : null;
+
+        Message elsewhere = this.checkServedHere(requestedFilePath);
+        if (elsewhere != null) {
+            return elsewhere;
+        }
+        File folder = this.resolveInBase(requestedFilePath);
+        if (folder != null && folder.isDirectory()) {
+            this.chargeDownloadTo(folder);
+            return this.handleFolderDownload(folder);
+        }
+
         try {
-            String filePath = "src/" + this.location + "/" + requestedFilePath;
+            String filePath = this.toFile(this.location).getPath() + "/" + requestedFilePath;
             String ext = filePath.substring(filePath.lastIndexOf('.') + 1);
 
-            String fileName = requestedFilePath.substring(requestedFilePath.lastIndexOf("/"));
+            String fileName = requestedFilePath.substring(requestedFilePath.lastIndexOf("/") + 1);
             boolean isValidFile = false;
             for (String validFile : VALID_FILES) {
                 if (fileName.equals(validFile)) {
@@ -412,6 +993,15 @@ public class ClientHandler implements Runnable {
             if (!file.exists()) {
                 throw new FileNotFoundException();
             }
+            if (clientHash != null && clientHash.equalsIgnoreCase(this.server.getFileHashCache().getHash(file))) {
+                return new Message(
+                        NOT_MODIFIED,
+                        this.location,
+                        NONE_CONTENT_TYPE,
+                        new byte[0]
+                );
+            }
+            this.chargeDownloadTo(file);
             byte[] content = this.readFileData(file);
             return new Message(
                     OK,
@@ -426,63 +1016,571 @@ public class ClientHandler implements Runnable {
                     CONSOLE_TEXT_CONTENT_TYPE,
                     String.format("Could not find file with path: %s", requestedFilePath).getBytes()
             );
+        } catch (IOException e) {
+            this.logger.error(this.port, "[handleDownload] Failed to hash file: " + requestedFilePath, e);
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("Could not read file with path: %s", requestedFilePath).getBytes()
+            );
         }
     }
 
     /**
-     * Returns a String of the contained files and folders of the given location.
+     * Streams a folder to the client as a zip archive built on the fly.
      * <p>
-     * Example output: "[File] file1\n[Folder] folder1"
+     * The archive is cut into Partial Content messages of one transfer buffer each
+     * as it is written, and the returned message holds the last piece. Nothing is
+     * staged in memory or on disk, and the pieces go through the bandwidth limits
+     * like any other download.
      *
-     * @param location the directory to search.
-     * @return a newline delimited list of the contained files and folders.
+     * If a file fails part way through, the pieces already sent can't be taken back,
+     * so the archive ends with a Bad Request message instead and the client drops it.
+     *
+     * @param folder the folder to send.
+     * @return the final message of the archive.
+     * @throws IOException if there was an error while streaming the archive.
      */
-    private String getLs(String location) {
-        StringBuilder sb = new StringBuilder();
-        File currentFile = new File("src/" + location);
-        File[] files = currentFile.listFiles();
-
-        if (files == null || files.length == 0) {
-            return "";
-        }
-        for (int i = 0; i < files.length - 1; i++) {
-            if (files[i].isDirectory()) {
-                sb.append("[Folder] ").append(files[i].getName()).append("\n");
-            } else {
-                sb.append("[File] ").append(files[i].getName()).append("\n");
-            }
-        }
-        int i = files.length - 1;
-        if (files[i].isDirectory()) {
-            sb.append("[Folder] ").append(files[i].getName());
-        } else {
-            sb.append("[File] ").append(files[i].getName());
+    private Message handleFolderDownload(File folder) throws IOException {
+        try (PartialMessageOutputStream partialMessages = new PartialMessageOutputStream(ZIP_CONTENT_TYPE)) {
+            int fileCount = new FolderArchiver(this.logger, this.port, this.transferBuffer)
+                    .archive(folder.toPath(), partialMessages);
+            this.logger.info(this.port, String.format("Sent folder %s with %d files", folder.getName(), fileCount));
+            return new Message(
+                    OK,
+                    this.location,
+                    ZIP_CONTENT_TYPE,
+                    partialMessages.remaining()
+            );
+        } catch (FolderArchiver.EntryFailedException e) {
+            this.logger.error(this.port, "[handleFolderDownload] Stopped sending folder " + folder.getName(), e);
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("A file in %s changed or could not be read, try again.", folder.getName()).getBytes()
+            );
         }
-        return sb.toString();
     }
 
     /**
-     * Changes the current location of the client.
+     * Sends the changes between the client's copy of a file and the server's file.
+     * <p>
+     * Content format: [int pathLength][path] followed by the block signatures,
+     * see {@link DeltaEncoder.ClientSignatures}. The delta is streamed like a folder
+     * download and paced by the same bandwidth limits.
      *
-     * @param path the desired.
-     * @return true if the location changed, false otherwise.
+     * @param request the message from the client.
+     * @return the final message of the delta.
+     * @throws IOException if there was an error while streaming the delta.
      */
-    private boolean cdLocation(String path) {
+    private Message handleSync(Message request) throws IOException {
+        String requestedFilePath;
+        DeltaEncoder.ClientSignatures signatures;
         try {
-            StringBuilder newLocation = new StringBuilder(this.location);
-
-            String[] parts = path.split("/");
-
-            if (parts[0].length() == 0) {
-                return true;
-            }
+            ByteBuffer content = ByteBuffer.wrap(request.content, 0, request.contentLength);
+            byte[] pathBytes = new byte[content.getInt()];
+            content.get(pathBytes);
+            requestedFilePath = new String(pathBytes);
+            signatures = new DeltaEncoder.ClientSignatures(content);
+        } catch (IOException | RuntimeException e) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    "Malformed sync request.".getBytes()
+            );
+        }
 
-            for (String part : parts) {
-                if (part.equals("..")) {
-                    newLocation = new StringBuilder(newLocation.substring(0, newLocation.lastIndexOf("/")));
+        Message elsewhere = this.checkServedHere(requestedFilePath);
+        if (elsewhere != null) {
+            return elsewhere;
+        }
+        File file = this.resolveInBase(requestedFilePath);
+        if (file == null || !file.isFile() || !file.canRead()) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("Could not find file with path: %s", requestedFilePath).getBytes()
+            );
+        }
+        if (file.length() > DeltaEncoder.MAX_FILE_BYTES) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("%s is too big to sync, download it instead.", requestedFilePath).getBytes()
+            );
+        }
+
+        this.chargeDownloadTo(file);
+        try (PartialMessageOutputStream partialMessages = new PartialMessageOutputStream(DELTA_CONTENT_TYPE)) {
+            long dataBytes = this.server.getDeltaEncoder().encode(file, signatures, partialMessages);
+            this.logger.info(this.port, String.format("Synced %s, sent %d of %d bytes",
+                    file.getName(), dataBytes, file.length()));
+            return new Message(
+                    OK,
+                    this.location,
+                    DELTA_CONTENT_TYPE,
+                    partialMessages.remaining()
+            );
+        }
+    }
+
+    /**
+     * Sends whatever is written to it as Partial Content messages of a fixed size.
+     * <p>
+     * The bytes that don't fill a whole message are kept until {@link #remaining()} is called.
+     * The buffer comes from the {@link BufferPool} and goes back on {@link #close()}.
+     */
+    private class PartialMessageOutputStream extends OutputStream {
+        private final String contentType;
+        private final int messageBytes = transferBuffer.length;
+        private byte[] buffer = bufferPool.acquire(this.messageBytes);
+        private int count = 0;
+
+        PartialMessageOutputStream(String contentType) {
+            this.contentType = contentType;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.buffer[this.count++] = (byte) b;
+            if (this.count == this.messageBytes) {
+                this.sendBuffer();
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int length = Math.min(len, this.messageBytes - this.count);
+                System.arraycopy(b, off, this.buffer, this.count, length);
+                this.count += length;
+                off += length;
+                len -= length;
+                if (this.count == this.messageBytes) {
+                    this.sendBuffer();
+                }
+            }
+        }
+
+        private void sendBuffer() throws IOException {
+            // Copied into the outbound queue before returning, so the buffer can be filled again right away
+            sendMessage(new Message(PARTIAL_CONTENT, location, this.contentType, this.buffer), this.count);
+            this.count = 0;
+        }
+
+        /**
+         * @return the bytes written since the last message was sent.
+         */
+        byte[] remaining() {
+            byte[] remaining = new byte[this.count];
+            System.arraycopy(this.buffer, 0, remaining, 0, this.count);
+            this.count = 0;
+            return remaining;
+        }
+
+        @Override
+        public void close() {
+            if (this.buffer != null) {
+                bufferPool.release(this.buffer);
+                this.buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Finds every file and folder under the current location whose name matches a glob pattern.
+     * <p>
+     * Matches are streamed to the client as they are found, and the returned message
+     * holds the number of matches.
+     *
+     * @param pattern the glob pattern, ex. "*.txt".
+     * @return the final message of the results.
+     * @throws IOException if there was an error while streaming the results.
+     */
+    private Message handleFind(String pattern) throws IOException {
+        Message elsewhere = this.checkServedHere(".");
+        if (elsewhere != null) {
+            return elsewhere;
+        }
+        BlockingQueue<String> results = new ArrayBlockingQueue<>(STREAM_BATCH_SIZE * 4);
+        Path root = this.toFile(this.location).toPath();
+        FileTreeWalker.Walk walk;
+        try {
+            walk = this.server.getFileTreeWalker().find(root, pattern, results);
+        } catch (IllegalArgumentException e) {
+            // Includes PatternSyntaxException, ex. an unclosed "[abc"
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("\"%s\" is not a valid pattern", pattern).getBytes()
+            );
+        }
+        IOException failure = this.streamResults(walk, results);
+        if (failure != null) {
+            return this.walkFailed(failure);
+        }
+        return new Message(
+                OK,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                String.format("Found %d matches.", walk.getCount()).getBytes()
+        );
+    }
+
+    /**
+     * Adds up the size of everything in a folder relative to the current location.
+     * <p>
+     * The size of each entry is streamed to the client as soon as it is known, and the
+     * returned message holds the total.
+     *
+     * @param path the folder to measure, empty for the current location.
+     * @return the final message of the results.
+     * @throws IOException if there was an error while streaming the results.
+     */
+    private Message handleDu(String path) throws IOException {
+        Message elsewhere = this.checkServedHere(path);
+        if (elsewhere != null) {
+            return elsewhere;
+        }
+        File folder = this.resolveInBase(path);
+        if (folder == null || !folder.isDirectory()) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("\"%s\" is not a valid location", path).getBytes()
+            );
+        }
+
+        BlockingQueue<String> results = new ArrayBlockingQueue<>(STREAM_BATCH_SIZE * 4);
+        FileTreeWalker.Walk walk = this.server.getFileTreeWalker().du(folder.toPath(), results);
+        IOException failure = this.streamResults(walk, results);
+        if (failure != null) {
+            return this.walkFailed(failure);
+        }
+        return new Message(
+                OK,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                String.format("%d\ttotal", walk.getBytes()).getBytes()
+        );
+    }
+
+    /**
+     * Searches the text files of all users for the given terms.
+     * <p>
+     * In a cluster only the user folders served by this node are searched.
+     * <p>
+     * Example output: "0.693 users/alice/documents/todo.txt"
+     *
+     * @param query the terms to search for.
+     * @return a message with one result per line, best match first.
+     */
+    private Message handleSearch(String query) {
+        SearchIndex searchIndex = this.server.getSearchIndex();
+        StringBuilder sb = new StringBuilder();
+        for (SearchIndex.Result result : searchIndex.search(query)) {
+            if (this.server.getOwner(result.path) != null) {
+                continue; // Served by another node, its copy here may be stale
+            }
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append(String.format("%.3f %s", result.score, result.path));
+        }
+        if (sb.length() == 0) {
+            sb.append("No matches.");
+        }
+        if (!searchIndex.isReady()) {
+            sb.append("\n(The index is still being built, results may be missing.)");
+        }
+        return new Message(
+                OK,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                sb.toString().getBytes()
+        );
+    }
+
+    /**
+     * Sends the results of a walk to the client in Partial Content messages while the walk is running.
+     * <p>
+     * Results are batched so a big walk doesn't send one message per result, but a
+     * batch never waits longer than a moment. The walk is stopped if the client goes away.
+     *
+     * @param walk    the running walk.
+     * @param results the queue the walk puts its results on.
+     * @return why the walk failed, or null if it finished.
+     * @throws IOException if there was an error while sending.
+     */
+    private IOException streamResults(FileTreeWalker.Walk walk, BlockingQueue<String> results) throws IOException {
+        List<String> batch = new ArrayList<>();
+        long lastFlush = System.nanoTime();
+        IOException failure = null;
+        try {
+            while (!walk.isDone() || !results.isEmpty()) {
+                String result = results.poll(STREAM_FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (result != null) {
+                    batch.add(result);
+                    results.drainTo(batch, STREAM_BATCH_SIZE - batch.size());
+                }
+
+                boolean waitedTooLong = System.nanoTime() - lastFlush > TimeUnit.MILLISECONDS.toNanos(STREAM_FLUSH_MILLIS);
+                if (batch.size() >= STREAM_BATCH_SIZE || (waitedTooLong && !batch.isEmpty())) {
+                    this.sendMessage(new Message(
+                            PARTIAL_CONTENT,
+                            this.location,
+                            CONSOLE_TEXT_CONTENT_TYPE,
+                            String.join("\n", batch).getBytes()
+                    ));
+                    batch.clear();
+                    lastFlush = System.nanoTime();
+                }
+            }
+            try {
+                walk.join();
+            } catch (IOException | RuntimeException e) {
+                // The results sent so far stand, the final message tells the client the rest is missing
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("[streamResults] Interrupted while streaming.", e);
+        } finally {
+            walk.cancel();
+        }
+
+        if (!batch.isEmpty()) {
+            this.sendMessage(new Message(
+                    PARTIAL_CONTENT,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.join("\n", batch).getBytes()
+            ));
+        }
+        return failure;
+    }
+
+    /**
+     * @return the final message of a walk that failed part way.
+     */
+    private Message walkFailed(IOException failure) {
+        this.logger.error(this.port, "[streamResults] Failed to walk a folder in " + this.location, failure);
+        return new Message(
+                BAD_REQUEST,
+                this.location,
+                CONSOLE_TEXT_CONTENT_TYPE,
+                "Failed to read part of the folder, the results are incomplete.".getBytes()
+        );
+    }
+
+    /**
+     * Gets the {@link File} of a location, ex. "users/alice" is the "alice" folder in the users folder.
+     *
+     * @param location the location.
+     * @return the File of the location.
+     */
+    private File toFile(String location) {
+        return new File(this.server.getUsersFolder().getParentFile(), location);
+    }
+
+    /**
+     * Resolves a path relative to the current location, making sure it stays in the base folder.
+     *
+     * @param path the relative path, may use "..".
+     * @return the File the path points to, or null if it leaves the base folder.
+     */
+    private File resolveInBase(String path) throws IOException {
+        Path base = this.toFile(BASE_FOLDER).getCanonicalFile().toPath();
+        Path resolved = this.toFile(this.location).getCanonicalFile().toPath().resolve(path).normalize();
+        if (!resolved.startsWith(base) || !Files.exists(resolved)) {
+            return null;
+        }
+        return resolved.toFile();
+    }
+
+    /**
+     * Charges the download being prepared to the user folder the file is in, not the one
+     * the client is in. A file outside any user folder is only charged to the connection and the server.
+     *
+     * @param file the file or folder that will be sent.
+     */
+    private void chargeDownloadTo(File file) throws IOException {
+        Path base = this.toFile(BASE_FOLDER).getCanonicalFile().toPath();
+        Path path = file.getCanonicalFile().toPath();
+        this.userBucket = path.startsWith(base) && path.getNameCount() > base.getNameCount()
+                ? this.bandwidthShaper.getUserBucket(path.getName(base.getNameCount()).toString())
+                : null;
+    }
+
+    /**
+     * Checks that a path relative to the current location is served by this node of the cluster.
+     * <p>
+     * A path in a user folder owned by another node gets a redirect to that node, the same
+     * as "cd" would. The users folder itself spans every node, so commands that walk all of
+     * it are refused in a cluster. Paths that leave the base folder are left to the caller.
+     *
+     * @param path the relative path, may use "..", the file doesn't need to exist here.
+     * @return a redirect or Bad Request message, or null if the path is served here.
+     */
+    private Message checkServedHere(String path) throws IOException {
+        if (!this.server.isClustered()) {
+            return null;
+        }
+        Path base = this.toFile(BASE_FOLDER).getCanonicalFile().toPath();
+        Path resolved = this.toFile(this.location).getCanonicalFile().toPath().resolve(path).normalize();
+        if (!resolved.startsWith(base)) {
+            return null;
+        }
+        if (resolved.equals(base)) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    "The users folder is spread over the cluster, use a user folder instead.".getBytes()
+            );
+        }
+        String userLocation = BASE_FOLDER + "/" + base.relativize(resolved).getName(0);
+        String owner = this.server.getOwner(userLocation);
+        if (owner == null) {
+            return null;
+        }
+        return new Message(
+                TEMPORARY_REDIRECT,
+                userLocation,
+                REDIRECT_CONTENT_TYPE,
+                owner.getBytes()
+        );
+    }
+
+    /**
+     * Returns a String of the contained files and folders of the given location.
+     * <p>
+     * Example output: "[File] file1\n[Folder] folder1"
+     *
+     * @param location the directory to search.
+     * @return a newline delimited list of the contained files and folders.
+     */
+    private String getLs(String location) {
+        ListEvent event = new ListEvent();
+        event.begin();
+
+        String listing = this.listLocation(location);
+
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.location = location;
+            event.entries = listing.isEmpty() ? 0 : (int) listing.chars().filter(c -> c == '\n').count() + 1;
+            event.commit();
+        }
+        return listing;
+    }
+
+    /**
+     * Does the work of {@link #getLs(String)}.
+     */
+    private String listLocation(String location) {
+        return this.server.getContentCache().getListing(this.toFile(location));
+    }
+
+    /**
+     * Gets a page of the current location with the type, size and modified time of every entry.
+     * <p>
+     * Unlike "ls" the folder is never held in memory all at once, so any folder can be listed.
+     *
+     * @param cursor the cursor of the last page, or empty for the first page.
+     * @return a message with the page, see {@link DirectoryPager} for the format.
+     */
+    private Message handleList(String cursor) {
+        ListEvent event = new ListEvent();
+        event.begin();
+
+        byte[] page;
+        try {
+            page = this.directoryPager.page(this.toFile(this.location).toPath(), cursor);
+        } catch (IllegalArgumentException e) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    e.getMessage().getBytes()
+            );
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("\"%s\" is not a valid location", this.location).getBytes()
+            );
+        } catch (IOException e) {
+            this.logger.error(this.port, "[handleList] Failed to list " + this.location, e);
+            return new Message(
+                    BAD_REQUEST,
+                    this.location,
+                    CONSOLE_TEXT_CONTENT_TYPE,
+                    String.format("Could not read \"%s\"", this.location).getBytes()
+            );
+        }
+
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.location = this.location;
+            event.entries = ByteBuffer.wrap(page).getInt();
+            event.commit();
+        }
+        return new Message(
+                OK,
+                this.location,
+                LISTING_PAGE_CONTENT_TYPE,
+                page
+        );
+    }
+
+    /**
+     * Changes the current location of the client.
+     *
+     * @param path the desired.
+     * @return true if the location changed, false otherwise.
+     */
+    private boolean cdLocation(String path) {
+        ChangeLocationEvent event = new ChangeLocationEvent();
+        event.begin();
+
+        boolean success = this.changeLocation(path);
+
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.path = path;
+            event.success = success;
+            event.commit();
+        }
+        return success;
+    }
+
+    /**
+     * Does the work of {@link #cdLocation(String)}.
+     */
+    private boolean changeLocation(String path) {
+        try {
+            StringBuilder newLocation = new StringBuilder(this.location);
+
+            String[] parts = path.split("/");
+
+            if (parts[0].length() == 0) {
+                return true;
+            }
+
+            for (String part : parts) {
+                if (part.equals("..")) {
+                    newLocation = new StringBuilder(newLocation.substring(0, newLocation.lastIndexOf("/")));
                 } else {
-                    String testPath = "src/" + newLocation + "/" + part;
-                    File newFile = new File(testPath);
+                    File newFile = this.toFile(newLocation + "/" + part);
                     if (!newFile.exists()) {
                         return false;
                     }
@@ -494,7 +1592,7 @@ public class ClientHandler implements Runnable {
         }
         // This is really only catching if lastIndexOf returns a -1
         catch (RuntimeException ex) {
-            Main.println(ex.getMessage());
+            this.logger.info(this.port, "[cdLocation] " + ex.getMessage());
             return false;
         }
     }
@@ -508,98 +1606,299 @@ public class ClientHandler implements Runnable {
      * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
      */
     private void sendMessage(Message message) throws IOException {
-        // Data bytes
-        byte[] statusCodeBytes = this.convertIntToBytes(message.statusCode);
-        byte[] locationBytes = message.location.getBytes();
-        byte[] contentTypeBytes = message.contentType.getBytes();
+        this.sendMessage(message, message.contentLength);
+    }
 
-        // Header bytes
-        byte[] locationLengthBytes = this.convertIntToBytes(locationBytes.length);
-        byte[] contentTypeLengthBytes = this.convertIntToBytes(contentTypeBytes.length);
-        byte[] contentLengthBytes = this.convertIntToBytes(message.content.length);
+    /**
+     * Sends a {@link Message} with only the start of its content, ex. a partly filled buffer.
+     *
+     * @param message       the Message to send.
+     * @param contentLength the number of content bytes to send.
+     * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
+     */
+    private void sendMessage(Message message, int contentLength) throws IOException {
+        SendEvent event = new SendEvent();
+        event.begin();
 
         // Send headers
-        out.write(statusCodeBytes);
-        out.write(locationLengthBytes);
-        out.write(contentTypeLengthBytes);
-        out.write(contentLengthBytes);
+        this.sendHeader(message.statusCode, message.location, message.contentType, contentLength);
 
-        // Send data
-        out.write(locationBytes);
-        out.write(contentTypeBytes);
-        out.write(message.content);
+        // Send data, files and deltas are paced by the bandwidth limits
+        if (message.contentType.startsWith(FILE_CONTENT_TYPE) || message.contentType.equals(DELTA_CONTENT_TYPE)) {
+            this.writeThrottled(message.content, contentLength);
+        } else {
+            out.write(message.content, 0, contentLength);
+        }
 
         // Force buffer to send payload
         out.flush();
+
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.statusCode = message.statusCode;
+            event.contentType = message.contentType;
+            event.bytes = contentLength;
+            event.commit();
+        }
     }
 
     /**
-     * Waits to receive data from the {@link Socket}
-     * and parses it into a {@link Message} object once received.
+     * Writes download content in chunks, waiting on the bandwidth limits before each chunk.
+     * <p>
+     * The user folder limit is picked from the current location, ex. "users/alice/pictures"
+     * is charged to "alice".
      *
-     * @return a Message from the Socket.
+     * @param content       the content to write.
+     * @param contentLength the number of bytes of the content to write.
+     * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
      */
-    private Message readIncoming() throws IOException {
-        // Read in the Header sizes
-        byte[] statusCodeBytes = this.readBytesIn(STATUS_CODE_BYTES);
-        byte[] locationLengthBytes = this.readBytesIn(LOCATION_LENGTH_BYTES);
-        byte[] contentTypeLengthBytes = this.readBytesIn(CONTENT_TYPE_LENGTH_BYTES);
-        byte[] contentLengthBytes = this.readBytesIn(CONTENT_LENGTH_BYTES);
+    private void writeThrottled(byte[] content, int contentLength) throws IOException {
+        TokenBucket userBucket = this.userBucket;
+        int chunkSize = this.transferBuffer.length;
+        for (int offset = 0; offset < contentLength; offset += chunkSize) {
+            int length = Math.min(chunkSize, contentLength - offset);
+            this.bandwidthShaper.acquire(this.downloadBucket, userBucket, length);
+            out.write(content, offset, length);
+        }
+    }
 
-        // Convert bytes to ints
-        int statusCode = this.convertBytesToInt(statusCodeBytes);
-        int locationLength = this.convertBytesToInt(locationLengthBytes);
-        int contentTypeLength = this.convertBytesToInt(contentTypeLengthBytes);
-        int contentLength = this.convertBytesToInt(contentLengthBytes);
+    /**
+     * Sends everything of a message except the content through the {@link Socket}.
+     * <p>
+     * Exactly contentLength bytes must be written to the OutputStream afterwards.
+     *
+     * @param statusCode    the status code of the message.
+     * @param location      the location of the message.
+     * @param contentType   the content type of the message.
+     * @param contentLength the number of content bytes that will follow.
+     * @throws IOException if there was an error while writing to the Socket's {@link OutputStream}.
+     */
+    private void sendHeader(int statusCode, String location, String contentType, int contentLength) throws IOException {
+        // Data bytes, the location rarely changes between messages
+        if (!location.equals(this.lastLocation)) {
+            this.lastLocation = location;
+            this.lastLocationBytes = location.getBytes();
+        }
+        byte[] locationBytes = this.lastLocationBytes;
+        byte[] contentTypeBytes = contentTypeBytes(contentType);
 
-        // Read in data
-        byte[] locationBytes = this.readBytesIn(locationLength);
-        byte[] contentTypeBytes = this.readBytesIn(contentTypeLength);
-        byte[] contentBytes = this.readBytesIn(contentLength);
+        // Pushed messages wait until all of this one is queued
+        this.out.beginFrame(HEADER_BYTES + locationBytes.length + contentTypeBytes.length + (long) contentLength);
 
-        // Convert bytes to Strings, except data (which may be a file)
-        String location = new String(locationBytes);
-        String contentType = new String(contentTypeBytes);
+        // Send headers
+        this.headerOut.putInt(0, statusCode)
+                .putInt(STATUS_CODE_BYTES, locationBytes.length)
+                .putInt(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES, contentTypeBytes.length)
+                .putInt(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES + CONTENT_TYPE_LENGTH_BYTES, contentLength);
+        out.write(this.headerOut.array());
 
-        // Create Message object
-        return new Message(statusCode, location, contentType, contentBytes);
+        // Send data, except the content
+        out.write(locationBytes);
+        out.write(contentTypeBytes);
     }
 
-    // Utility
+    /**
+     * @return the bytes of a content type, shared by every connection.
+     */
+    private static byte[] contentTypeBytes(String contentType) {
+        byte[] bytes = CONTENT_TYPE_BYTES.get(contentType);
+        if (bytes == null) {
+            bytes = contentType.getBytes();
+            if (CONTENT_TYPE_BYTES.size() < MAX_CACHED_CONTENT_TYPES) {
+                CONTENT_TYPE_BYTES.put(contentType, bytes);
+            }
+        }
+        return bytes;
+    }
 
     /**
-     * Converts a byte array of size 4 into an int.
+     * Waits to receive the header of the next message from the {@link Socket}.
      * <p>
-     * If the array is not of size 4 a {@link RuntimeException}
-     * will be thrown.
+     * The location and content type are checked against the configured limits
+     * before anything is allocated for them. The content is left on the Socket.
+     *
+     * @return the header of the next message.
+     * @throws IOException if there was an error reading, or the client broke the protocol.
+     */
+    private MessageHeader readHeader() throws IOException {
+        // Read in the Header sizes, into the same buffer every time
+        byte[] headerBytes = this.headerIn.array();
+        this.readBytesIn(headerBytes, 0, STATUS_CODE_BYTES);
+
+        // Timed from here, waiting for the client to send the next request is not the server's time
+        HeaderReadEvent event = new HeaderReadEvent();
+        event.begin();
+
+        this.readBytesIn(headerBytes, STATUS_CODE_BYTES, HEADER_BYTES - STATUS_CODE_BYTES);
+
+        // Convert bytes to ints
+        int statusCode = this.headerIn.getInt(0);
+        int locationLength = this.headerIn.getInt(STATUS_CODE_BYTES);
+        int contentTypeLength = this.headerIn.getInt(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES);
+        int contentLength = this.headerIn.getInt(STATUS_CODE_BYTES + LOCATION_LENGTH_BYTES + CONTENT_TYPE_LENGTH_BYTES);
+
+        // Lengths past the limits can't be skipped cheaply, so the connection is dropped
+        this.checkLength("location", locationLength, this.config.getMaxLocationBytes());
+        this.checkLength("content-type", contentTypeLength, this.config.getMaxContentTypeBytes());
+        this.checkLength("content", contentLength, Integer.MAX_VALUE);
+
+        // Read in data, except the content
+        String location = this.readLocation(locationLength);
+        String contentType = this.readContentType(contentTypeLength);
+
+        // Replaced by the command itself once the content is read
+        this.command = contentType;
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.contentType = contentType;
+            event.contentLength = contentLength;
+            event.commit();
+        }
+        return new MessageHeader(statusCode, location, contentType, contentLength);
+    }
+
+    /**
+     * Reads in the content following the given header
+     * and parses it into a {@link Message} object once received.
      *
-     * @param bytes the byte array representing an int.
-     * @return the int represented by the given byte array.
+     * @param header the header already read from the Socket.
+     * @return a Message from the Socket.
      */
-    private int convertBytesToInt(byte[] bytes) {
-        // Must pass in array of length 4
-        if (bytes.length != 4) {
-            throw new RuntimeException("[convertBytesToInt] passed in byte array not of size 4.");
+    private Message readIncoming(MessageHeader header) throws IOException {
+        BodyReadEvent event = new BodyReadEvent();
+        event.begin();
+
+        // From the pool, released once the request is handled, see scheduleRequest
+        byte[] contentBytes = header.contentLength > 0 ? this.bufferPool.acquire(header.contentLength) : NO_CONTENT;
+        try {
+            this.readBytesIn(contentBytes, 0, header.contentLength);
+        } catch (IOException e) {
+            if (contentBytes != NO_CONTENT) {
+                this.bufferPool.release(contentBytes);
+            }
+            throw e;
+        }
+        Message message = new Message(header.statusCode, header.location, header.contentType, contentBytes,
+                header.contentLength);
+
+        if (event.isEnabled()) {
+            this.command = this.describeCommand(message);
+        }
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.bytes = header.contentLength;
+            event.commit();
         }
+        return message;
+    }
 
-        // Convert bytes to BigInteger
-        BigInteger bigInteger = new BigInteger(bytes);
+    /**
+     * Hands the content of a request back to the pool, it must not be used afterwards.
+     *
+     * @param request a request from {@link #readIncoming(MessageHeader)}.
+     */
+    private void releaseContent(Message request) {
+        if (request.content != NO_CONTENT) {
+            this.bufferPool.release(request.content);
+        }
+    }
 
-        // Convert BigInteger to int
-        return bigInteger.intValue();
+    /**
+     * Reads the location of a request. Clients send back the location they were given,
+     * so the last one sent is returned when the bytes match it instead of a new String.
+     *
+     * @param length the number of bytes.
+     * @return the location.
+     * @throws IOException if the bytes could not all be read.
+     */
+    private String readLocation(int length) throws IOException {
+        byte[] bytes = this.bufferPool.acquire(length);
+        try {
+            this.readBytesIn(bytes, 0, length);
+            if (this.lastLocation != null && Arrays.equals(bytes, 0, length, this.lastLocationBytes, 0, this.lastLocationBytes.length)) {
+                return this.lastLocation;
+            }
+            return new String(bytes, 0, length);
+        } finally {
+            this.bufferPool.release(bytes);
+        }
     }
 
     /**
-     * Converts an int into an array of bytes.
-     * <p>
-     * Uses a default number of "4" bytes to represent an int.
+     * Reads the content type of a request, returning the constant for the known ones.
+     *
+     * @param length the number of bytes.
+     * @return the content type.
+     * @throws IOException if the bytes could not all be read.
+     */
+    private String readContentType(int length) throws IOException {
+        byte[] bytes = this.bufferPool.acquire(length);
+        try {
+            this.readBytesIn(bytes, 0, length);
+            for (String contentType : REQUEST_CONTENT_TYPES) {
+                byte[] known = contentTypeBytes(contentType);
+                if (Arrays.equals(bytes, 0, length, known, 0, known.length)) {
+                    return contentType;
+                }
+            }
+            return new String(bytes, 0, length);
+        } finally {
+            this.bufferPool.release(bytes);
+        }
+    }
+
+    /**
+     * Copies the given number of bytes from the InputStream to the OutputStream
+     * through the transfer buffer, flushing each piece as soon as it is read.
+     *
+     * @param amountOfBytes the number of bytes to copy.
+     * @throws IOException if there was an error reading or writing.
+     */
+    private void relayBytes(int amountOfBytes) throws IOException {
+        int remaining = amountOfBytes;
+        while (remaining > 0) {
+            int bytesReadIn = in.read(this.transferBuffer, 0, Math.min(remaining, this.transferBuffer.length));
+            if (bytesReadIn < 0) {
+                throw new IOException("[relayBytes] Missing bytes.");
+            }
+            out.write(this.transferBuffer, 0, bytesReadIn);
+            out.flush();
+            remaining -= bytesReadIn;
+        }
+    }
+
+    /**
+     * Reads and throws away the given number of bytes from the InputStream
+     * using the transfer buffer.
+     *
+     * @param amountOfBytes the number of bytes to discard.
+     * @throws IOException if there was an error reading.
+     */
+    private void skipBytes(int amountOfBytes) throws IOException {
+        int remaining = amountOfBytes;
+        while (remaining > 0) {
+            int bytesReadIn = in.read(this.transferBuffer, 0, Math.min(remaining, this.transferBuffer.length));
+            if (bytesReadIn < 0) {
+                throw new IOException("[skipBytes] Missing bytes.");
+            }
+            remaining -= bytesReadIn;
+        }
+    }
+
+    // Utility
+
+    /**
+     * Checks that a length read from a header is within 0 and the given limit.
      *
-     * @param num the int to convert.
-     * @return an array of bytes representing the number.
+     * @param name   the name of the frame, used in the error message.
+     * @param length the length sent by the client.
+     * @param limit  the largest allowed length.
+     * @throws IOException if the length is outside of the limits.
      */
-    private byte[] convertIntToBytes(int num) {
-        final int defaultBytesInInt = 4;
-        return ByteBuffer.allocate(defaultBytesInInt).putInt(num).array();
+    private void checkLength(String name, int length, int limit) throws IOException {
+        if (length < 0 || length > limit) {
+            throw new IOException(String.format("[readHeader] Invalid %s length: %d", name, length));
+        }
     }
 
     /**
@@ -620,21 +1919,34 @@ public class ClientHandler implements Runnable {
 
         // Create byte array
         byte[] bytesIn = new byte[amountOfBytes];
+        this.readBytesIn(bytesIn, 0, amountOfBytes);
 
-        // Read from the InputStream
-        try {
-            // Read in the bytes to fill the array
-            int bytesReadIn = in.read(bytesIn);
+        // Return the bytes
+        return bytesIn;
+    }
 
-            if (bytesReadIn != amountOfBytes) {
-                throw new IOException("Missing bytes.");
+    /**
+     * Reads exactly the given number of bytes from the {@link InputStream} into an existing array.
+     *
+     * @param bytesIn       the array to read into.
+     * @param offset        where in the array to start.
+     * @param amountOfBytes the number of bytes to read.
+     * @throws IOException if the bytes could not all be read.
+     */
+    private void readBytesIn(byte[] bytesIn, int offset, int amountOfBytes) throws IOException {
+        try {
+            // Keep reading until the array is full, large frames arrive in pieces
+            int totalBytesReadIn = 0;
+            while (totalBytesReadIn < amountOfBytes) {
+                int bytesReadIn = in.read(bytesIn, offset + totalBytesReadIn, amountOfBytes - totalBytesReadIn);
+                if (bytesReadIn < 0) {
+                    throw new IOException("Missing bytes.");
+                }
+                totalBytesReadIn += bytesReadIn;
             }
         } catch (IOException e) {
             throw new IOException("[readBytesIn] Failed to read from Input Stream.");
         }
-
-        // Return the bytes
-        return bytesIn;
     }
 
     /**
@@ -649,28 +1961,35 @@ public class ClientHandler implements Runnable {
      * @return a byte array containing the data read in from the File
      */
     private byte[] readFileData(File file) {
-        // Create variables
-        FileInputStream fileInputStream;
-        int fileLength = (int) file.length(); // Number of bytes in the file
-        byte[] fileData = new byte[fileLength]; // The final data byte array
+        FileReadEvent event = new FileReadEvent();
+        event.begin();
 
-        try {
-            // Create the FileInputStream
-            fileInputStream = new FileInputStream(file);
+        byte[] fileData = this.readFile(file);
 
-            // Read in the file to fill in the array
-            int bytesReadIn = fileInputStream.read(fileData);
-            if (bytesReadIn != fileLength) {
-                throw new IOException("Missing bytes");
-            }
-        } catch (FileNotFoundException e) {
+        if (event.shouldCommit()) {
+            this.describe(event);
+            event.path = file.getPath();
+            event.bytes = fileData.length;
+            event.commit();
+        }
+        return fileData;
+    }
+
+    /**
+     * Does the work of {@link #readFileData(File)}.
+     */
+    private byte[] readFile(File file) {
+        byte[] fileData;
+        try {
+            // Popular files are served from memory
+            fileData = this.server.getContentCache().getFile(file);
+        } catch (FileNotFoundException | NoSuchFileException e) {
             // File was not found
-            System.err.printf("[readFileData] File Not Found: %s%n", file.getName());
+            this.logger.error(this.port, "[readFileData] File Not Found: " + file.getName(), null);
             return new byte[0];
         } catch (IOException e) {
             // Failed to read the file
-            System.err.printf("[readFileData] Failed To Read File: %s%n", file.getName());
-            e.printStackTrace();
+            this.logger.error(this.port, "[readFileData] Failed To Read File: " + file.getName(), e);
             return new byte[0];
         }
 
@@ -683,12 +2002,21 @@ public class ClientHandler implements Runnable {
      * Closes the {@link Socket}.
      */
     public void close() {
-        Main.println("[Server] closing connection using port: " + this.socket.getPort());
+        this.logger.info(this.port, "closing connection");
+        this.bandwidthShaper.removeConnectionBucket(this.connectionId);
+        this.directoryPager.close();
+        if (this.out != null) {
+            this.server.getWatchHub().unsubscribeAll(this.out);
+            this.out.close(CLOSE_LINGER_MILLIS);
+        }
         try {
+            if (this.in != null) {
+                this.in.close();
+            }
             this.socket.close();
             this.server.removeClientHandler(this);
         } catch (IOException ioException) {
-            System.err.println("[Server] Failed to close connection.");
+            this.logger.error(this.port, "Failed to close connection.", ioException);
         }
         Thread.currentThread().interrupt();
     }
@@ -0,0 +1,379 @@
+package server;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.WatchEvent;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Keeps the contents of small files and the listings of folders in memory, so downloads
+ * and "ls" of popular locations don't go to the disk.
+ * <p>
+ * Entries are checked against the last modified time (and size, for files) on every get,
+ * and dropped when a {@link FileWatcher} reports a change. The least recently used entries
+ * are dropped once the cache holds more than its capacity. Concurrent misses on the same
+ * version of a file share a single read, see {@link SingleFlight}, so a file everyone asks
+ * for at once is read from disk only once.
+ * <p>
+ * The most used entries are saved as a hot set when the server closes, and loaded again in
+ * parallel on the next start by {@link #warmUp(File, int)}, so the first requests after a
+ * restart find them in memory too.
+ */
+public class ContentCache implements FileChangeListener {
+
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path baseFolder;
+    private final long capacityBytes;
+    private final long maxFileBytes;
+    private final AsyncLogger logger;
+
+    // Least recently used first, guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    // Keyed by canonical path and version, "path@lastModified:length"
+    private final SingleFlight<String, byte[]> fileLoads = new SingleFlight<>();
+    private final AtomicInteger warmed = new AtomicInteger();
+    private volatile int warmTotal = 0;
+
+    /**
+     * A cached file or folder listing.
+     */
+    private static class Entry {
+        final boolean listing;
+        final long lastModified;
+        final long length;
+        final byte[] content;
+        final String text;
+        final long bytes;
+        long uses = 1;
+
+        Entry(long lastModified, long length, byte[] content) {
+            this.listing = false;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.content = content;
+            this.text = null;
+            this.bytes = content.length;
+        }
+
+        Entry(long lastModified, String text) {
+            this.listing = true;
+            this.lastModified = lastModified;
+            this.length = 0;
+            this.content = null;
+            this.text = text;
+            this.bytes = 2L * text.length();
+        }
+    }
+
+    /**
+     * @param usersFolder   the folder whose files and listings are cached.
+     * @param capacityBytes the most bytes of content and listings kept.
+     * @param maxFileBytes  the largest file kept, larger ones are read every time.
+     * @param logger        where the warm-up and problems with the hot set are logged.
+     * @param metrics       where the hit rate and size of the cache are reported.
+     */
+    public ContentCache(File usersFolder, long capacityBytes, long maxFileBytes, AsyncLogger logger, Metrics metrics) {
+        this.baseFolder = usersFolder.toPath().toAbsolutePath().normalize().getParent();
+        this.capacityBytes = capacityBytes;
+        this.maxFileBytes = maxFileBytes;
+        this.logger = logger;
+        metrics.register("contentCache.hits", this.hits::sum);
+        metrics.register("contentCache.misses", this.misses::sum);
+        metrics.register("contentCache.coalesced", this.fileLoads::getShared);
+        metrics.register("contentCache.entries", () -> {
+            synchronized (this) {
+                return this.entries.size();
+            }
+        });
+        metrics.register("contentCache.bytes", () -> {
+            synchronized (this) {
+                return this.bytes;
+            }
+        });
+        metrics.register("warmup.loaded", this.warmed::get);
+        metrics.register("warmup.total", () -> this.warmTotal);
+    }
+
+    /**
+     * Gets the content of a file, reading it only if it changed since it was cached.
+     *
+     * @param file the file to read.
+     * @return the content of the file, must not be changed since it may be shared.
+     * @throws IOException if the file could not be read.
+     */
+    public byte[] getFile(File file) throws IOException {
+        String key = this.toKey(file);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (key != null) {
+            synchronized (this) {
+                Entry entry = this.entries.get(key);
+                if (entry != null && !entry.listing && entry.lastModified == lastModified && entry.length == length) {
+                    entry.uses++;
+                    this.hits.increment();
+                    return entry.content;
+                }
+            }
+        }
+
+        this.misses.increment();
+        String flightKey = file.getCanonicalPath() + "@" + lastModified + ":" + length;
+        return this.fileLoads.run(flightKey, () -> {
+            byte[] content = Files.readAllBytes(file.toPath());
+            // Stamped with the version from before the read, a change during the read is caught by the next get
+            if (key != null && lastModified != 0 && content.length == length && length <= this.maxFileBytes) {
+                this.put(key, new Entry(lastModified, length, content));
+            }
+            return content;
+        });
+    }
+
+    /**
+     * Gets the listing of a folder, listing it only if it changed since it was cached.
+     *
+     * @param folder the folder to list.
+     * @return a newline delimited list of the contained files and folders, ex. "[File] file1\n[Folder] folder1".
+     */
+    public String getListing(File folder) {
+        String key = this.toKey(folder);
+        long lastModified = folder.lastModified();
+        if (key != null) {
+            synchronized (this) {
+                Entry entry = this.entries.get(key);
+                if (entry != null && entry.listing && entry.lastModified == lastModified) {
+                    entry.uses++;
+                    this.hits.increment();
+                    return entry.text;
+                }
+            }
+        }
+
+        this.misses.increment();
+        String listing = list(folder);
+        if (key != null && lastModified != 0) {
+            this.put(key, new Entry(lastModified, listing));
+        }
+        return listing;
+    }
+
+    /**
+     * Lists a folder without the cache.
+     */
+    private static String list(File folder) {
+        StringBuilder sb = new StringBuilder();
+        File[] files = folder.listFiles();
+
+        if (files == null || files.length == 0) {
+            return "";
+        }
+        for (int i = 0; i < files.length - 1; i++) {
+            if (files[i].isDirectory()) {
+                sb.append("[Folder] ").append(files[i].getName()).append("\n");
+            } else {
+                sb.append("[File] ").append(files[i].getName()).append("\n");
+            }
+        }
+        int i = files.length - 1;
+        if (files[i].isDirectory()) {
+            sb.append("[Folder] ").append(files[i].getName());
+        } else {
+            sb.append("[File] ").append(files[i].getName());
+        }
+        return sb.toString();
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry old = this.entries.put(key, entry);
+        if (old != null) {
+            // Keep the count, it's the same file in a newer version
+            entry.uses += old.uses;
+            this.bytes -= old.bytes;
+        }
+        this.bytes += entry.bytes;
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while (this.bytes > this.capacityBytes && iterator.hasNext()) {
+            this.bytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry old = this.entries.remove(key);
+        if (old != null) {
+            this.bytes -= old.bytes;
+        }
+    }
+
+    @Override
+    public void onFileChange(Path path, WatchEvent.Kind<?> kind) {
+        if (kind == OVERFLOW) {
+            return; // Every get checks the version anyway
+        }
+        String key = this.toKey(path.toFile());
+        if (key != null) {
+            this.remove(key);
+        }
+        String parentKey = path.getParent() == null ? null : this.toKey(path.getParent().toFile());
+        if (parentKey != null) {
+            this.remove(parentKey);
+        }
+    }
+
+    /**
+     * Turns a file into the location style key of the cache, ex. "users/alice/todo.txt".
+     *
+     * @return the key, or null if the file is outside of the base folder.
+     */
+    private String toKey(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        if (!path.startsWith(this.baseFolder)) {
+            return null;
+        }
+        return this.baseFolder.relativize(path).toString().replace('\\', '/');
+    }
+
+    // Hot set
+
+    /**
+     * Writes the most used entries to a temporary file and moves it over the hot set file,
+     * so a crash while saving never leaves a broken one.
+     *
+     * @param hotSetFile where to save the hot set.
+     * @param maxEntries the most entries to save.
+     */
+    public void saveHotSet(File hotSetFile, int maxEntries) {
+        List<Map.Entry<String, Entry>> snapshot;
+        synchronized (this) {
+            snapshot = new ArrayList<>(this.entries.entrySet());
+        }
+        snapshot.sort((a, b) -> Long.compare(b.getValue().uses, a.getValue().uses));
+        int count = Math.min(maxEntries, snapshot.size());
+
+        File tempFile = new File(hotSetFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(FORMAT_VERSION);
+            output.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                output.writeBoolean(snapshot.get(i).getValue().listing);
+                output.writeUTF(snapshot.get(i).getKey());
+            }
+        } catch (IOException e) {
+            this.logger.error(0, "[ContentCache] Failed to save the hot set.", e);
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), hotSetFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.logger.error(0, "[ContentCache] Failed to replace the hot set file.", e);
+        }
+    }
+
+    /**
+     * Loads the entries of a saved hot set into the cache in the background, see {@link #awaitWarm(double, long)}.
+     * A missing or broken hot set file warms nothing.
+     *
+     * @param hotSetFile the file saved by {@link #saveHotSet(File, int)}.
+     * @param threads    the number of threads loading entries.
+     */
+    public void warmUp(File hotSetFile, int threads) {
+        List<Boolean> listings = new ArrayList<>();
+        List<String> keys = new ArrayList<>();
+        if (hotSetFile.isFile()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(hotSetFile)))) {
+                if (input.readInt() == FORMAT_VERSION) {
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i++) {
+                        listings.add(input.readBoolean());
+                        keys.add(input.readUTF());
+                    }
+                }
+            } catch (IOException e) {
+                this.logger.error(0, "[ContentCache] Failed to load the hot set, starting cold.", e);
+                listings.clear();
+                keys.clear();
+            }
+        }
+        this.warmTotal = keys.size();
+        if (keys.isEmpty()) {
+            return;
+        }
+
+        long start = System.nanoTime();
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService warmers = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "cache-warmup-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < keys.size(); i++) {
+            boolean listing = listings.get(i);
+            File file = this.baseFolder.resolve(keys.get(i)).toFile();
+            warmers.execute(() -> {
+                try {
+                    if (listing) {
+                        this.getListing(file);
+                    } else if (file.isFile()) {
+                        this.getFile(file);
+                    }
+                } catch (NoSuchFileException e) {
+                    // Deleted since the hot set was saved
+                } catch (IOException e) {
+                    this.logger.error(0, "[ContentCache] Failed to warm up " + file, e);
+                }
+                if (this.warmed.incrementAndGet() == this.warmTotal) {
+                    this.logger.info(0, String.format("[ContentCache] Warmed up %d entries in %d ms.",
+                            this.warmTotal, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+                }
+                synchronized (this.warmed) {
+                    this.warmed.notifyAll();
+                }
+            });
+        }
+        // The threads end once the last entry is loaded
+        warmers.shutdown();
+    }
+
+    /**
+     * Waits until the given fraction of the hot set is loaded.
+     *
+     * @param fraction      the fraction of entries to wait for, from 0 to 1.
+     * @param timeoutMillis the longest to wait.
+     * @return true if the fraction was loaded, false if the wait timed out.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public boolean awaitWarm(double fraction, long timeoutMillis) throws InterruptedException {
+        int target = (int) Math.ceil(Math.min(1, Math.max(0, fraction)) * this.warmTotal);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        synchronized (this.warmed) {
+            while (this.warmed.get() < target) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this.warmed, remainingNanos);
+            }
+        }
+        return true;
+    }
+}
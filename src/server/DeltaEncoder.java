@@ -0,0 +1,226 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Works out how a client can rebuild the server's version of a file from its own copy.
+ * <p>
+ * This is the rsync algorithm. The client sends the weak and strong checksums of each block
+ * of its copy. The server slides a window over its file, and wherever the window matches a
+ * client block it sends an instruction to copy that block, and sends the bytes in between as data.
+ * <p>
+ * Delta format: [int blockSize][long newLength][32 byte SHA-256 of the new file], then
+ * instructions until END:
+ * COPY [int firstBlock][int blockCount], DATA [int length][bytes], END.
+ */
+public class DeltaEncoder {
+
+    public static final byte COPY = 0;
+    public static final byte DATA = 1;
+    public static final byte END = 2;
+
+    // Block sizes the client may ask for, smaller blocks would make the server checksum every few bytes
+    public static final int MIN_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    // Files are mapped and indexed with ints, so bigger ones are downloaded whole instead
+    public static final long MAX_FILE_BYTES = Integer.MAX_VALUE;
+
+    private static final int STRONG_CHECKSUM_BYTES = 16;
+    private static final int MAX_DATA_BYTES = 64 * 1024;
+
+    private final BlockSignatureCache signatureCache;
+    private final FileHashCache fileHashCache;
+
+    /**
+     * The checksums of every block of the client's copy.
+     */
+    public static class ClientSignatures {
+        public final int blockSize;
+        private final Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        private final byte[][] strong;
+
+        /**
+         * Reads the signatures sent by the client.
+         * <p>
+         * Format: [int blockSize][int blockCount] then for each block [int weak][16 byte MD5].
+         *
+         * @param content the buffer positioned at the start of the signatures.
+         * @throws IOException if the signatures are malformed.
+         */
+        public ClientSignatures(ByteBuffer content) throws IOException {
+            this.blockSize = content.getInt();
+            int blockCount = content.getInt();
+            if (this.blockSize < MIN_BLOCK_SIZE || this.blockSize > MAX_BLOCK_SIZE || blockCount < 0
+                    || content.remaining() != (long) blockCount * (4 + STRONG_CHECKSUM_BYTES)) {
+                throw new IOException("[ClientSignatures] Malformed block signatures.");
+            }
+            this.strong = new byte[blockCount][STRONG_CHECKSUM_BYTES];
+            for (int i = 0; i < blockCount; i++) {
+                int weak = content.getInt();
+                content.get(this.strong[i]);
+                this.blocksByWeak.computeIfAbsent(weak, ignored -> new ArrayList<>(1)).add(i);
+            }
+        }
+
+        /**
+         * Finds a client block with the given checksums.
+         *
+         * @param weak   the weak checksum.
+         * @param strong computes the strong checksum, only called if the weak one matches.
+         * @return the index of the block, or -1 if no block matches.
+         */
+        int find(int weak, StrongChecksum strong) {
+            List<Integer> candidates = this.blocksByWeak.get(weak);
+            if (candidates == null) {
+                return -1;
+            }
+            byte[] checksum = strong.compute();
+            for (int candidate : candidates) {
+                if (Arrays.equals(this.strong[candidate], checksum)) {
+                    return candidate;
+                }
+            }
+            return -1;
+        }
+    }
+
+    interface StrongChecksum {
+        byte[] compute();
+    }
+
+    public DeltaEncoder(BlockSignatureCache signatureCache, FileHashCache fileHashCache) {
+        this.signatureCache = signatureCache;
+        this.fileHashCache = fileHashCache;
+    }
+
+    /**
+     * Writes the delta that turns the client's copy into the given file.
+     *
+     * @param file             the server's version of the file.
+     * @param clientSignatures the checksums of the client's copy.
+     * @param out              where the delta is written.
+     * @return the number of bytes sent as data instead of copied.
+     * @throws IOException if the file could not be read, is bigger than {@link #MAX_FILE_BYTES},
+     *                     or the delta could not be written.
+     */
+    public long encode(File file, ClientSignatures clientSignatures, OutputStream out) throws IOException {
+        if (file.length() > MAX_FILE_BYTES) {
+            throw new IOException(String.format("[DeltaEncoder] %s is too big to sync.", file.getName()));
+        }
+        int blockSize = clientSignatures.blockSize;
+        DataOutputStream delta = new DataOutputStream(out);
+        delta.writeInt(blockSize);
+        delta.writeLong(file.length());
+        delta.write(hexToBytes(this.fileHashCache.getHash(file)));
+
+        // Blocks that line up with the server's own blocks are checked with cached signatures
+        BlockSignatureCache.Signatures cached = this.signatureCache.get(file, blockSize);
+        MessageDigest md5 = BlockSignatureCache.md5();
+        long dataBytes = 0;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int length = (int) Math.min(channel.size(), MAX_FILE_BYTES);
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            RollingChecksum rolling = new RollingChecksum(blockSize);
+            boolean rollingValid = false;
+            int position = 0;
+            int dataStart = 0;
+            int copyStart = -1;
+            int copyCount = 0;
+
+            while ((long) position + blockSize <= length) {
+                int match;
+                if (position % blockSize == 0 && position / blockSize < cached.weak.length) {
+                    // Same window as the cached block, so no need to checksum anything
+                    int block = position / blockSize;
+                    match = clientSignatures.find(cached.weak[block], () -> cached.strong[block]);
+                } else {
+                    if (!rollingValid) {
+                        rolling.reset(data, position);
+                        rollingValid = true;
+                    }
+                    int windowStart = position;
+                    match = clientSignatures.find(rolling.value(),
+                            () -> BlockSignatureCache.strongChecksum(md5, data, windowStart, blockSize));
+                }
+
+                if (match >= 0) {
+                    if (dataStart < position) {
+                        writeCopy(delta, copyStart, copyCount);
+                        copyStart = -1;
+                        dataBytes += writeData(delta, data, dataStart, position);
+                    }
+                    // Runs of blocks in order are sent as a single copy
+                    if (copyStart >= 0 && copyStart + copyCount == match) {
+                        copyCount++;
+                    } else {
+                        writeCopy(delta, copyStart, copyCount);
+                        copyStart = match;
+                        copyCount = 1;
+                    }
+                    position += blockSize;
+                    dataStart = position;
+                    rollingValid = false;
+                    continue;
+                }
+
+                if (!rollingValid) {
+                    rolling.reset(data, position);
+                    rollingValid = true;
+                }
+                if ((long) position + blockSize < length) {
+                    rolling.roll(data.get(position), data.get(position + blockSize));
+                }
+                position++;
+            }
+
+            // Whatever is pending, in order
+            writeCopy(delta, copyStart, copyCount);
+            dataBytes += writeData(delta, data, dataStart, length);
+        }
+        delta.writeByte(END);
+        delta.flush();
+        return dataBytes;
+    }
+
+    private static void writeCopy(DataOutputStream delta, int firstBlock, int blockCount) throws IOException {
+        if (firstBlock < 0 || blockCount == 0) {
+            return;
+        }
+        delta.writeByte(COPY);
+        delta.writeInt(firstBlock);
+        delta.writeInt(blockCount);
+    }
+
+    private static int writeData(DataOutputStream delta, ByteBuffer data, int start, int end) throws IOException {
+        byte[] chunk = new byte[Math.min(MAX_DATA_BYTES, Math.max(0, end - start))];
+        for (int offset = start; offset < end; offset += chunk.length) {
+            int length = Math.min(chunk.length, end - offset);
+            ByteBuffer slice = data.duplicate();
+            slice.position(offset);
+            slice.get(chunk, 0, length);
+            delta.writeByte(DATA);
+            delta.writeInt(length);
+            delta.write(chunk, 0, length);
+        }
+        return Math.max(0, end - start);
+    }
+
+    private static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,172 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Lists a folder one page at a time in a compact binary format, for the "list" command.
+ * <p>
+ * The folder is read with a {@link DirectoryStream} that stays open between pages, so
+ * listing a folder of any size takes one pass over it and no more memory than a page.
+ * Every page ends with a cursor to ask for the next one. A cursor that doesn't continue
+ * the open listing, ex. after reconnecting, lists the folder again and skips the entries
+ * already sent, which is only right if the folder didn't change in between.
+ * <p>
+ * Page format:
+ * [int entryCount][short cursorLength][cursor], then for every entry
+ * [byte type][long size][long lastModifiedMillis][short nameLength][name],
+ * with strings in UTF-8 and an empty cursor on the last page.
+ * The type is {@link #FILE}, {@link #FOLDER} or {@link #OTHER}.
+ */
+public class DirectoryPager {
+
+    public static final byte FILE = 0;
+    public static final byte FOLDER = 1;
+    public static final byte OTHER = 2;
+
+    private final int pageEntries;
+    private final int pageBytes;
+
+    // Identifies the cursors of this pager, so one from another connection isn't taken for ours
+    private final long pagerId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    private long listing = 0;
+    private DirectoryStream<Path> stream;
+    private Iterator<Path> entries;
+    private long offset;
+
+    /**
+     * @param pageEntries the most entries in a page.
+     * @param pageBytes   the size a page stops growing at, it may be one entry over.
+     */
+    public DirectoryPager(int pageEntries, int pageBytes) {
+        this.pageEntries = Math.max(1, pageEntries);
+        this.pageBytes = pageBytes;
+    }
+
+    /**
+     * Gets the next page of a listing.
+     *
+     * @param folder the folder to start listing, used unless the cursor continues the open listing.
+     * @param cursor the cursor of the last page, or empty to start a new listing.
+     * @return the page.
+     * @throws IllegalArgumentException if the cursor is malformed.
+     * @throws IOException              if the folder could not be read.
+     */
+    public synchronized byte[] page(Path folder, String cursor) throws IOException {
+        if (cursor.isEmpty()) {
+            this.open(folder, 0);
+        } else if (!this.continues(cursor)) {
+            this.open(folder, this.parseOffset(cursor));
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.min(this.pageBytes, 64 * 1024));
+        DataOutputStream output = new DataOutputStream(bytes);
+        int count = 0;
+        boolean more;
+        try {
+            while (count < this.pageEntries && bytes.size() < this.pageBytes && this.entries.hasNext()) {
+                writeEntry(output, this.entries.next());
+                count++;
+            }
+            more = this.entries.hasNext();
+        } catch (DirectoryIteratorException e) {
+            this.close();
+            throw e.getCause();
+        }
+        this.offset += count;
+
+        String nextCursor = "";
+        if (more) {
+            nextCursor = this.pagerId + ":" + this.listing + ":" + this.offset;
+        } else {
+            this.close();
+        }
+
+        byte[] cursorBytes = nextCursor.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream page = new ByteArrayOutputStream(6 + cursorBytes.length + bytes.size());
+        DataOutputStream pageOutput = new DataOutputStream(page);
+        pageOutput.writeInt(count);
+        pageOutput.writeShort(cursorBytes.length);
+        pageOutput.write(cursorBytes);
+        bytes.writeTo(page);
+        return page.toByteArray();
+    }
+
+    private static void writeEntry(DataOutputStream output, Path path) throws IOException {
+        byte type = OTHER;
+        long size = 0;
+        long lastModified = 0;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            type = attributes.isDirectory() ? FOLDER : attributes.isRegularFile() ? FILE : OTHER;
+            size = attributes.size();
+            lastModified = attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            // Deleted since it was listed, or a broken link
+        }
+        byte[] name = path.getFileName().toString().getBytes(StandardCharsets.UTF_8);
+        output.writeByte(type);
+        output.writeLong(size);
+        output.writeLong(lastModified);
+        output.writeShort(name.length);
+        output.write(name);
+    }
+
+    private boolean continues(String cursor) {
+        return this.entries != null && cursor.equals(this.pagerId + ":" + this.listing + ":" + this.offset);
+    }
+
+    private long parseOffset(String cursor) {
+        String[] parts = cursor.split(":");
+        try {
+            long offset = parts.length == 3 ? Long.parseLong(parts[2]) : -1;
+            if (offset >= 0) {
+                return offset;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(String.format("\"%s\" is not a valid cursor", cursor));
+    }
+
+    private void open(Path folder, long skip) throws IOException {
+        this.close();
+        this.stream = Files.newDirectoryStream(folder);
+        this.entries = this.stream.iterator();
+        this.listing++;
+        this.offset = 0;
+        try {
+            while (this.offset < skip && this.entries.hasNext()) {
+                this.entries.next();
+                this.offset++;
+            }
+        } catch (DirectoryIteratorException e) {
+            this.close();
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Closes the open listing, if any.
+     */
+    public synchronized void close() {
+        if (this.stream != null) {
+            try {
+                this.stream.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+        this.stream = null;
+        this.entries = null;
+    }
+}
@@ -0,0 +1,21 @@
+package server;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+
+/**
+ * Gets told about changes under the folder watched by a {@link FileWatcher}.
+ */
+public interface FileChangeListener {
+
+    /**
+     * Called on the watcher thread for every change, should return quickly.
+     * <p>
+     * If the kind is {@link java.nio.file.StandardWatchEventKinds#OVERFLOW}, changes were
+     * lost and the path is the watched folder, so anything kept about it should be rescanned.
+     *
+     * @param path the absolute path of the file or folder that changed.
+     * @param kind what happened to it, one of the StandardWatchEventKinds.
+     */
+    void onFileChange(Path path, WatchEvent.Kind<?> kind);
+}
@@ -0,0 +1,113 @@
+package server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the SHA-256 hash of files so each version of a file is only hashed once.
+ * <p>
+ * Entries are keyed by path and checked against the file's last modified time and
+ * size, so a changed file is hashed again the next time it is asked for. The least
+ * recently used entries are dropped once there are too many.
+ */
+public class FileHashCache {
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int MAX_ENTRIES = 4096;
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return this.size() > MAX_ENTRIES;
+        }
+    };
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static class Entry {
+        final long lastModified;
+        final long length;
+        final String hash;
+
+        Entry(long lastModified, long length, String hash) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.hash = hash;
+        }
+    }
+
+    public FileHashCache(Metrics metrics) {
+        metrics.register("hashCache.hits", this.hits::sum);
+        metrics.register("hashCache.misses", this.misses::sum);
+        metrics.register("hashCache.entries", () -> {
+            synchronized (this.entries) {
+                return this.entries.size();
+            }
+        });
+    }
+
+    /**
+     * Gets the hash of the file, computing it only if the file changed since the last call.
+     *
+     * @param file the file to hash.
+     * @return the hex encoded SHA-256 hash of the file's contents.
+     * @throws IOException if the file could not be read.
+     */
+    public String getHash(File file) throws IOException {
+        String key = file.getCanonicalPath();
+        long lastModified = file.lastModified();
+        long length = file.length();
+
+        synchronized (this.entries) {
+            Entry entry = this.entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                this.hits.increment();
+                return entry.hash;
+            }
+        }
+
+        this.misses.increment();
+        String hash = hash(file);
+        synchronized (this.entries) {
+            this.entries.put(key, new Entry(lastModified, length, hash));
+        }
+        return hash;
+    }
+
+    /**
+     * Computes the SHA-256 hash of a file, reading it in chunks.
+     *
+     * @param file the file to hash.
+     * @return the hex encoded hash.
+     * @throws IOException if the file could not be read.
+     */
+    public static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("[FileHashCache] SHA-256 is not available.", e);
+        }
+
+        byte[] buffer = new byte[READ_BUFFER_BYTES];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            int bytesReadIn;
+            while ((bytesReadIn = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, bytesReadIn);
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
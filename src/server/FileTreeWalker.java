@@ -0,0 +1,310 @@
+package server;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Walks directory trees in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * Every sub-folder is forked as its own task, so big trees use all the cores.
+ * Results are put on a bounded queue as soon as they are found, letting the caller
+ * stream them to the client while the walk is still going.
+ */
+public class FileTreeWalker {
+
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final ForkJoinPool pool;
+
+    public FileTreeWalker(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * A walk that is running in the background.
+     */
+    public static class Walk {
+        private final ForkJoinTask<?> task;
+        private final AtomicBoolean cancelled;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        private Walk(ForkJoinTask<?> task, AtomicBoolean cancelled) {
+            this.task = task;
+            this.cancelled = cancelled;
+        }
+
+        public boolean isDone() {
+            return this.task.isDone();
+        }
+
+        /**
+         * Waits for the walk to finish.
+         *
+         * @throws IOException if a folder in the tree could not be read.
+         */
+        public void join() throws IOException {
+            try {
+                this.task.join();
+            } catch (RuntimeException e) {
+                // The pool may wrap the exception again when it crosses threads
+                for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Stops the walk, results already on the queue are left there.
+         */
+        public void cancel() {
+            this.cancelled.set(true);
+        }
+
+        /**
+         * @return the number of results found so far.
+         */
+        public long getCount() {
+            return this.count.sum();
+        }
+
+        /**
+         * @return the number of bytes counted so far, only used by {@link #du}.
+         */
+        public long getBytes() {
+            return this.bytes.sum();
+        }
+    }
+
+    /**
+     * Finds every file and folder under root whose name matches a glob pattern.
+     * <p>
+     * Results are paths relative to root, folders end with a "/".
+     * ex. "alice/pictures/cat.jpg"
+     *
+     * @param root    the folder to search.
+     * @param pattern the glob to match names against, ex. "*.txt".
+     * @param results where the results are put as they are found.
+     * @return the running walk.
+     * @throws java.util.regex.PatternSyntaxException if the pattern is not a valid glob.
+     */
+    public Walk find(Path root, String pattern, BlockingQueue<String> results) {
+        PathMatcher matcher = root.getFileSystem().getPathMatcher("glob:" + pattern);
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Walk[] walk = new Walk[1];
+        RecursiveAction task = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                new FindTask(root, root, matcher, results, walk[0]).invoke();
+            }
+        };
+        walk[0] = new Walk(task, cancelled);
+        this.pool.execute(task);
+        return walk[0];
+    }
+
+    /**
+     * Adds up the size of everything under each direct child of a folder.
+     * <p>
+     * A result is put on the queue as each child finishes, in the format "size\tname"
+     * with the size in bytes. Folder names end with a "/".
+     *
+     * @param root    the folder to measure.
+     * @param results where the results are put as they are found.
+     * @return the running walk, its byte count is the total size of the folder.
+     */
+    public Walk du(Path root, BlockingQueue<String> results) {
+        AtomicBoolean cancelled = new AtomicBoolean();
+        Walk[] walk = new Walk[1];
+        RecursiveAction task = new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> children = new ArrayList<>();
+                for (Path child : listChildren(root)) {
+                    children.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            BasicFileAttributes attributes = readAttributes(child);
+                            if (attributes == null) {
+                                return;
+                            }
+                            long size = attributes.isDirectory() ? new SizeTask(child, walk[0]).invoke() : attributes.size();
+                            String name = child.getFileName() + (attributes.isDirectory() ? "/" : "");
+                            walk[0].bytes.add(size);
+                            walk[0].count.increment();
+                            put(results, size + "\t" + name, walk[0]);
+                        }
+                    });
+                }
+                invokeAll(children);
+            }
+        };
+        walk[0] = new Walk(task, cancelled);
+        this.pool.execute(task);
+        return walk[0];
+    }
+
+    /**
+     * Matches the entries of one folder and forks a task for each sub-folder.
+     */
+    private static class FindTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path root;
+        private final Path folder;
+        private final PathMatcher matcher;
+        private final BlockingQueue<String> results;
+        private final Walk walk;
+
+        FindTask(Path root, Path folder, PathMatcher matcher, BlockingQueue<String> results, Walk walk) {
+            this.root = root;
+            this.folder = folder;
+            this.matcher = matcher;
+            this.results = results;
+            this.walk = walk;
+        }
+
+        @Override
+        protected void compute() {
+            List<FindTask> subFolders = new ArrayList<>();
+            for (Path child : listChildren(this.folder)) {
+                if (this.walk.cancelled.get()) {
+                    return;
+                }
+                BasicFileAttributes attributes = readAttributes(child);
+                if (attributes == null) {
+                    continue;
+                }
+                boolean isDirectory = attributes.isDirectory();
+                if (this.matcher.matches(child.getFileName())) {
+                    String relativePath = this.root.relativize(child).toString().replace('\\', '/');
+                    this.walk.count.increment();
+                    put(this.results, relativePath + (isDirectory ? "/" : ""), this.walk);
+                }
+                if (isDirectory) {
+                    FindTask subFolder = new FindTask(this.root, child, this.matcher, this.results, this.walk);
+                    subFolder.fork();
+                    subFolders.add(subFolder);
+                }
+            }
+            for (FindTask subFolder : subFolders) {
+                subFolder.join();
+            }
+        }
+    }
+
+    /**
+     * Adds up the size of every file in a folder, forking a task for each sub-folder.
+     */
+    private static class SizeTask extends RecursiveTask<Long> {
+        private static final long serialVersionUID = 1L;
+
+        private final Path folder;
+        private final Walk walk;
+
+        SizeTask(Path folder, Walk walk) {
+            this.folder = folder;
+            this.walk = walk;
+        }
+
+        @Override
+        protected Long compute() {
+            long size = 0;
+            List<SizeTask> subFolders = new ArrayList<>();
+            for (Path child : listChildren(this.folder)) {
+                if (this.walk.cancelled.get()) {
+                    return size;
+                }
+                BasicFileAttributes attributes = readAttributes(child);
+                if (attributes == null) {
+                    continue;
+                }
+                if (attributes.isDirectory()) {
+                    SizeTask subFolder = new SizeTask(child, this.walk);
+                    subFolder.fork();
+                    subFolders.add(subFolder);
+                } else {
+                    size += attributes.size();
+                }
+            }
+            for (SizeTask subFolder : subFolders) {
+                size += subFolder.join();
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Lists the entries of a folder without following links.
+     */
+    private static List<Path> listChildren(Path folder) {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder)) {
+            for (Path child : stream) {
+                children.add(child);
+            }
+        } catch (NoSuchFileException e) {
+            // Deleted while walking, nothing left to list
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return children;
+    }
+
+    /**
+     * Reads the attributes of an entry without following links.
+     *
+     * @return the attributes, or null if the entry was deleted while walking.
+     */
+    private static BasicFileAttributes readAttributes(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Puts a result on the queue, letting the pool start another worker while this one waits for room.
+     */
+    private static void put(BlockingQueue<String> results, String result, Walk walk) {
+        try {
+            ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                private boolean done = false;
+
+                @Override
+                public boolean block() throws InterruptedException {
+                    while (!this.done && !walk.cancelled.get()) {
+                        this.done = results.offer(result, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    }
+                    return true;
+                }
+
+                @Override
+                public boolean isReleasable() {
+                    return this.done || walk.cancelled.get() || (this.done = results.offer(result));
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            walk.cancel();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a folder and all of its sub-folders for changes and tells the listeners.
+ * <p>
+ * {@link WatchService} only watches single folders, so every folder in the tree is
+ * registered, and new folders are registered as soon as they show up.
+ * <p>
+ * A folder that can't be registered, because it can't be read or the system limit of
+ * watches is reached, is logged and skipped, and changes in it are not reported.
+ */
+public class FileWatcher implements Runnable {
+
+    private final Path root;
+    private final AsyncLogger logger;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> folders = new ConcurrentHashMap<>();
+    private final List<FileChangeListener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger unwatchedFolders = new AtomicInteger();
+    private final Thread thread;
+
+    /**
+     * Creates a watcher, call {@link #start()} to start watching.
+     *
+     * @param root   the folder to watch.
+     * @param logger where to log problems.
+     * @throws IOException if the watch service could not be created.
+     */
+    public FileWatcher(Path root, AsyncLogger logger) throws IOException {
+        this.root = root.toAbsolutePath().normalize();
+        this.logger = logger;
+        this.watchService = this.root.getFileSystem().newWatchService();
+        this.thread = new Thread(this, "file-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void addListener(FileChangeListener listener) {
+        this.listeners.add(listener);
+    }
+
+    public void removeListener(FileChangeListener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Registers the tree and starts the watcher thread.
+     *
+     * @throws IOException if the tree could not be registered.
+     */
+    public void start() throws IOException {
+        this.registerTree(this.root);
+        this.thread.start();
+    }
+
+    /**
+     * @return the folder being watched.
+     */
+    public Path getRoot() {
+        return this.root;
+    }
+
+    /**
+     * @return the number of folders that could not be watched.
+     */
+    public int getUnwatchedFolders() {
+        return this.unwatchedFolders.get();
+    }
+
+    /**
+     * Waits for changes and tells the listeners until closed.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = this.watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            Path folder = this.folders.get(key);
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW || folder == null) {
+                    this.notifyListeners(this.root, OVERFLOW);
+                    continue;
+                }
+
+                Path path = folder.resolve((Path) event.context());
+                // New folders need watching too, and may already have files in them
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    try {
+                        this.registerTree(path);
+                    } catch (IOException e) {
+                        this.logger.error(0, "[FileWatcher] Failed to watch new folder: " + path, e);
+                    }
+                }
+                this.notifyListeners(path, event.kind());
+            }
+
+            if (!key.reset()) {
+                this.folders.remove(key);
+            }
+        }
+    }
+
+    private void notifyListeners(Path path, WatchEvent.Kind<?> kind) {
+        for (FileChangeListener listener : this.listeners) {
+            try {
+                listener.onFileChange(path, kind);
+            } catch (RuntimeException e) {
+                this.logger.error(0, "[FileWatcher] Listener failed on: " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Registers a folder and every folder under it.
+     * <p>
+     * Files that were already in a newly created folder are reported as created,
+     * since they may have been added before the folder was registered. Folders that
+     * can't be registered or read are counted and skipped, the first one is logged.
+     */
+    private void registerTree(Path start) throws IOException {
+        boolean isNewFolder = !start.equals(this.root);
+        int unwatchedBefore = this.unwatchedFolders.get();
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                try {
+                    WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+                    folders.put(key, dir);
+                } catch (IOException e) {
+                    skipFolder(dir, e);
+                    // Without read access there is nothing under it to visit either
+                    return e instanceof AccessDeniedException ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+                if (isNewFolder && !dir.equals(start)) {
+                    notifyListeners(dir, ENTRY_CREATE);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (isNewFolder) {
+                    notifyListeners(file, ENTRY_CREATE);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Only folders are opened by the walk, a file here is one that vanished
+                if (!(e instanceof NoSuchFileException)) {
+                    skipFolder(file, e);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        int skipped = this.unwatchedFolders.get() - unwatchedBefore;
+        if (skipped > 1 || (skipped == 1 && unwatchedBefore > 0)) {
+            this.logger.info(0, String.format("[FileWatcher] %d folders under %s are not watched.", skipped, start));
+        }
+    }
+
+    private void skipFolder(Path folder, IOException e) {
+        if (this.unwatchedFolders.getAndIncrement() == 0) {
+            this.logger.error(0, "[FileWatcher] Failed to watch folder, changes in it are missed: " + folder, e);
+        }
+    }
+
+    /**
+     * Stops watching.
+     */
+    public void close() {
+        try {
+            this.watchService.close();
+        } catch (IOException e) {
+            this.logger.error(0, "[FileWatcher] Failed to close.", e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package server;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a folder as a zip archive to a stream, one file at a time.
+ * <p>
+ * Nothing is staged in memory or in temp files, so memory use is bounded by the
+ * copy buffer no matter how big the folder is. Files that are already compressed
+ * are stored as they are instead of being run through the compressor again.
+ */
+public class FolderArchiver {
+
+    /**
+     * A file failed part way through being copied into the archive, ex. it was changed
+     * or could not be read. Its entry can't be taken back, so the archive is incomplete.
+     */
+    public static class EntryFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        EntryFailedException(String name, IOException cause) {
+            super("[FolderArchiver] Failed to archive " + name, cause);
+        }
+    }
+
+    private static final Set<String> STORED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "zip", "gz", "tgz", "bz2", "xz", "7z", "mp3", "mp4", "mov", "pdf"
+    ));
+
+    private final AsyncLogger logger;
+    private final int port;
+    private final byte[] buffer;
+
+    /**
+     * @param logger where to log files that had to be skipped.
+     * @param port   the client port, for the log.
+     * @param buffer the buffer files are copied through.
+     */
+    public FolderArchiver(AsyncLogger logger, int port, byte[] buffer) {
+        this.logger = logger;
+        this.port = port;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Writes every file and folder under the given folder as a zip archive.
+     * <p>
+     * Entry names are relative to the folder. Files that can't be opened are skipped.
+     *
+     * @param folder the folder to archive.
+     * @param out    where the archive is written, it is not closed.
+     * @return the number of files in the archive.
+     * @throws EntryFailedException if a file failed after its entry was started.
+     * @throws IOException          if there was an error writing to the stream.
+     */
+    public int archive(Path folder, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new NonClosingOutputStream(out));
+        int[] fileCount = new int[1];
+        Files.walkFileTree(folder, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(folder)) {
+                    zip.putNextEntry(new ZipEntry(entryName(folder, dir) + "/"));
+                    zip.closeEntry();
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && addFile(zip, entryName(folder, file), file, attrs)) {
+                    fileCount[0]++;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                logger.error(port, "[FolderArchiver] Skipped unreadable path: " + file, e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        zip.finish();
+        return fileCount[0];
+    }
+
+    /**
+     * Adds one file to the archive.
+     *
+     * @return true if the file was added, false if it could not be opened.
+     * @throws EntryFailedException if the file failed after its entry was started.
+     * @throws IOException          if there was an error writing to the stream.
+     */
+    private boolean addFile(ZipOutputStream zip, String name, Path file, BasicFileAttributes attrs) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setLastModifiedTime(attrs.lastModifiedTime());
+
+        if (STORED_EXTENSIONS.contains(extension(name))) {
+            // Stored entries need their size and CRC up front, which costs one extra read of the file
+            long crc;
+            try {
+                crc = this.crc(file);
+            } catch (IOException e) {
+                this.logger.error(this.port, "[FolderArchiver] Skipped unreadable file: " + file, e);
+                return false;
+            }
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(attrs.size());
+            entry.setCompressedSize(attrs.size());
+            entry.setCrc(crc);
+        }
+
+        InputStream input;
+        try {
+            input = Files.newInputStream(file);
+        } catch (IOException e) {
+            this.logger.error(this.port, "[FolderArchiver] Skipped unreadable file: " + file, e);
+            return false;
+        }
+
+        try (InputStream fileInput = input) {
+            zip.putNextEntry(entry);
+            int bytesReadIn;
+            while ((bytesReadIn = this.readFile(fileInput, name)) > 0) {
+                zip.write(this.buffer, 0, bytesReadIn);
+            }
+            zip.closeEntry();
+        } catch (ZipException e) {
+            // The size or CRC of a stored entry no longer match, the file changed since the first read
+            throw new EntryFailedException(name, e);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the next part of a file into the buffer, telling read errors apart from write errors.
+     */
+    private int readFile(InputStream input, String name) throws EntryFailedException {
+        try {
+            return input.read(this.buffer);
+        } catch (IOException e) {
+            throw new EntryFailedException(name, e);
+        }
+    }
+
+    private long crc(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream input = Files.newInputStream(file)) {
+            int bytesReadIn;
+            while ((bytesReadIn = input.read(this.buffer)) > 0) {
+                crc.update(this.buffer, 0, bytesReadIn);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static String entryName(Path folder, Path path) {
+        return folder.relativize(path).toString().replace('\\', '/');
+    }
+
+    private static String extension(String name) {
+        return name.substring(name.lastIndexOf('.') + 1).toLowerCase();
+    }
+
+    /**
+     * Keeps the zip stream from closing the stream it writes to.
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.flush();
+        }
+    }
+}
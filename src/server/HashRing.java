@@ -0,0 +1,90 @@
+package server;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys (user folders) to nodes with consistent hashing.
+ * <p>
+ * Every node is placed on the ring many times as virtual nodes, and a key belongs to the
+ * first virtual node at or after the key's hash. Adding or removing a node only moves the
+ * keys next to its virtual nodes, about 1/N of them, and the virtual nodes keep the
+ * share of each node close to even.
+ */
+public class HashRing {
+
+    private final int virtualNodes;
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final List<String> nodes = new ArrayList<>();
+
+    /**
+     * @param nodes        the nodes, ex. "localhost:8080".
+     * @param virtualNodes how many times each node is placed on the ring.
+     */
+    public HashRing(List<String> nodes, int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+        for (String node : nodes) {
+            this.addNode(node);
+        }
+    }
+
+    public synchronized void addNode(String node) {
+        if (this.nodes.contains(node)) {
+            return;
+        }
+        this.nodes.add(node);
+        for (int i = 0; i < this.virtualNodes; i++) {
+            this.ring.put(hash(node + "#" + i), node);
+        }
+    }
+
+    public synchronized void removeNode(String node) {
+        if (!this.nodes.remove(node)) {
+            return;
+        }
+        for (int i = 0; i < this.virtualNodes; i++) {
+            this.ring.remove(hash(node + "#" + i), node);
+        }
+    }
+
+    /**
+     * Finds the node that owns a key.
+     *
+     * @param key the key, ex. "alice".
+     * @return the node, or null if the ring is empty.
+     */
+    public synchronized String nodeFor(String key) {
+        if (this.ring.isEmpty()) {
+            return null;
+        }
+        // Past the last virtual node wraps around to the first one
+        Map.Entry<Long, String> entry = this.ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : this.ring.firstEntry().getValue();
+    }
+
+    public synchronized List<String> getNodes() {
+        return new ArrayList<>(this.nodes);
+    }
+
+    /**
+     * The first 8 bytes of the MD5 of the key, spreads similar keys all over the ring.
+     */
+    private static long hash(String key) {
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("[HashRing] MD5 is not available.", e);
+        }
+        byte[] digest = md5.digest(key.getBytes());
+        long hash = 0;
+        for (int i = 0; i < 8; i++) {
+            hash = (hash << 8) | (digest[i] & 0xff);
+        }
+        return hash;
+    }
+}
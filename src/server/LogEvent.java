@@ -0,0 +1,36 @@
+package server;
+
+/**
+ * A single structured entry for the {@link AsyncLogger}.
+ * <p>
+ * Only holds the raw values, formatting is done later by the logger thread.
+ */
+public class LogEvent {
+
+    public enum Level {
+        INFO, WARN, ERROR
+    }
+
+    public final long timeMillis;
+    public final Level level;
+    public final int port;
+    public final String message;
+    public final Throwable error;
+
+    /**
+     * Creates a log event.
+     *
+     * @param timeMillis the time the event happened.
+     * @param level      how serious the event is.
+     * @param port       the client port the event belongs to, 0 if none.
+     * @param message    what happened.
+     * @param error      the cause, may be null.
+     */
+    public LogEvent(long timeMillis, Level level, int port, String message, Throwable error) {
+        this.timeMillis = timeMillis;
+        this.level = level;
+        this.port = port;
+        this.message = message;
+        this.error = error;
+    }
+}
@@ -6,11 +6,17 @@ public class Message {
     public final String location;
     public final String contentType;
     public final byte[] content;
+    public final int contentLength; // The content is the start of the array, which may be a larger pooled one
 
     public Message(int statusCode, String location, String contentType, byte[] content) {
+        this(statusCode, location, contentType, content, content.length);
+    }
+
+    public Message(int statusCode, String location, String contentType, byte[] content, int contentLength) {
         this.statusCode = statusCode;
         this.location = location;
         this.contentType = contentType;
         this.content = content;
+        this.contentLength = contentLength;
     }
 }
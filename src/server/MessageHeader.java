@@ -0,0 +1,22 @@
+package server;
+
+/**
+ * The header part of a {@link Message}, read before the content.
+ * <p>
+ * Lets the server decide how to handle the content (hold it in memory,
+ * stream it or discard it) before a single content byte is read.
+ */
+public class MessageHeader {
+
+    public final int statusCode;
+    public final String location;
+    public final String contentType;
+    public final int contentLength;
+
+    public MessageHeader(int statusCode, String location, String contentType, int contentLength) {
+        this.statusCode = statusCode;
+        this.location = location;
+        this.contentType = contentType;
+        this.contentLength = contentLength;
+    }
+}
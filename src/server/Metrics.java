@@ -0,0 +1,64 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of named numbers describing the state of the server.
+ * <p>
+ * Values are read only when a snapshot is taken, so registering a gauge costs nothing
+ * on the hot path. Sent to clients with the "stats" command.
+ */
+public class Metrics {
+
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds or replaces a gauge.
+     *
+     * @param name  the name of the gauge, ex. "download.bytesPerSecond".
+     * @param gauge reads the current value.
+     */
+    public void register(String name, LongSupplier gauge) {
+        this.gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes a gauge if it exists.
+     *
+     * @param name the name of the gauge.
+     */
+    public void unregister(String name) {
+        this.gauges.remove(name);
+    }
+
+    /**
+     * Reads a single gauge.
+     *
+     * @param name the name of the gauge.
+     * @return the current value, or 0 if there is no such gauge.
+     */
+    public long get(String name) {
+        LongSupplier gauge = this.gauges.get(name);
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+
+    /**
+     * Reads every gauge.
+     * <p>
+     * Example output: "download.bytesPerSecond 1024\nlog.dropped 0"
+     *
+     * @return a newline delimited list of names and values, sorted by name.
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LongSupplier> entry : this.gauges.entrySet()) {
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append(entry.getKey()).append(" ").append(entry.getValue().getAsLong());
+        }
+        return sb.toString();
+    }
+}
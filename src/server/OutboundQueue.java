@@ -0,0 +1,390 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bytes waiting to be sent to one client, written to the socket by the {@link OutboundWriter}.
+ * <p>
+ * Writes are copied into chunks and return right away. A chunk is handed to the writer
+ * once it is full or the stream is flushed, and the chunks of a connection are always
+ * written one at a time in order. The socket is non-blocking, so a chunk the client isn't
+ * ready for waits in the queue without holding up the writer thread. Once more than the
+ * high watermark is queued, writes wait until the client has read enough to get below
+ * the low watermark. A client that doesn't read for longer than the write timeout is
+ * evicted: its socket is closed and every write after that throws, so a stalled reader
+ * holds at most about the high watermark of memory and holds up no thread for longer
+ * than the timeout.
+ * <p>
+ * Frames pushed from other threads, ex. by the {@link WatchHub}, are queued as they are
+ * without being copied. The queue tracks where the message being written ends, see
+ * {@link #beginFrame(long)}, so a pushed frame is only ever queued between two messages.
+ * <p>
+ * Chunks come from the {@link BufferPool} and go back once written, sized by the message
+ * being written, so a small response doesn't take a whole transfer buffer.
+ */
+public class OutboundQueue extends OutputStream {
+
+    // Chunks written before the writer thread moves on to another connection
+    private static final int MAX_CHUNKS_PER_DRAIN = 16;
+
+    /**
+     * Bytes waiting to be written, either a pooled array or a pushed frame.
+     */
+    private static class Chunk {
+        final byte[] array;
+        final int length;
+        final boolean pooled;
+        int written = 0;
+
+        Chunk(byte[] array, int length, boolean pooled) {
+            this.array = array;
+            this.length = length;
+            this.pooled = pooled;
+        }
+    }
+
+    private final Socket socket;
+    private final SocketChannel channel;
+    private final OutboundWriter writer;
+    private final OutboundWriter.WriteLoop loop;
+    private final BufferPool bufferPool;
+    private final int chunkBytes;
+    private final long highWatermarkBytes;
+    private final long lowWatermarkBytes;
+    private final long writeTimeoutNanos;
+    private final ArrayDeque<Chunk> chunks = new ArrayDeque<>();
+    private byte[] current;
+    private int currentCount = 0;
+    private long queuedBytes = 0;
+    private boolean draining = false;
+    private IOException failure;
+
+    // Bytes left of the message being written, pushed frames wait in held until it is done
+    private long frameRemaining = 0;
+    private final List<byte[]> held = new ArrayList<>();
+    private long heldBytes = 0;
+
+    // Since when the socket has taken nothing while bytes are waiting, 0 if it is keeping up
+    private volatile long writeStartNanos = 0;
+
+    /**
+     * @param socket     the connection to the client, its channel must be non-blocking.
+     * @param writer     the writer shared by every connection of the server.
+     * @param bufferPool where the chunks come from.
+     * @param config     the watermarks, write timeout and chunk size.
+     * @throws IOException if the socket has no channel or its channel is blocking.
+     */
+    public OutboundQueue(Socket socket, OutboundWriter writer, BufferPool bufferPool, ServerConfig config) throws IOException {
+        this.socket = socket;
+        this.channel = socket.getChannel();
+        if (this.channel == null || this.channel.isBlocking()) {
+            throw new IOException("[OutboundQueue] The socket must have a non-blocking channel.");
+        }
+        this.writer = writer;
+        this.bufferPool = bufferPool;
+        this.chunkBytes = config.getTransferBufferBytes();
+        this.highWatermarkBytes = config.getOutboundHighWatermarkBytes();
+        this.lowWatermarkBytes = Math.min(config.getOutboundLowWatermarkBytes(), this.highWatermarkBytes);
+        this.writeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getWriteTimeoutMillis());
+        this.loop = writer.register(this);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            this.awaitCapacity();
+            if (this.current == null) {
+                // Big enough for the rest of the message, up to a transfer buffer
+                this.current = this.bufferPool.acquire((int) Math.min(this.chunkBytes, Math.max(len, this.frameRemaining)));
+            }
+            int length = Math.min(len, Math.min(this.chunkBytes, this.current.length) - this.currentCount);
+            System.arraycopy(b, off, this.current, this.currentCount, length);
+            this.currentCount += length;
+            this.queuedBytes += length;
+            this.writer.addQueuedBytes(length);
+            off += length;
+            len -= length;
+            if (this.currentCount == Math.min(this.chunkBytes, this.current.length)) {
+                this.seal();
+            }
+            if (this.frameRemaining > 0) {
+                this.frameRemaining = Math.max(0, this.frameRemaining - length);
+                if (this.frameRemaining == 0 && !this.held.isEmpty()) {
+                    for (byte[] frame : this.held) {
+                        this.append(frame);
+                    }
+                    this.held.clear();
+                    this.heldBytes = 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the queue a message of the given size is about to be written,
+     * so pushed frames wait until all of it is.
+     *
+     * @param length the size of the whole message, header included.
+     */
+    public synchronized void beginFrame(long length) {
+        this.frameRemaining = length;
+    }
+
+    /**
+     * Queues a complete message from another thread without waiting or copying it.
+     * <p>
+     * The frame must not be changed afterwards, the same one may be queued for many clients.
+     * Pushes may take the queue up to twice the high watermark, a client that lets it go
+     * past that is not reading and is evicted.
+     *
+     * @param frame the whole message, header included.
+     */
+    public synchronized void push(byte[] frame) {
+        if (this.failure != null) {
+            return;
+        }
+        if (this.queuedBytes + frame.length > 2 * this.highWatermarkBytes) {
+            this.evict(String.format("Evicted slow client, %d bytes queued and not reading pushed updates", this.queuedBytes));
+            return;
+        }
+        this.queuedBytes += frame.length;
+        this.writer.addQueuedBytes(frame.length);
+        if (this.frameRemaining > 0) {
+            this.held.add(frame);
+            this.heldBytes += frame.length;
+        } else {
+            this.append(frame);
+        }
+    }
+
+    /**
+     * Queues a pushed frame after everything written so far.
+     */
+    private void append(byte[] frame) {
+        if (this.currentCount > 0) {
+            this.seal();
+        }
+        this.chunks.addLast(new Chunk(frame, frame.length, false));
+        this.schedule();
+    }
+
+    /**
+     * Hands everything written so far to the writer, without waiting for it to be sent.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        this.checkOpen();
+        if (this.currentCount > 0) {
+            this.seal();
+        }
+    }
+
+    /**
+     * Queues the chunk being filled and makes sure a writer thread is on its way.
+     */
+    private void seal() {
+        this.chunks.addLast(new Chunk(this.current, this.currentCount, true));
+        this.current = null;
+        this.currentCount = 0;
+        this.schedule();
+    }
+
+    private void schedule() {
+        if (!this.draining) {
+            this.draining = true;
+            this.loop.execute(this::drain);
+        }
+    }
+
+    /**
+     * Waits while more than the high watermark is queued, until the client reads enough
+     * to get below the low watermark. Evicts the client if that takes longer than the write timeout.
+     */
+    private void awaitCapacity() throws IOException {
+        this.checkOpen();
+        // Held frames can't be sent before the message being written, so they don't count here
+        if (this.queuedBytes - this.heldBytes < this.highWatermarkBytes) {
+            return;
+        }
+        this.writer.countStall();
+        if (this.currentCount > 0) {
+            this.seal(); // Otherwise the last bytes never leave and the queue can't get low enough
+        }
+        long deadline = System.nanoTime() + this.writeTimeoutNanos;
+        while (this.failure == null && this.queuedBytes - this.heldBytes > this.lowWatermarkBytes) {
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                this.evict(String.format("Evicted slow client, %d bytes queued for %d ms",
+                        this.queuedBytes, TimeUnit.NANOSECONDS.toMillis(this.writeTimeoutNanos)));
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("[OutboundQueue] Interrupted while waiting for the client to read.", e);
+            }
+        }
+        this.checkOpen();
+    }
+
+    private void checkOpen() throws IOException {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Writes queued chunks to the socket, run by the {@link OutboundWriter}.
+     * <p>
+     * Writes only as much as the socket takes right away. If that isn't all of it, the
+     * writer runs this again once the client has read some.
+     */
+    void drain() {
+        IOException writeFailure;
+        synchronized (this) {
+            try {
+                for (int drained = 0; drained < MAX_CHUNKS_PER_DRAIN; drained++) {
+                    Chunk chunk = this.chunks.peekFirst();
+                    if (chunk == null || this.failure != null) {
+                        this.writeStartNanos = 0;
+                        this.draining = false;
+                        return;
+                    }
+
+                    int length = this.channel.write(ByteBuffer.wrap(chunk.array, chunk.written, chunk.length - chunk.written));
+                    if (length > 0) {
+                        chunk.written += length;
+                        this.queuedBytes -= length;
+                        this.writer.addQueuedBytes(-length);
+                        this.writeStartNanos = 0;
+                        this.notifyAll();
+                    }
+                    if (chunk.written < chunk.length) {
+                        // The socket's send buffer is full, go on once the client has read some of it
+                        if (this.writeStartNanos == 0) {
+                            this.writeStartNanos = System.nanoTime();
+                        }
+                        this.loop.awaitWritable(this.channel, this);
+                        return;
+                    }
+
+                    this.chunks.removeFirst();
+                    if (chunk.pooled) {
+                        this.bufferPool.release(chunk.array);
+                    }
+                }
+                // Give other connections a turn, the rest is written by a new task
+                this.loop.execute(this::drain);
+                return;
+            } catch (IOException e) {
+                writeFailure = e;
+            }
+        }
+        this.fail(writeFailure);
+    }
+
+    /**
+     * @return true if the socket has taken nothing for longer than the write timeout.
+     */
+    boolean isWriteStalled(long nowNanos) {
+        long start = this.writeStartNanos;
+        return start != 0 && nowNanos - start > this.writeTimeoutNanos;
+    }
+
+    /**
+     * Drops the client: throws away what is queued and closes the socket.
+     *
+     * @param reason why the client was dropped.
+     */
+    void evict(String reason) {
+        if (this.fail(new IOException("[OutboundQueue] " + reason))) {
+            this.writer.countEviction(this.socket.getPort(), reason);
+        }
+    }
+
+    /**
+     * @return true if this call failed the queue, false if it had already failed.
+     */
+    private boolean fail(IOException e) {
+        synchronized (this) {
+            if (this.failure != null) {
+                return false;
+            }
+            this.failure = e;
+            this.writer.addQueuedBytes(-this.queuedBytes);
+            this.queuedBytes = 0;
+            // Writes happen while holding the lock, so no chunk is being written right now
+            for (Chunk chunk : this.chunks) {
+                if (chunk.pooled) {
+                    this.bufferPool.release(chunk.array);
+                }
+            }
+            this.chunks.clear();
+            this.held.clear();
+            this.heldBytes = 0;
+            if (this.current != null) {
+                this.bufferPool.release(this.current);
+            }
+            this.current = null;
+            this.currentCount = 0;
+            this.notifyAll();
+        }
+        try {
+            this.socket.close();
+        } catch (IOException closeException) {
+            // Nothing else to do
+        }
+        return true;
+    }
+
+    public synchronized long getQueuedBytes() {
+        return this.queuedBytes;
+    }
+
+    /**
+     * Sends what is left, waiting up to the given time, then closes the socket.
+     *
+     * @param lingerMillis how long to wait for the queue to empty.
+     */
+    public void close(long lingerMillis) {
+        synchronized (this) {
+            if (this.failure == null && this.currentCount > 0) {
+                this.seal();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+            while (this.failure == null && this.queuedBytes > 0) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    break;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remainingNanos);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        this.fail(new IOException("[OutboundQueue] Closed."));
+        this.writer.unregister(this);
+    }
+
+    @Override
+    public void close() {
+        this.close(0);
+    }
+}
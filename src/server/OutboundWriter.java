@@ -0,0 +1,203 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes the {@link OutboundQueue}s of every connection to their sockets with a small pool of threads.
+ * <p>
+ * The sockets are non-blocking and every writer thread runs a {@link Selector}: a queue
+ * writes as much as the socket takes, and once the socket's send buffer is full it waits
+ * for the selector to say the client has read some of it. A client that stops reading
+ * therefore never holds up a writer thread or the other connections on it.
+ * <p>
+ * A watchdog checks the queues a few times per write timeout and evicts any client that
+ * hasn't taken a byte for longer than the timeout.
+ */
+public class OutboundWriter {
+
+    /**
+     * One writer thread and its selector. A queue is always written by the same loop.
+     */
+    final class WriteLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean selecting = new AtomicBoolean();
+        private volatile boolean closed = false;
+
+        private WriteLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        /**
+         * Runs a task on this loop's thread.
+         */
+        void execute(Runnable task) {
+            if (this.closed) {
+                return; // Shutting down, the connections are being closed
+            }
+            this.tasks.add(task);
+            if (this.selecting.compareAndSet(true, false)) {
+                this.selector.wakeup();
+            }
+        }
+
+        /**
+         * Drains the queue again once its socket is writable, only called from this loop's thread.
+         *
+         * @throws IOException if the socket was closed.
+         */
+        void awaitWritable(SocketChannel channel, OutboundQueue queue) throws IOException {
+            SelectionKey key = channel.keyFor(this.selector);
+            if (key == null) {
+                channel.register(this.selector, SelectionKey.OP_WRITE, queue);
+            } else {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!this.closed) {
+                    // Tasks added after this are sure to wake the selector up
+                    this.selecting.set(true);
+                    if (this.tasks.isEmpty()) {
+                        this.selector.select();
+                    } else {
+                        this.selector.selectNow();
+                    }
+                    this.selecting.set(false);
+
+                    Iterator<SelectionKey> selected = this.selector.selectedKeys().iterator();
+                    while (selected.hasNext()) {
+                        SelectionKey key = selected.next();
+                        selected.remove();
+                        if (key.isValid()) {
+                            key.interestOps(0);
+                            this.run(((OutboundQueue) key.attachment())::drain);
+                        }
+                    }
+                    Runnable task;
+                    while ((task = this.tasks.poll()) != null) {
+                        this.run(task);
+                    }
+                }
+            } catch (IOException e) {
+                logger.error(0, "[OutboundWriter] Writer thread stopped.", e);
+            } finally {
+                try {
+                    this.selector.close();
+                } catch (IOException e) {
+                    // Nothing else to do
+                }
+            }
+        }
+
+        private void run(Runnable task) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error(0, "[OutboundWriter] Failed to write to a client.", e);
+            }
+        }
+
+        private void close() {
+            this.closed = true;
+            this.selector.wakeup();
+        }
+    }
+
+    private final WriteLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final ScheduledExecutorService watchdog;
+    private final AsyncLogger logger;
+    private final Set<OutboundQueue> queues = ConcurrentHashMap.newKeySet();
+    private final LongAdder queuedBytes = new LongAdder();
+    private final LongAdder stalls = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Starts the writer threads and the watchdog.
+     *
+     * @param config  the number of writer threads and the write timeout.
+     * @param logger  where evictions are logged.
+     * @param metrics where the queued bytes, stalls and evictions are reported.
+     * @throws IOException if a selector could not be opened.
+     */
+    public OutboundWriter(ServerConfig config, AsyncLogger logger, Metrics metrics) throws IOException {
+        this.logger = logger;
+        this.loops = new WriteLoop[Math.max(1, config.getOutboundWriterThreads())];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new WriteLoop();
+            Thread thread = new Thread(this.loops[i], "outbound-writer-" + (i + 1));
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbound-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkMillis = Math.max(100, config.getWriteTimeoutMillis() / 4);
+        this.watchdog.scheduleWithFixedDelay(this::evictStalled, checkMillis, checkMillis, TimeUnit.MILLISECONDS);
+
+        metrics.register("outbound.queued.bytes", this.queuedBytes::sum);
+        metrics.register("outbound.stalls", this.stalls::sum);
+        metrics.register("outbound.evictions", this.evictions::sum);
+    }
+
+    private void evictStalled() {
+        long now = System.nanoTime();
+        for (OutboundQueue queue : this.queues) {
+            if (queue.isWriteStalled(now)) {
+                queue.evict("Evicted slow client, it read nothing for longer than the write timeout");
+            }
+        }
+    }
+
+    /**
+     * @return the loop that writes the queue from now on.
+     */
+    WriteLoop register(OutboundQueue queue) {
+        this.queues.add(queue);
+        return this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+    }
+
+    void unregister(OutboundQueue queue) {
+        this.queues.remove(queue);
+    }
+
+    void addQueuedBytes(long bytes) {
+        this.queuedBytes.add(bytes);
+    }
+
+    void countStall() {
+        this.stalls.increment();
+    }
+
+    void countEviction(int port, String reason) {
+        this.evictions.increment();
+        this.logger.info(port, reason);
+    }
+
+    public void close() {
+        this.watchdog.shutdownNow();
+        for (WriteLoop loop : this.loops) {
+            loop.close();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures how many bytes per second are going through something.
+ * <p>
+ * Counts are kept in one slot per second, so recording is a couple of
+ * atomic adds and the rate is the average over the last few full seconds.
+ */
+public class RateMeter {
+
+    private static final int SLOTS = 8;
+    private static final int WINDOW_SECONDS = 4;
+
+    private final AtomicLongArray seconds = new AtomicLongArray(SLOTS);
+    private final AtomicLongArray counts = new AtomicLongArray(SLOTS);
+
+    /**
+     * Records bytes as sent right now.
+     *
+     * @param bytes the number of bytes sent.
+     */
+    public void record(long bytes) {
+        long second = currentSecond();
+        int slot = (int) (second % SLOTS);
+        long slotSecond = this.seconds.get(slot);
+        // First write in a new second takes over the slot from SLOTS seconds ago
+        if (slotSecond != second && this.seconds.compareAndSet(slot, slotSecond, second)) {
+            this.counts.set(slot, 0);
+        }
+        this.counts.addAndGet(slot, bytes);
+    }
+
+    /**
+     * @return the average bytes per second over the last few full seconds.
+     */
+    public long getBytesPerSecond() {
+        long second = currentSecond();
+        long total = 0;
+        for (int i = 1; i <= WINDOW_SECONDS; i++) {
+            int slot = (int) ((second - i) % SLOTS);
+            if (this.seconds.get(slot) == second - i) {
+                total += this.counts.get(slot);
+            }
+        }
+        return total / WINDOW_SECONDS;
+    }
+
+    private static long currentSecond() {
+        return System.nanoTime() / 1_000_000_000L;
+    }
+}
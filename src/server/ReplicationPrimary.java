@@ -0,0 +1,233 @@
+package server;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams the {@link ChangeLog} of the users folder to replica servers.
+ * <p>
+ * A replica connects to the replication port and sends the sequence number of the last
+ * change it applied, or -1 if it has nothing yet. It then gets every change after that
+ * one in order, or a full snapshot if the log doesn't go back that far. The current
+ * state of a changed path is sent rather than the change itself, so applying the
+ * entries in order always ends with the replica matching the primary.
+ * <p>
+ * Stream format, one record after another:
+ * [byte op][long sequence][long headSequence][long timeMillis][UTF path][long contentLength][content]
+ */
+public class ReplicationPrimary implements Runnable {
+
+    static final byte PUT = 0;
+    static final byte MKDIR = 1;
+    static final byte DELETE = 2;
+    static final byte HEARTBEAT = 3;
+    static final byte SNAPSHOT_START = 4;
+    static final byte SNAPSHOT_END = 5;
+
+    private static final long HEARTBEAT_MILLIS = 1000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final ChangeLog changeLog;
+    private final AsyncLogger logger;
+    private final Set<Socket> replicas = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+
+    /**
+     * Binds the replication port, call {@link #start()} to accept replicas.
+     *
+     * @param port      the port replicas connect to.
+     * @param changeLog the changes to send.
+     * @param logger    where to log problems.
+     * @param metrics   where the number of replicas is reported.
+     * @throws IOException if the port could not be bound.
+     */
+    public ReplicationPrimary(int port, ChangeLog changeLog, AsyncLogger logger, Metrics metrics) throws IOException {
+        this.serverSocket = new ServerSocket(port);
+        this.changeLog = changeLog;
+        this.logger = logger;
+        this.thread = new Thread(this, "replication-primary");
+        this.thread.setDaemon(true);
+        metrics.register("replication.replicas", this.replicas::size);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Socket socket = this.serverSocket.accept();
+                Thread replicaThread = new Thread(() -> this.serveReplica(socket), "replication-" + socket.getPort());
+                replicaThread.setDaemon(true);
+                replicaThread.start();
+            }
+        } catch (IOException e) {
+            if (!this.serverSocket.isClosed()) {
+                this.logger.error(0, "[ReplicationPrimary] Stopped accepting replicas.", e);
+            }
+        }
+    }
+
+    /**
+     * Sends changes to one replica until it disconnects.
+     *
+     * @param socket the connection to the replica.
+     */
+    private void serveReplica(Socket socket) {
+        this.replicas.add(socket);
+        byte[] buffer = new byte[BUFFER_BYTES];
+        try (DataInputStream in = new DataInputStream(socket.getInputStream());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES))) {
+            long sequence = in.readLong();
+            this.logger.info(socket.getPort(), "Replica connected at entry " + sequence);
+            while (true) {
+                List<ChangeLog.Entry> entries = sequence < 0 ? null : this.changeLog.entriesAfter(sequence, HEARTBEAT_MILLIS);
+                if (entries == null) {
+                    sequence = this.sendSnapshot(out, buffer);
+                    continue;
+                }
+                if (entries.isEmpty()) {
+                    this.writeRecord(out, HEARTBEAT, sequence, System.currentTimeMillis(), "");
+                }
+                for (ChangeLog.Entry entry : entries) {
+                    if (entry.kind == 'O') {
+                        // Changes were lost, only a snapshot brings the replica up to date
+                        sequence = this.sendSnapshot(out, buffer);
+                        break;
+                    }
+                    this.sendPath(out, entry.sequence, entry.timeMillis, entry.path, buffer);
+                    sequence = entry.sequence;
+                }
+                out.flush();
+            }
+        } catch (IOException e) {
+            this.logger.info(socket.getPort(), "Replica disconnected: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.replicas.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+
+    /**
+     * Sends every file and folder, the replica removes whatever it has that wasn't sent.
+     * <p>
+     * Changes made while the snapshot is sent are logged after its sequence number,
+     * so they are sent again afterwards.
+     *
+     * @return the sequence number the snapshot is up to date with.
+     */
+    private long sendSnapshot(DataOutputStream out, byte[] buffer) throws IOException {
+        long sequence = this.changeLog.getHeadSequence();
+        long timeMillis = System.currentTimeMillis();
+        Path root = this.changeLog.getRoot();
+        this.writeRecord(out, SNAPSHOT_START, sequence, timeMillis, "");
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root)) {
+                    sendPath(out, sequence, timeMillis, relativize(root, dir), buffer);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                sendPath(out, sequence, timeMillis, relativize(root, file), buffer);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE; // Deleted during the walk, its entry follows
+            }
+        });
+        this.writeRecord(out, SNAPSHOT_END, sequence, timeMillis, "");
+        out.flush();
+        return sequence;
+    }
+
+    private static String relativize(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * Sends the current state of a path: its content, that it's a folder, or that it's gone.
+     */
+    private void sendPath(DataOutputStream out, long sequence, long timeMillis, String path, byte[] buffer) throws IOException {
+        Path resolved = this.changeLog.getRoot().resolve(path);
+        if (Files.isDirectory(resolved)) {
+            this.writeRecord(out, MKDIR, sequence, timeMillis, path);
+            return;
+        }
+        File file = resolved.toFile();
+        try (InputStream fileIn = new FileInputStream(file)) {
+            this.writeRecord(out, PUT, sequence, timeMillis, path);
+            this.writeContent(out, fileIn, file.length(), buffer);
+        } catch (FileNotFoundException e) {
+            // Deleted, or a folder that was deleted before it could be checked
+            this.writeRecord(out, DELETE, sequence, timeMillis, path);
+        }
+    }
+
+    /**
+     * Writes everything of a record up to the content, a PUT must be followed by {@link #writeContent}.
+     */
+    private void writeRecord(DataOutputStream out, byte op, long sequence, long timeMillis, String path) throws IOException {
+        out.writeByte(op);
+        out.writeLong(sequence);
+        out.writeLong(this.changeLog.getHeadSequence());
+        out.writeLong(timeMillis);
+        out.writeUTF(path);
+        if (op != PUT) {
+            out.writeLong(0);
+        }
+    }
+
+    private void writeContent(DataOutputStream out, InputStream fileIn, long length, byte[] buffer) throws IOException {
+        out.writeLong(length);
+        long remaining = length;
+        int bytesReadIn;
+        while (remaining > 0 && (bytesReadIn = fileIn.read(buffer, 0, (int) Math.min(remaining, buffer.length))) > 0) {
+            out.write(buffer, 0, bytesReadIn);
+            remaining -= bytesReadIn;
+        }
+        // The file shrank while it was sent, the change that did it is in the log and fixes it
+        while (remaining > 0) {
+            int padding = (int) Math.min(remaining, buffer.length);
+            Arrays.fill(buffer, 0, padding, (byte) 0);
+            out.write(buffer, 0, padding);
+            remaining -= padding;
+        }
+    }
+
+    public void close() {
+        try {
+            this.serverSocket.close();
+        } catch (IOException e) {
+            this.logger.error(0, "[ReplicationPrimary] Failed to close.", e);
+        }
+        for (Socket socket : this.replicas) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+}
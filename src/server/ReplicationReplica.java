@@ -0,0 +1,239 @@
+package server;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+
+import static server.ReplicationPrimary.*;
+
+/**
+ * Keeps the users folder of a replica server the same as the primary's.
+ * <p>
+ * Connects to the primary's replication port and applies the changes it streams in order,
+ * see {@link ReplicationPrimary} for the format. Files are written next to their final
+ * path and moved into place, so clients never download a half written file. If the
+ * connection drops it reconnects and carries on from the last change it applied.
+ */
+public class ReplicationReplica implements Runnable {
+
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final String TEMP_SUFFIX = ".replicating";
+
+    private final String host;
+    private final int port;
+    private final Path root;
+    private final AsyncLogger logger;
+    private final Thread thread;
+    private volatile Socket socket;
+    private volatile boolean running = true;
+
+    // -1 until the first snapshot is applied
+    private volatile long appliedSequence = -1;
+    private volatile long headSequence = 0;
+    private volatile long lagMillis = 0;
+
+    // Paths sent by the snapshot being applied, null when not in a snapshot
+    private Set<Path> snapshotPaths = null;
+
+    /**
+     * Call {@link #start()} to start replicating.
+     *
+     * @param primary the "host:port" of the primary's replication port.
+     * @param root    the users folder of this server.
+     * @param logger  where to log problems.
+     * @param metrics where the replication lag is reported.
+     */
+    public ReplicationReplica(String primary, Path root, AsyncLogger logger, Metrics metrics) {
+        int separator = primary.lastIndexOf(':');
+        this.host = primary.substring(0, separator);
+        this.port = Integer.parseInt(primary.substring(separator + 1));
+        this.root = root.toAbsolutePath().normalize();
+        this.logger = logger;
+        this.thread = new Thread(this, "replication-replica");
+        this.thread.setDaemon(true);
+        metrics.register("replication.applied", () -> this.appliedSequence);
+        metrics.register("replication.lag.entries", () -> Math.max(0, this.headSequence - this.appliedSequence));
+        metrics.register("replication.lag.millis", () -> this.lagMillis);
+        metrics.register("replication.connected", () -> this.socket != null ? 1 : 0);
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(this.host, this.port), CONNECT_TIMEOUT_MILLIS);
+                this.socket = socket;
+                this.logger.info(0, String.format("Replicating from %s:%d at entry %d", this.host, this.port, this.appliedSequence));
+                this.replicate(socket);
+            } catch (IOException e) {
+                if (this.running) {
+                    this.logger.info(0, "Lost the connection to the primary: " + e.getMessage());
+                }
+            } finally {
+                this.socket = null;
+            }
+
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Applies records until the connection is closed.
+     */
+    private void replicate(Socket socket) throws IOException {
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeLong(this.appliedSequence);
+        out.flush();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES));
+        byte[] buffer = new byte[BUFFER_BYTES];
+        this.snapshotPaths = null;
+        while (true) {
+            byte op = in.readByte();
+            long sequence = in.readLong();
+            this.headSequence = in.readLong();
+            long timeMillis = in.readLong();
+            String path = in.readUTF();
+            long contentLength = in.readLong();
+
+            Path resolved = path.isEmpty() ? this.root : this.resolve(path);
+            switch (op) {
+                case PUT:
+                    this.put(resolved, in, contentLength, buffer);
+                    break;
+                case MKDIR:
+                    // A file with the same name was replaced by a folder
+                    if (Files.isRegularFile(resolved, LinkOption.NOFOLLOW_LINKS)) {
+                        Files.delete(resolved);
+                    }
+                    Files.createDirectories(resolved);
+                    break;
+                case DELETE:
+                    this.delete(resolved);
+                    break;
+                case SNAPSHOT_START:
+                    this.logger.info(0, "Applying snapshot of entry " + sequence);
+                    this.snapshotPaths = new HashSet<>();
+                    break;
+                case SNAPSHOT_END:
+                    this.removeMissing(this.snapshotPaths);
+                    this.snapshotPaths = null;
+                    break;
+                case HEARTBEAT:
+                    break;
+                default:
+                    throw new IOException("[ReplicationReplica] Unknown record: " + op);
+            }
+            if (this.snapshotPaths != null) {
+                this.snapshotPaths.add(resolved);
+                continue; // Only counts as applied once the whole snapshot is
+            }
+
+            this.appliedSequence = sequence;
+            this.lagMillis = sequence >= this.headSequence ? 0 : Math.max(0, System.currentTimeMillis() - timeMillis);
+        }
+    }
+
+    /**
+     * Makes sure a path from the primary stays in the users folder.
+     */
+    private Path resolve(String path) throws IOException {
+        Path resolved = this.root.resolve(path).normalize();
+        if (!resolved.startsWith(this.root) || resolved.equals(this.root)) {
+            throw new IOException("[ReplicationReplica] Path outside of the users folder: " + path);
+        }
+        return resolved;
+    }
+
+    private void put(Path path, DataInputStream in, long length, byte[] buffer) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path tempPath = path.resolveSibling(path.getFileName() + TEMP_SUFFIX);
+        try (OutputStream fileOut = new FileOutputStream(tempPath.toFile())) {
+            long remaining = length;
+            while (remaining > 0) {
+                int chunk = (int) Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, chunk);
+                fileOut.write(buffer, 0, chunk);
+                remaining -= chunk;
+            }
+        }
+        // A folder with the same name was replaced by a file
+        if (Files.isDirectory(path)) {
+            this.delete(path);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes a file, or a folder and everything in it.
+     */
+    private void delete(Path path) throws IOException {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Deletes everything in the users folder that the snapshot didn't have.
+     */
+    private void removeMissing(Set<Path> keep) throws IOException {
+        Files.walkFileTree(this.root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && !keep.contains(dir)) {
+                    delete(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (!keep.contains(file)) {
+                    Files.deleteIfExists(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    public void close() {
+        this.running = false;
+        this.thread.interrupt();
+        Socket socket = this.socket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing else to do
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs requests on one of two pools, so bulk transfers can't slow down interactive commands.
+ * <p>
+ * Interactive commands such as "ls", "cd" and "help" run on a small pool of their own.
+ * Downloads, syncs and other requests that read a lot from disk run on a separate pool
+ * with a bounded queue: once every bulk thread is busy and the queue is full, new bulk
+ * requests are turned away instead of piling up behind the ones already running. The
+ * separation is what keeps interactive commands fast, thread priorities are ignored by
+ * the JVM on Linux unless told otherwise.
+ * <p>
+ * The connection's handler thread waits for its request to finish and sends the response
+ * itself, so the requests of one connection are still handled one at a time and in order,
+ * and a client that is slow to read holds up no pool thread.
+ */
+public class RequestScheduler {
+
+    private final ThreadPoolExecutor interactivePool;
+    private final ThreadPoolExecutor bulkPool;
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * Starts both pools.
+     *
+     * @param config  the size of the pools and of the bulk queue.
+     * @param metrics where the queues and rejections are reported.
+     */
+    public RequestScheduler(ServerConfig config, Metrics metrics) {
+        int interactiveThreads = Math.max(1, config.getInteractiveThreads());
+        this.interactivePool = new ThreadPoolExecutor(interactiveThreads, interactiveThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), threadFactory("interactive-"));
+        int bulkThreads = Math.max(1, config.getBulkThreads());
+        this.bulkPool = new ThreadPoolExecutor(bulkThreads, bulkThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.getBulkQueueCapacity())),
+                threadFactory("bulk-"));
+
+        metrics.register("scheduler.interactive.active", this.interactivePool::getActiveCount);
+        metrics.register("scheduler.interactive.queued", () -> this.interactivePool.getQueue().size());
+        metrics.register("scheduler.bulk.active", this.bulkPool::getActiveCount);
+        metrics.register("scheduler.bulk.queued", () -> this.bulkPool.getQueue().size());
+        metrics.register("scheduler.bulk.rejected", this.rejected::sum);
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Runs a request on the interactive pool and waits for it.
+     *
+     * @param request the work of the request.
+     * @param <T>     the result of the request.
+     * @return the result.
+     * @throws IOException if the request threw one, the wait was interrupted, or the server is closing.
+     */
+    public <T> T runInteractive(Callable<T> request) throws IOException {
+        Future<T> future;
+        try {
+            future = this.interactivePool.submit(request);
+        } catch (RejectedExecutionException e) {
+            throw new IOException("[RequestScheduler] The server is closing.", e);
+        }
+        return await(future);
+    }
+
+    /**
+     * Runs a request on the bulk pool and waits for it.
+     *
+     * @param request the work of the request.
+     * @param <T>     the result of the request.
+     * @return the result.
+     * @throws RejectedExecutionException if the bulk pool is full, the request was not run.
+     * @throws IOException                if the request threw one, or the wait was interrupted.
+     */
+    public <T> T runBulk(Callable<T> request) throws IOException {
+        Future<T> future;
+        try {
+            future = this.bulkPool.submit(request);
+        } catch (RejectedExecutionException e) {
+            this.rejected.increment();
+            throw e;
+        }
+        return await(future);
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("[RequestScheduler] Interrupted while waiting for a request.", e);
+        } catch (CancellationException e) {
+            throw new IOException("[RequestScheduler] Request cancelled, the server is closing.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("[RequestScheduler] Request failed.", cause);
+        }
+    }
+
+    /**
+     * Stops both pools. Requests still queued are cancelled, so their handler threads stop waiting.
+     */
+    public void close() {
+        for (ThreadPoolExecutor pool : new ThreadPoolExecutor[]{this.interactivePool, this.bulkPool}) {
+            for (Runnable queued : pool.shutdownNow()) {
+                ((Future<?>) queued).cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The rsync weak checksum, which can slide over data one byte at a time.
+ * <p>
+ * a is the sum of the bytes and b is the sum of the running values of a,
+ * both kept to 16 bits. The checksum is a in the low half and b in the high half.
+ */
+public class RollingChecksum {
+
+    private final int blockSize;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Starts over on a new window.
+     */
+    public void reset(ByteBuffer data, int offset) {
+        this.a = 0;
+        this.b = 0;
+        for (int i = 0; i < this.blockSize; i++) {
+            int x = data.get(offset + i) & 0xff;
+            this.a += x;
+            this.b += (this.blockSize - i) * x;
+        }
+    }
+
+    /**
+     * Slides the window forward by one byte.
+     *
+     * @param out the byte leaving the window.
+     * @param in  the byte entering the window.
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xff;
+        this.a += (in & 0xff) - x;
+        this.b += this.a - this.blockSize * x;
+    }
+
+    public int value() {
+        return (this.a & 0xffff) | (this.b << 16);
+    }
+
+    /**
+     * Computes the checksum of one window.
+     */
+    public static int of(ByteBuffer data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum(length);
+        checksum.reset(data, offset);
+        return checksum.value();
+    }
+}
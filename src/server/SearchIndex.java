@@ -0,0 +1,449 @@
+package server;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * An in-memory inverted index over the text files in the users folder, used by the "search" command.
+ * <p>
+ * The index is saved to disk with the version (last modified time and size) of every file in it,
+ * so after a restart only files that changed are read again. Files are indexed in parallel on the
+ * given pool, and kept up to date with the changes reported by a {@link FileWatcher}.
+ */
+public class SearchIndex implements FileChangeListener {
+
+    private static final int FORMAT_VERSION = 1;
+    private static final long MAX_FILE_BYTES = 8 * 1024 * 1024;
+    private static final int SNIFF_BYTES = 8 * 1024;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_RESULTS = 20;
+    private static final int LOCK_STRIPES = 64;
+    private static final long SAVE_INTERVAL_SECONDS = 30;
+
+    private final Path usersFolder;
+    private final Path baseFolder;
+    private final File indexFile;
+    private final ForkJoinPool pool;
+    private final AsyncLogger logger;
+    private final ScheduledExecutorService saver;
+
+    // path -> indexed document, and term -> (path -> number of times the term is in the document)
+    private final Map<String, Document> documents = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Integer>> postings = new ConcurrentHashMap<>();
+    // The same paths in order, so everything under a deleted folder is found without scanning them all
+    private final NavigableSet<String> sortedPaths = new ConcurrentSkipListSet<>();
+    // Updates to the same document are made one at a time
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private volatile boolean dirty = false;
+    private volatile boolean ready = false;
+
+    /**
+     * A single indexed file.
+     */
+    private static class Document {
+        final String path;
+        final long lastModified;
+        final long length;
+        final int totalTerms;
+        final Map<String, Integer> termCounts;
+
+        Document(String path, long lastModified, long length, Map<String, Integer> termCounts) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.length = length;
+            this.termCounts = termCounts;
+            int total = 0;
+            for (int count : termCounts.values()) {
+                total += count;
+            }
+            this.totalTerms = total;
+        }
+    }
+
+    /**
+     * A single search result.
+     */
+    public static class Result {
+        public final String path;
+        public final double score;
+
+        Result(String path, double score) {
+            this.path = path;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Creates an empty index, call {@link #start()} to fill it.
+     *
+     * @param usersFolder the folder to index.
+     * @param indexFile   where the index is saved between restarts.
+     * @param pool        the pool files are read and indexed on.
+     * @param logger      where to log problems.
+     * @param metrics     where the size of the index is reported.
+     */
+    public SearchIndex(File usersFolder, File indexFile, ForkJoinPool pool, AsyncLogger logger, Metrics metrics) {
+        this.usersFolder = usersFolder.toPath().toAbsolutePath().normalize();
+        this.baseFolder = this.usersFolder.getParent();
+        this.indexFile = indexFile;
+        this.pool = pool;
+        this.logger = logger;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.locks[i] = new Object();
+        }
+        this.saver = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "search-index-saver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.register("search.documents", this.documents::size);
+        metrics.register("search.terms", this.postings::size);
+        metrics.register("search.ready", () -> this.ready ? 1 : 0);
+    }
+
+    /**
+     * Loads the saved index and brings it up to date in the background.
+     */
+    public void start() {
+        this.load();
+        this.pool.execute(this::rebuild);
+        this.saver.scheduleWithFixedDelay(() -> {
+            if (this.dirty) {
+                this.save();
+            }
+        }, SAVE_INTERVAL_SECONDS, SAVE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return true once the index has been brought up to date with the users folder since starting.
+     */
+    public boolean isReady() {
+        return this.ready;
+    }
+
+    /**
+     * Finds the files that contain any of the terms, best matches first.
+     * <p>
+     * Files are scored with tf-idf: terms that are in few files count for more, and
+     * the count of a term is scaled down for long files.
+     *
+     * @param query the terms to search for, separated by spaces or punctuation.
+     * @return up to {@value #MAX_RESULTS} results.
+     */
+    public List<Result> search(String query) {
+        Map<String, Double> scores = new HashMap<>();
+        int totalDocuments = Math.max(1, this.documents.size());
+        for (String term : new HashSet<>(tokenize(query).keySet())) {
+            Map<String, Integer> matches = this.postings.get(term);
+            if (matches == null || matches.isEmpty()) {
+                continue;
+            }
+            double idf = Math.log(1 + (double) totalDocuments / matches.size());
+            for (Map.Entry<String, Integer> match : matches.entrySet()) {
+                Document document = this.documents.get(match.getKey());
+                if (document == null) {
+                    continue;
+                }
+                double tf = match.getValue() / Math.sqrt(Math.max(1, document.totalTerms));
+                scores.merge(match.getKey(), tf * idf, Double::sum);
+            }
+        }
+
+        return scores.entrySet().stream()
+                .sorted(Map.Entry.<String, Double>comparingByValue().reversed())
+                .limit(MAX_RESULTS)
+                .map(entry -> new Result(entry.getKey(), entry.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Keeps the index up to date with the users folder.
+     */
+    @Override
+    public void onFileChange(Path path, WatchEvent.Kind<?> kind) {
+        if (kind == OVERFLOW) {
+            this.pool.execute(this::rebuild);
+        } else if (kind == ENTRY_DELETE) {
+            // Could have been a folder, so drop everything under it too
+            String key = this.toKey(path);
+            this.remove(key);
+            // '0' comes right after '/', so this is every path that starts with key + "/"
+            for (String documentPath : new ArrayList<>(this.sortedPaths.subSet(key + "/", key + "0"))) {
+                this.remove(documentPath);
+            }
+        } else if (Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS)) {
+            this.pool.execute(() -> this.indexIfChanged(path));
+        }
+    }
+
+    /**
+     * Indexes every file that changed since it was last indexed, in parallel,
+     * and drops files that no longer exist.
+     */
+    private void rebuild() {
+        long start = System.nanoTime();
+        List<Path> files = new ArrayList<>();
+        try {
+            Files.walkFileTree(this.usersFolder, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        files.add(file);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException e) {
+                    // An unreadable folder is left out, the rest is still indexed
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            this.logger.error(0, "[SearchIndex] Failed to walk the users folder.", e);
+            return;
+        }
+
+        // Runs on the pool this is called from, so the work is spread over all its workers
+        files.parallelStream().forEach(this::indexIfChanged);
+
+        Set<String> existing = files.stream().map(this::toKey).collect(Collectors.toSet());
+        for (String documentPath : this.documents.keySet()) {
+            if (!existing.contains(documentPath) && !Files.exists(this.baseFolder.resolve(documentPath))) {
+                this.remove(documentPath);
+            }
+        }
+
+        this.ready = true;
+        this.logger.info(0, String.format("[SearchIndex] Indexed %d files in %d ms.",
+                this.documents.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        if (this.dirty) {
+            this.save();
+        }
+    }
+
+    /**
+     * Indexes a file if its last modified time or size changed since it was indexed.
+     * <p>
+     * Runs under the lock of the file, so the watcher and a rebuild can't both see it
+     * changed and leave the older read of it in the index.
+     */
+    private void indexIfChanged(Path file) {
+        String key = this.toKey(file);
+        synchronized (this.lockFor(key)) {
+            this.indexIfChanged(file, key);
+        }
+    }
+
+    private void indexIfChanged(Path file, String key) {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            long lastModified = attributes.lastModifiedTime().toMillis();
+            Document document = this.documents.get(key);
+            if (document != null && document.lastModified == lastModified && document.length == attributes.size()) {
+                return;
+            }
+
+            Map<String, Integer> termCounts = readTerms(file, attributes.size());
+            if (termCounts == null) {
+                this.remove(key);
+                return;
+            }
+            this.replace(key, new Document(key, lastModified, attributes.size(), termCounts));
+        } catch (NoSuchFileException e) {
+            this.remove(key);
+        } catch (IOException e) {
+            this.logger.error(0, "[SearchIndex] Failed to index file: " + key, e);
+        }
+    }
+
+    /**
+     * Reads the terms of a text file.
+     *
+     * @return the number of times each term is in the file, or null if it is not a text file.
+     */
+    private static Map<String, Integer> readTerms(Path file, long length) throws IOException {
+        if (length > MAX_FILE_BYTES) {
+            return null;
+        }
+        byte[] content = Files.readAllBytes(file);
+        // Text files don't have null bytes, most binary files have them early on
+        for (int i = 0; i < Math.min(content.length, SNIFF_BYTES); i++) {
+            if (content[i] == 0) {
+                return null;
+            }
+        }
+        return tokenize(new String(content, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Splits text into lower case terms made of letters and digits.
+     *
+     * @return the number of times each term is in the text.
+     */
+    private static Map<String, Integer> tokenize(String text) {
+        Map<String, Integer> termCounts = new HashMap<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                term.append(Character.toLowerCase(c));
+            } else if (term.length() > 0) {
+                if (term.length() >= MIN_TERM_LENGTH) {
+                    termCounts.merge(term.toString(), 1, Integer::sum);
+                }
+                term.setLength(0);
+            }
+        }
+        return termCounts;
+    }
+
+    /**
+     * Swaps the indexed version of a document for a new one.
+     */
+    private void replace(String key, Document document) {
+        synchronized (this.lockFor(key)) {
+            Document old = this.documents.put(key, document);
+            this.sortedPaths.add(key);
+            if (old != null) {
+                this.removePostings(old);
+            }
+            for (Map.Entry<String, Integer> termCount : document.termCounts.entrySet()) {
+                // Inside compute, so removePostings can't drop the map between getting it and the put
+                this.postings.compute(termCount.getKey(), (term, matches) -> {
+                    if (matches == null) {
+                        matches = new ConcurrentHashMap<>();
+                    }
+                    matches.put(key, termCount.getValue());
+                    return matches;
+                });
+            }
+            this.dirty = true;
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (this.lockFor(key)) {
+            Document old = this.documents.remove(key);
+            if (old != null) {
+                this.sortedPaths.remove(key);
+                this.removePostings(old);
+                this.dirty = true;
+            }
+        }
+    }
+
+    private void removePostings(Document document) {
+        for (String term : document.termCounts.keySet()) {
+            this.postings.computeIfPresent(term, (ignored, matches) -> {
+                matches.remove(document.path);
+                return matches.isEmpty() ? null : matches;
+            });
+        }
+    }
+
+    private Object lockFor(String key) {
+        return this.locks[(key.hashCode() & 0x7fffffff) % LOCK_STRIPES];
+    }
+
+    /**
+     * Turns an absolute path into the location style key of the index, ex. "users/alice/documents/todo.txt".
+     */
+    private String toKey(Path path) {
+        return this.baseFolder.relativize(path.toAbsolutePath().normalize()).toString().replace('\\', '/');
+    }
+
+    // Saving and loading
+
+    /**
+     * Writes the index to a temporary file and moves it over the index file,
+     * so a crash while saving never leaves a broken index.
+     */
+    public synchronized void save() {
+        this.dirty = false;
+        File tempFile = new File(this.indexFile.getPath() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            output.writeInt(FORMAT_VERSION);
+            Collection<Document> snapshot = new ArrayList<>(this.documents.values());
+            output.writeInt(snapshot.size());
+            for (Document document : snapshot) {
+                output.writeUTF(document.path);
+                output.writeLong(document.lastModified);
+                output.writeLong(document.length);
+                output.writeInt(document.termCounts.size());
+                for (Map.Entry<String, Integer> termCount : document.termCounts.entrySet()) {
+                    output.writeUTF(termCount.getKey());
+                    output.writeInt(termCount.getValue());
+                }
+            }
+        } catch (IOException e) {
+            this.dirty = true;
+            this.logger.error(0, "[SearchIndex] Failed to save the index.", e);
+            return;
+        }
+
+        try {
+            Files.move(tempFile.toPath(), this.indexFile.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            this.dirty = true;
+            this.logger.error(0, "[SearchIndex] Failed to replace the index file.", e);
+        }
+    }
+
+    /**
+     * Reads the saved index, if there is one. A broken or outdated file is ignored,
+     * the rebuild afterwards will index everything again.
+     */
+    private void load() {
+        if (!this.indexFile.isFile()) {
+            return;
+        }
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.indexFile)))) {
+            if (input.readInt() != FORMAT_VERSION) {
+                return;
+            }
+            int documentCount = input.readInt();
+            for (int i = 0; i < documentCount; i++) {
+                String path = input.readUTF();
+                long lastModified = input.readLong();
+                long length = input.readLong();
+                int termCount = input.readInt();
+                Map<String, Integer> termCounts = new HashMap<>();
+                for (int j = 0; j < termCount; j++) {
+                    termCounts.put(input.readUTF(), input.readInt());
+                }
+                this.replace(path, new Document(path, lastModified, length, termCounts));
+            }
+            this.dirty = false;
+            this.logger.info(0, String.format("[SearchIndex] Loaded %d files from %s.", documentCount, this.indexFile));
+        } catch (IOException e) {
+            this.logger.error(0, "[SearchIndex] Failed to load the saved index, rebuilding it.", e);
+            this.documents.clear();
+            this.sortedPaths.clear();
+            this.postings.clear();
+        }
+    }
+
+    /**
+     * Stops saving in the background and saves any changes.
+     */
+    public void close() {
+        this.saver.shutdown();
+        if (this.dirty) {
+            this.save();
+        }
+    }
+}
@@ -1,42 +1,344 @@
 package server;
 
+import server.events.ProtocolRecording;
+
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Server implements Runnable{
 
-    private ServerSocket serverSocket;
+    private final List<ServerSocketChannel> serverSockets = new ArrayList<>();
+    private final int port;
     private File usersFolder;
-    private List<ClientHandler> clientHandlers = new ArrayList<>();
+    private final ServerConfig config;
+    private final Metrics metrics = new Metrics();
+    private final BandwidthShaper bandwidthShaper;
+    private final AsyncLogger logger;
+    private final OutboundWriter outboundWriter;
+    private final BufferPool bufferPool;
+    private final FileHashCache fileHashCache = new FileHashCache(this.metrics);
+    private final BlockSignatureCache blockSignatureCache = new BlockSignatureCache(this.metrics);
+    private final DeltaEncoder deltaEncoder = new DeltaEncoder(this.blockSignatureCache, this.fileHashCache);
+    private final ExecutorService handlerPool;
+    private final ForkJoinPool walkerPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private final FileTreeWalker fileTreeWalker = new FileTreeWalker(this.walkerPool);
+    private final FileWatcher fileWatcher;
+    private final SearchIndex searchIndex;
+    private final WatchHub watchHub;
+    private final ContentCache contentCache;
+    private final RequestScheduler requestScheduler;
+    private final ChangeLog changeLog;
+    private final ReplicationPrimary replicationPrimary;
+    private final ReplicationReplica replicationReplica;
+    private final SessionTable sessionTable;
+    private final ProtocolRecording protocolRecording = new ProtocolRecording();
+    private final HashRing hashRing;
+    private final String clusterSelf;
+    private final LongAdder acceptedConnections = new LongAdder();
+    private Set<ClientHandler> clientHandlers = ConcurrentHashMap.newKeySet();
 
     public Server(int port, File usersFolder) throws IOException {
-        this.serverSocket = new ServerSocket(port);
+        this(port, usersFolder, ServerConfig.fromSystemProperties());
+    }
+
+    public Server(int port, File usersFolder, ServerConfig config) throws IOException {
         this.usersFolder = usersFolder;
+        this.config = config;
+        this.bandwidthShaper = new BandwidthShaper(config, this.metrics);
+        this.logger = new AsyncLogger(config.getLogBufferCapacity(), config.getLogFile());
+        this.bufferPool = new BufferPool(config.getBufferPoolBytes(), config.isBufferLeakDetection(), this.logger, this.metrics);
+        this.outboundWriter = new OutboundWriter(config, this.logger, this.metrics);
+        this.requestScheduler = new RequestScheduler(config, this.metrics);
+        this.handlerPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.metrics.register("log.dropped", this.logger::getDropped);
+        this.metrics.register("log.written", this.logger::getWritten);
+        this.metrics.register("connections", () -> this.clientHandlers.size());
+        this.metrics.register("connections.accepted", this.acceptedConnections::sum);
+        this.metrics.register("listeners", this.serverSockets::size);
+        this.sessionTable = new SessionTable(config.getSessionCapacity(), config.getSessionTtlMillis(), this.metrics);
+
+        this.fileWatcher = new FileWatcher(usersFolder.toPath(), this.logger);
+        this.metrics.register("fileWatcher.unwatched", this.fileWatcher::getUnwatchedFolders);
+        this.searchIndex = new SearchIndex(usersFolder, new File(config.getSearchIndexFile()),
+                this.walkerPool, this.logger, this.metrics);
+        this.fileWatcher.addListener(this.searchIndex);
+        this.watchHub = new WatchHub(usersFolder, this.metrics);
+        this.fileWatcher.addListener(this.watchHub);
+        this.contentCache = new ContentCache(usersFolder, config.getContentCacheBytes(),
+                config.getContentCacheMaxFileBytes(), this.logger, this.metrics);
+        this.fileWatcher.addListener(this.contentCache);
+
+        // A primary logs every change for its replicas, a replica applies them. A replica can be a primary too.
+        if (config.getReplicationPort() > 0) {
+            this.changeLog = new ChangeLog(usersFolder.toPath(), new File(config.getReplicationLogFile()),
+                    config.getReplicationLogCapacity(), this.logger, this.metrics);
+            this.fileWatcher.addListener(this.changeLog);
+            this.replicationPrimary = new ReplicationPrimary(config.getReplicationPort(), this.changeLog, this.logger, this.metrics);
+        } else {
+            this.changeLog = null;
+            this.replicationPrimary = null;
+        }
+        this.replicationReplica = config.getReplicaOf() == null ? null
+                : new ReplicationReplica(config.getReplicaOf(), usersFolder.toPath(), this.logger, this.metrics);
+
+        this.fileWatcher.start();
+        this.contentCache.warmUp(new File(config.getHotSetFile()), config.getWarmupThreads());
+        this.searchIndex.start();
+        if (this.replicationPrimary != null) {
+            this.replicationPrimary.start();
+        }
+        if (this.replicationReplica != null) {
+            this.replicationReplica.start();
+        }
+
+        // Bound last, so nothing above that fails leaves a listener holding the port
+        this.serverSockets.addAll(bindListeners(port, Math.max(1, config.getAcceptorThreads()), config.getAcceptBacklog()));
+        this.port = this.serverSockets.get(0).socket().getLocalPort();
+
+        // In a cluster every node serves only the user folders the ring gives it
+        List<String> clusterNodes = new ArrayList<>();
+        for (String node : config.getClusterNodes().split(",")) {
+            if (!node.trim().isEmpty()) {
+                clusterNodes.add(node.trim());
+            }
+        }
+        this.clusterSelf = config.getClusterSelf() != null ? config.getClusterSelf() : "localhost:" + this.port;
+        this.hashRing = clusterNodes.isEmpty() ? null : new HashRing(clusterNodes, config.getClusterVirtualNodes());
+        this.metrics.register("cluster.nodes", () -> this.hashRing == null ? 1 : this.hashRing.getNodes().size());
+    }
+
+    /**
+     * Binds the listening sockets.
+     * <p>
+     * With more than one acceptor thread and SO_REUSEPORT available (Linux), every acceptor
+     * gets its own socket bound to the same port and the kernel spreads new connections
+     * between them. Otherwise a single socket is shared by all the acceptors.
+     *
+     * @param port      the port to listen on, 0 for any free port.
+     * @param acceptors the number of acceptor threads.
+     * @param backlog   the listen backlog of every socket.
+     * @return the bound sockets, all on the port of the first one.
+     * @throws IOException if a socket could not be bound, none of them are left open.
+     */
+    static List<ServerSocketChannel> bindListeners(int port, int acceptors, int backlog) throws IOException {
+        List<ServerSocketChannel> listeners = new ArrayList<>();
+        try {
+            ServerSocketChannel first = ServerSocketChannel.open();
+            listeners.add(first);
+            boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            first.bind(new InetSocketAddress(port), backlog);
+            int boundPort = first.socket().getLocalPort();
+
+            // Bind the rest to the port the first one got, in case it was picked by the OS
+            for (int i = 1; reusePort && i < acceptors; i++) {
+                ServerSocketChannel serverSocket = ServerSocketChannel.open();
+                listeners.add(serverSocket);
+                serverSocket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                serverSocket.bind(new InetSocketAddress(boundPort), backlog);
+            }
+            return listeners;
+        } catch (IOException e) {
+            for (ServerSocketChannel serverSocket : listeners) {
+                try {
+                    serverSocket.close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            throw e;
+        }
     }
 
     public void run() {
+        // Until the hot set is mostly loaded new connections wait in the backlog
+        try {
+            if (!this.contentCache.awaitWarm(this.config.getWarmupFraction(), this.config.getWarmupTimeoutMillis())) {
+                this.logger.info(0, "Accepting connections before the warm-up is done.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        int acceptors = Math.max(1, this.config.getAcceptorThreads());
+        for (int i = 1; i < acceptors; i++) {
+            ServerSocketChannel serverSocket = this.serverSockets.get(i % this.serverSockets.size());
+            Thread thread = new Thread(() -> this.acceptLoop(serverSocket), "acceptor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        this.acceptLoop(this.serverSockets.get(0));
+    }
+
+    /**
+     * Accepts connections from one listening socket and hands them to the handler pool until it is closed.
+     * <p>
+     * Connections are made non-blocking, so the {@link OutboundWriter} never waits on a client.
+     *
+     * @param serverSocket the socket to accept from.
+     */
+    private void acceptLoop(ServerSocketChannel serverSocket) {
         try {
             while (true) {
-                ClientHandler clientHandler = new ClientHandler(this.serverSocket.accept(), this);
+                SocketChannel channel = serverSocket.accept();
+                try {
+                    channel.configureBlocking(false);
+                } catch (IOException e) {
+                    channel.close(); // Already gone
+                    continue;
+                }
+                ClientHandler clientHandler = new ClientHandler(channel.socket(), this);
+                this.acceptedConnections.increment();
                 this.clientHandlers.add(clientHandler);
-                Thread thread = new Thread(clientHandler);
-                thread.setDaemon(true);
-                thread.start();
+                this.handlerPool.execute(clientHandler);
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            if (serverSocket.isOpen()) {
+                this.logger.error(0, "Stopped accepting connections.", e);
+            }
         }
     }
 
     public void close() throws IOException {
+        for (ServerSocketChannel serverSocket : this.serverSockets) {
+            serverSocket.close();
+        }
         for (ClientHandler clientHandler : this.clientHandlers) {
             clientHandler.close();
         }
         this.clientHandlers.clear();
-        this.serverSocket.close();
+        this.handlerPool.shutdown();
+        this.requestScheduler.close();
+        this.outboundWriter.close();
+        this.contentCache.saveHotSet(new File(this.config.getHotSetFile()), this.config.getHotSetEntries());
+        if (this.replicationReplica != null) {
+            this.replicationReplica.close();
+        }
+        if (this.replicationPrimary != null) {
+            this.replicationPrimary.close();
+            this.changeLog.close();
+        }
+        this.fileWatcher.close();
+        this.searchIndex.close();
+        this.walkerPool.shutdown();
+        this.bufferPool.reportLeaks();
+        this.logger.close();
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    public AsyncLogger getLogger() {
+        return this.logger;
+    }
+
+    public File getUsersFolder() {
+        return this.usersFolder;
+    }
+
+    public FileTreeWalker getFileTreeWalker() {
+        return this.fileTreeWalker;
+    }
+
+    public FileWatcher getFileWatcher() {
+        return this.fileWatcher;
+    }
+
+    public SearchIndex getSearchIndex() {
+        return this.searchIndex;
+    }
+
+    public FileHashCache getFileHashCache() {
+        return this.fileHashCache;
+    }
+
+    /**
+     * Finds the node that serves a location when running in a cluster.
+     * <p>
+     * Locations are owned by their user folder, ex. "users/alice/pictures" by the owner of "alice".
+     * The users folder itself is served by every node.
+     *
+     * @param location the location.
+     * @return the "host:port" of the node that owns it, or null if it is this node.
+     */
+    public String getOwner(String location) {
+        String[] parts = location.split("/");
+        if (this.hashRing == null || parts.length < 2) {
+            return null;
+        }
+        String owner = this.hashRing.nodeFor(parts[1]);
+        return owner == null || owner.equals(this.clusterSelf) ? null : owner;
+    }
+
+    /**
+     * @return true if user folders are spread over the nodes of a cluster.
+     */
+    public boolean isClustered() {
+        return this.hashRing != null;
+    }
+
+    public WatchHub getWatchHub() {
+        return this.watchHub;
+    }
+
+    public OutboundWriter getOutboundWriter() {
+        return this.outboundWriter;
+    }
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    public ContentCache getContentCache() {
+        return this.contentCache;
+    }
+
+    public RequestScheduler getRequestScheduler() {
+        return this.requestScheduler;
+    }
+
+    public SessionTable getSessionTable() {
+        return this.sessionTable;
+    }
+
+    public ProtocolRecording getProtocolRecording() {
+        return this.protocolRecording;
+    }
+
+    public ServerConfig getConfig() {
+        return this.config;
+    }
+
+    public DeltaEncoder getDeltaEncoder() {
+        return this.deltaEncoder;
+    }
+
+    public BandwidthShaper getBandwidthShaper() {
+        return this.bandwidthShaper;
     }
 
     public void removeClientHandler(ClientHandler clientHandler) {
@@ -0,0 +1,615 @@
+package server;
+
+/**
+ * Tunable settings for a {@link Server} and its {@link ClientHandler}s.
+ * <p>
+ * Every setting has a sane default and can be overridden with a system property,
+ * ex. "-Dserver.maxContentBytes=1048576".
+ */
+public class ServerConfig {
+
+    private int maxLocationBytes = 4 * 1024;
+    private int maxContentTypeBytes = 256;
+    private int maxContentBytes = 16 * 1024 * 1024;
+    private int transferBufferBytes = 64 * 1024;
+    private long connectionDownloadBytesPerSecond = 0;
+    private long userDownloadBytesPerSecond = 0;
+    private long serverDownloadBytesPerSecond = 0;
+    private long downloadBurstBytes = 256 * 1024;
+    private int logBufferCapacity = 8192;
+    private String logFile = null;
+    private int acceptorThreads = 1;
+    private int acceptBacklog = 50;
+    private String searchIndexFile = "search-index.bin";
+    private int sessionCapacity = 10_000;
+    private long sessionTtlMillis = 30 * 60 * 1000;
+    private String clusterNodes = "";
+    private String clusterSelf = null;
+    private int clusterVirtualNodes = 128;
+    private int replicationPort = 0;
+    private String replicaOf = null;
+    private String replicationLogFile = "replication.log";
+    private int replicationLogCapacity = 100_000;
+    private String traceFile = "protocol.jfr";
+    private long traceThresholdMillis = 0;
+    private boolean traceCommandEnabled = false;
+    private long outboundHighWatermarkBytes = 1024 * 1024;
+    private long outboundLowWatermarkBytes = 256 * 1024;
+    private long writeTimeoutMillis = 30_000;
+    private int outboundWriterThreads = Runtime.getRuntime().availableProcessors();
+    private long bufferPoolBytes = 32 * 1024 * 1024;
+    private boolean bufferLeakDetection = false;
+    private long contentCacheBytes = 64 * 1024 * 1024;
+    private long contentCacheMaxFileBytes = 1024 * 1024;
+    private String hotSetFile = "hot-set.bin";
+    private int hotSetEntries = 1024;
+    private int warmupThreads = Runtime.getRuntime().availableProcessors();
+    private double warmupFraction = 0.9;
+    private long warmupTimeoutMillis = 10_000;
+    private int interactiveThreads = Runtime.getRuntime().availableProcessors();
+    private int bulkThreads = 32;
+    private int bulkQueueCapacity = 512;
+    private int listingPageEntries = 1000;
+
+    /**
+     * Creates a config with all default values.
+     */
+    public ServerConfig() {
+    }
+
+    /**
+     * Creates a config with the defaults overridden by any "server.*" system properties.
+     *
+     * @return the config.
+     */
+    public static ServerConfig fromSystemProperties() {
+        ServerConfig config = new ServerConfig();
+        config.maxLocationBytes = Integer.getInteger("server.maxLocationBytes", config.maxLocationBytes);
+        config.maxContentTypeBytes = Integer.getInteger("server.maxContentTypeBytes", config.maxContentTypeBytes);
+        config.maxContentBytes = Integer.getInteger("server.maxContentBytes", config.maxContentBytes);
+        config.transferBufferBytes = Integer.getInteger("server.transferBufferBytes", config.transferBufferBytes);
+        config.connectionDownloadBytesPerSecond = Long.getLong("server.connectionDownloadBytesPerSecond", config.connectionDownloadBytesPerSecond);
+        config.userDownloadBytesPerSecond = Long.getLong("server.userDownloadBytesPerSecond", config.userDownloadBytesPerSecond);
+        config.serverDownloadBytesPerSecond = Long.getLong("server.serverDownloadBytesPerSecond", config.serverDownloadBytesPerSecond);
+        config.downloadBurstBytes = Long.getLong("server.downloadBurstBytes", config.downloadBurstBytes);
+        config.logBufferCapacity = Integer.getInteger("server.logBufferCapacity", config.logBufferCapacity);
+        config.logFile = System.getProperty("server.logFile", config.logFile);
+        config.acceptorThreads = Integer.getInteger("server.acceptorThreads", config.acceptorThreads);
+        config.acceptBacklog = Integer.getInteger("server.acceptBacklog", config.acceptBacklog);
+        config.searchIndexFile = System.getProperty("server.searchIndexFile", config.searchIndexFile);
+        config.sessionCapacity = Integer.getInteger("server.sessionCapacity", config.sessionCapacity);
+        config.sessionTtlMillis = Long.getLong("server.sessionTtlMillis", config.sessionTtlMillis);
+        config.clusterNodes = System.getProperty("server.clusterNodes", config.clusterNodes);
+        config.clusterSelf = System.getProperty("server.clusterSelf", config.clusterSelf);
+        config.clusterVirtualNodes = Integer.getInteger("server.clusterVirtualNodes", config.clusterVirtualNodes);
+        config.replicationPort = Integer.getInteger("server.replicationPort", config.replicationPort);
+        config.replicaOf = System.getProperty("server.replicaOf", config.replicaOf);
+        config.replicationLogFile = System.getProperty("server.replicationLogFile", config.replicationLogFile);
+        config.replicationLogCapacity = Integer.getInteger("server.replicationLogCapacity", config.replicationLogCapacity);
+        config.traceFile = System.getProperty("server.traceFile", config.traceFile);
+        config.traceThresholdMillis = Long.getLong("server.traceThresholdMillis", config.traceThresholdMillis);
+        config.traceCommandEnabled = Boolean.parseBoolean(System.getProperty("server.traceCommandEnabled", "" + config.traceCommandEnabled));
+        config.outboundHighWatermarkBytes = Long.getLong("server.outboundHighWatermarkBytes", config.outboundHighWatermarkBytes);
+        config.outboundLowWatermarkBytes = Long.getLong("server.outboundLowWatermarkBytes", config.outboundLowWatermarkBytes);
+        config.writeTimeoutMillis = Long.getLong("server.writeTimeoutMillis", config.writeTimeoutMillis);
+        config.outboundWriterThreads = Integer.getInteger("server.outboundWriterThreads", config.outboundWriterThreads);
+        config.bufferPoolBytes = Long.getLong("server.bufferPoolBytes", config.bufferPoolBytes);
+        config.bufferLeakDetection = Boolean.parseBoolean(System.getProperty("server.bufferLeakDetection", "" + config.bufferLeakDetection));
+        config.contentCacheBytes = Long.getLong("server.contentCacheBytes", config.contentCacheBytes);
+        config.contentCacheMaxFileBytes = Long.getLong("server.contentCacheMaxFileBytes", config.contentCacheMaxFileBytes);
+        config.hotSetFile = System.getProperty("server.hotSetFile", config.hotSetFile);
+        config.hotSetEntries = Integer.getInteger("server.hotSetEntries", config.hotSetEntries);
+        config.warmupThreads = Integer.getInteger("server.warmupThreads", config.warmupThreads);
+        config.warmupFraction = Double.parseDouble(System.getProperty("server.warmupFraction", "" + config.warmupFraction));
+        config.warmupTimeoutMillis = Long.getLong("server.warmupTimeoutMillis", config.warmupTimeoutMillis);
+        config.interactiveThreads = Integer.getInteger("server.interactiveThreads", config.interactiveThreads);
+        config.bulkThreads = Integer.getInteger("server.bulkThreads", config.bulkThreads);
+        config.bulkQueueCapacity = Integer.getInteger("server.bulkQueueCapacity", config.bulkQueueCapacity);
+        config.listingPageEntries = Integer.getInteger("server.listingPageEntries", config.listingPageEntries);
+        return config;
+    }
+
+    /**
+     * @return the largest location frame a client may send, in bytes.
+     */
+    public int getMaxLocationBytes() {
+        return maxLocationBytes;
+    }
+
+    public ServerConfig setMaxLocationBytes(int maxLocationBytes) {
+        this.maxLocationBytes = maxLocationBytes;
+        return this;
+    }
+
+    /**
+     * @return the largest content-type frame a client may send, in bytes.
+     */
+    public int getMaxContentTypeBytes() {
+        return maxContentTypeBytes;
+    }
+
+    public ServerConfig setMaxContentTypeBytes(int maxContentTypeBytes) {
+        this.maxContentTypeBytes = maxContentTypeBytes;
+        return this;
+    }
+
+    /**
+     * @return the largest content frame the server will hold in memory, in bytes.
+     */
+    public int getMaxContentBytes() {
+        return maxContentBytes;
+    }
+
+    public ServerConfig setMaxContentBytes(int maxContentBytes) {
+        this.maxContentBytes = maxContentBytes;
+        return this;
+    }
+
+    /**
+     * @return the size of the per-connection buffer used to stream large payloads.
+     */
+    public int getTransferBufferBytes() {
+        return transferBufferBytes;
+    }
+
+    public ServerConfig setTransferBufferBytes(int transferBufferBytes) {
+        this.transferBufferBytes = transferBufferBytes;
+        return this;
+    }
+
+    /**
+     * @return the download limit of a single connection in bytes per second, 0 for unlimited.
+     */
+    public long getConnectionDownloadBytesPerSecond() {
+        return connectionDownloadBytesPerSecond;
+    }
+
+    public ServerConfig setConnectionDownloadBytesPerSecond(long connectionDownloadBytesPerSecond) {
+        this.connectionDownloadBytesPerSecond = connectionDownloadBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @return the download limit of each user folder in bytes per second, 0 for unlimited.
+     */
+    public long getUserDownloadBytesPerSecond() {
+        return userDownloadBytesPerSecond;
+    }
+
+    public ServerConfig setUserDownloadBytesPerSecond(long userDownloadBytesPerSecond) {
+        this.userDownloadBytesPerSecond = userDownloadBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @return the download limit of the whole server in bytes per second, 0 for unlimited.
+     */
+    public long getServerDownloadBytesPerSecond() {
+        return serverDownloadBytesPerSecond;
+    }
+
+    public ServerConfig setServerDownloadBytesPerSecond(long serverDownloadBytesPerSecond) {
+        this.serverDownloadBytesPerSecond = serverDownloadBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * @return how many bytes a download may send at once after being idle.
+     */
+    public long getDownloadBurstBytes() {
+        return downloadBurstBytes;
+    }
+
+    public ServerConfig setDownloadBurstBytes(long downloadBurstBytes) {
+        this.downloadBurstBytes = downloadBurstBytes;
+        return this;
+    }
+
+    /**
+     * @return the number of log events that can wait to be written before new ones are dropped.
+     */
+    public int getLogBufferCapacity() {
+        return logBufferCapacity;
+    }
+
+    public ServerConfig setLogBufferCapacity(int logBufferCapacity) {
+        this.logBufferCapacity = logBufferCapacity;
+        return this;
+    }
+
+    /**
+     * @return the file the server log is appended to, null for the console.
+     */
+    public String getLogFile() {
+        return logFile;
+    }
+
+    public ServerConfig setLogFile(String logFile) {
+        this.logFile = logFile;
+        return this;
+    }
+
+    /**
+     * @return the number of threads accepting connections, each with its own listener if SO_REUSEPORT is available.
+     */
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    public ServerConfig setAcceptorThreads(int acceptorThreads) {
+        this.acceptorThreads = acceptorThreads;
+        return this;
+    }
+
+    /**
+     * @return the number of pending connections each listener may queue before new ones are refused.
+     */
+    public int getAcceptBacklog() {
+        return acceptBacklog;
+    }
+
+    public ServerConfig setAcceptBacklog(int acceptBacklog) {
+        this.acceptBacklog = acceptBacklog;
+        return this;
+    }
+
+    /**
+     * @return the file the search index is saved to between restarts.
+     */
+    public String getSearchIndexFile() {
+        return searchIndexFile;
+    }
+
+    public ServerConfig setSearchIndexFile(String searchIndexFile) {
+        this.searchIndexFile = searchIndexFile;
+        return this;
+    }
+
+    /**
+     * @return the most sessions kept for clients to resume, the least recently used are dropped first.
+     */
+    public int getSessionCapacity() {
+        return sessionCapacity;
+    }
+
+    public ServerConfig setSessionCapacity(int sessionCapacity) {
+        this.sessionCapacity = sessionCapacity;
+        return this;
+    }
+
+    /**
+     * @return how long a session can be resumed after it was last used, in milliseconds.
+     */
+    public long getSessionTtlMillis() {
+        return sessionTtlMillis;
+    }
+
+    public ServerConfig setSessionTtlMillis(long sessionTtlMillis) {
+        this.sessionTtlMillis = sessionTtlMillis;
+        return this;
+    }
+
+    /**
+     * @return the comma separated "host:port" of every node in the cluster, empty to serve every user folder.
+     */
+    public String getClusterNodes() {
+        return clusterNodes;
+    }
+
+    public ServerConfig setClusterNodes(String clusterNodes) {
+        this.clusterNodes = clusterNodes;
+        return this;
+    }
+
+    /**
+     * @return the "host:port" of this node in the cluster nodes, null for "localhost" and the bound port.
+     */
+    public String getClusterSelf() {
+        return clusterSelf;
+    }
+
+    public ServerConfig setClusterSelf(String clusterSelf) {
+        this.clusterSelf = clusterSelf;
+        return this;
+    }
+
+    /**
+     * @return how many times each node is placed on the hash ring, more spreads user folders more evenly.
+     */
+    public int getClusterVirtualNodes() {
+        return clusterVirtualNodes;
+    }
+
+    public ServerConfig setClusterVirtualNodes(int clusterVirtualNodes) {
+        this.clusterVirtualNodes = clusterVirtualNodes;
+        return this;
+    }
+
+    /**
+     * @return the port replicas connect to for the changes to the users folder, 0 to not be a primary.
+     */
+    public int getReplicationPort() {
+        return replicationPort;
+    }
+
+    public ServerConfig setReplicationPort(int replicationPort) {
+        this.replicationPort = replicationPort;
+        return this;
+    }
+
+    /**
+     * @return the "host:port" of the primary's replication port to copy the users folder from, null to not be a replica.
+     */
+    public String getReplicaOf() {
+        return replicaOf;
+    }
+
+    public ServerConfig setReplicaOf(String replicaOf) {
+        this.replicaOf = replicaOf;
+        return this;
+    }
+
+    /**
+     * @return the file the change log of a primary is appended to.
+     */
+    public String getReplicationLogFile() {
+        return replicationLogFile;
+    }
+
+    public ServerConfig setReplicationLogFile(String replicationLogFile) {
+        this.replicationLogFile = replicationLogFile;
+        return this;
+    }
+
+    /**
+     * @return the number of changes a primary keeps in memory, replicas further behind get a full snapshot.
+     */
+    public int getReplicationLogCapacity() {
+        return replicationLogCapacity;
+    }
+
+    public ServerConfig setReplicationLogCapacity(int replicationLogCapacity) {
+        this.replicationLogCapacity = replicationLogCapacity;
+        return this;
+    }
+
+    /**
+     * @return the file "trace off" writes the recorded protocol events to.
+     */
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public ServerConfig setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+        return this;
+    }
+
+    /**
+     * @return the shortest protocol event in milliseconds that is recorded, 0 to record all of them.
+     */
+    public long getTraceThresholdMillis() {
+        return traceThresholdMillis;
+    }
+
+    public ServerConfig setTraceThresholdMillis(long traceThresholdMillis) {
+        this.traceThresholdMillis = traceThresholdMillis;
+        return this;
+    }
+
+    /**
+     * @return true if clients may start and stop recording protocol events with "trace on|off".
+     */
+    public boolean isTraceCommandEnabled() {
+        return traceCommandEnabled;
+    }
+
+    public ServerConfig setTraceCommandEnabled(boolean traceCommandEnabled) {
+        this.traceCommandEnabled = traceCommandEnabled;
+        return this;
+    }
+
+    /**
+     * @return the bytes queued for a client at which the server waits for the client to read.
+     */
+    public long getOutboundHighWatermarkBytes() {
+        return outboundHighWatermarkBytes;
+    }
+
+    public ServerConfig setOutboundHighWatermarkBytes(long outboundHighWatermarkBytes) {
+        this.outboundHighWatermarkBytes = outboundHighWatermarkBytes;
+        return this;
+    }
+
+    /**
+     * @return the bytes queued for a client below which the server carries on after reaching the high watermark.
+     */
+    public long getOutboundLowWatermarkBytes() {
+        return outboundLowWatermarkBytes;
+    }
+
+    public ServerConfig setOutboundLowWatermarkBytes(long outboundLowWatermarkBytes) {
+        this.outboundLowWatermarkBytes = outboundLowWatermarkBytes;
+        return this;
+    }
+
+    /**
+     * @return how long a client may go without reading before it is disconnected.
+     */
+    public long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    public ServerConfig setWriteTimeoutMillis(long writeTimeoutMillis) {
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of threads writing queued responses to the clients' sockets.
+     */
+    public int getOutboundWriterThreads() {
+        return outboundWriterThreads;
+    }
+
+    public ServerConfig setOutboundWriterThreads(int outboundWriterThreads) {
+        this.outboundWriterThreads = outboundWriterThreads;
+        return this;
+    }
+
+    /**
+     * @return the most bytes of released I/O buffers kept for reuse across threads.
+     */
+    public long getBufferPoolBytes() {
+        return bufferPoolBytes;
+    }
+
+    public ServerConfig setBufferPoolBytes(long bufferPoolBytes) {
+        this.bufferPoolBytes = bufferPoolBytes;
+        return this;
+    }
+
+    /**
+     * @return true if I/O buffers that are never released are logged when the server closes.
+     */
+    public boolean isBufferLeakDetection() {
+        return bufferLeakDetection;
+    }
+
+    public ServerConfig setBufferLeakDetection(boolean bufferLeakDetection) {
+        this.bufferLeakDetection = bufferLeakDetection;
+        return this;
+    }
+
+    /**
+     * @return the most bytes of file contents and folder listings kept in memory.
+     */
+    public long getContentCacheBytes() {
+        return contentCacheBytes;
+    }
+
+    public ServerConfig setContentCacheBytes(long contentCacheBytes) {
+        this.contentCacheBytes = contentCacheBytes;
+        return this;
+    }
+
+    /**
+     * @return the largest file kept in memory, larger ones are read from disk for every download.
+     */
+    public long getContentCacheMaxFileBytes() {
+        return contentCacheMaxFileBytes;
+    }
+
+    public ServerConfig setContentCacheMaxFileBytes(long contentCacheMaxFileBytes) {
+        this.contentCacheMaxFileBytes = contentCacheMaxFileBytes;
+        return this;
+    }
+
+    /**
+     * @return where the most used files and listings are saved on close and loaded from on start.
+     */
+    public String getHotSetFile() {
+        return hotSetFile;
+    }
+
+    public ServerConfig setHotSetFile(String hotSetFile) {
+        this.hotSetFile = hotSetFile;
+        return this;
+    }
+
+    /**
+     * @return the most files and listings saved in the hot set.
+     */
+    public int getHotSetEntries() {
+        return hotSetEntries;
+    }
+
+    public ServerConfig setHotSetEntries(int hotSetEntries) {
+        this.hotSetEntries = hotSetEntries;
+        return this;
+    }
+
+    /**
+     * @return the number of threads loading the hot set on start.
+     */
+    public int getWarmupThreads() {
+        return warmupThreads;
+    }
+
+    public ServerConfig setWarmupThreads(int warmupThreads) {
+        this.warmupThreads = warmupThreads;
+        return this;
+    }
+
+    /**
+     * @return the fraction of the hot set loaded before connections are accepted, from 0 to 1.
+     */
+    public double getWarmupFraction() {
+        return warmupFraction;
+    }
+
+    public ServerConfig setWarmupFraction(double warmupFraction) {
+        this.warmupFraction = warmupFraction;
+        return this;
+    }
+
+    /**
+     * @return the longest connections wait for the warm-up, they are accepted afterwards even if it is not done.
+     */
+    public long getWarmupTimeoutMillis() {
+        return warmupTimeoutMillis;
+    }
+
+    public ServerConfig setWarmupTimeoutMillis(long warmupTimeoutMillis) {
+        this.warmupTimeoutMillis = warmupTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * @return the number of threads running interactive commands such as "ls" and "cd".
+     */
+    public int getInteractiveThreads() {
+        return interactiveThreads;
+    }
+
+    public ServerConfig setInteractiveThreads(int interactiveThreads) {
+        this.interactiveThreads = interactiveThreads;
+        return this;
+    }
+
+    /**
+     * @return the number of downloads, syncs and folder walks that run at the same time.
+     */
+    public int getBulkThreads() {
+        return bulkThreads;
+    }
+
+    public ServerConfig setBulkThreads(int bulkThreads) {
+        this.bulkThreads = bulkThreads;
+        return this;
+    }
+
+    /**
+     * @return the number of bulk requests that may wait for a thread, more are turned away as busy.
+     */
+    public int getBulkQueueCapacity() {
+        return bulkQueueCapacity;
+    }
+
+    public ServerConfig setBulkQueueCapacity(int bulkQueueCapacity) {
+        this.bulkQueueCapacity = bulkQueueCapacity;
+        return this;
+    }
+
+    /**
+     * @return the most entries in one page of a "list", pages also stop at about a transfer buffer.
+     */
+    public int getListingPageEntries() {
+        return listingPageEntries;
+    }
+
+    public ServerConfig setListingPageEntries(int listingPageEntries) {
+        this.listingPageEntries = listingPageEntries;
+        return this;
+    }
+}
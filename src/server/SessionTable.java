@@ -0,0 +1,208 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the state of recent connections so a client that reconnects can pick up where it left off.
+ * <p>
+ * Every connection gets a {@link Session} with a random token. Saving a session after each
+ * request only writes its own fields, so requests never wait on each other here. The table
+ * is swept lazily when sessions are created: sessions that were not used for longer than
+ * the time to live expire, and once it is over capacity the least recently used ones are
+ * dropped. A dropped session that is saved again is put back.
+ * <p>
+ * A token is held by one connection at a time. Resuming it hands the resuming connection
+ * a new session and the connection that held it before stops saving to the table.
+ */
+public class SessionTable {
+
+    private static final int TOKEN_BYTES = 18;
+
+    private final int capacity;
+    private final long ttlNanos;
+    private final SecureRandom random = new SecureRandom();
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private volatile long lastSweep = System.nanoTime();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * The state of a connection that outlives it.
+     */
+    public static class Session {
+        public final String token;
+        private final SessionTable table;
+        private volatile String location;
+        private volatile boolean echo;
+        private volatile long lastUsed;
+        private volatile boolean dropped = false;
+        private volatile boolean superseded = false;
+
+        Session(String token, String location, boolean echo, SessionTable table) {
+            this.token = token;
+            this.table = table;
+            this.location = location;
+            this.echo = echo;
+            this.lastUsed = System.nanoTime();
+        }
+
+        /**
+         * Stores the latest state of the connection and keeps the session from expiring.
+         * <p>
+         * Does nothing to the table once the token was resumed by another connection.
+         *
+         * @param location the current location.
+         * @param echo     the current echo mode.
+         */
+        public void save(String location, boolean echo) {
+            this.location = location;
+            this.echo = echo;
+            this.lastUsed = System.nanoTime();
+            if (this.dropped && !this.superseded) {
+                this.table.reinsert(this);
+            }
+        }
+
+        public String getLocation() {
+            return this.location;
+        }
+
+        public boolean isEcho() {
+            return this.echo;
+        }
+    }
+
+    /**
+     * @param capacity  the most sessions to remember.
+     * @param ttlMillis how long an unused session is kept.
+     * @param metrics   where to report the session counts.
+     */
+    public SessionTable(int capacity, long ttlMillis, Metrics metrics) {
+        this.capacity = Math.max(1, capacity);
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        metrics.register("sessions", this.sessions::size);
+        metrics.register("sessions.created", this.created::sum);
+        metrics.register("sessions.resumed", this.resumed::sum);
+        metrics.register("sessions.rejected", this.rejected::sum);
+    }
+
+    /**
+     * Starts a new session.
+     *
+     * @param location the starting location.
+     * @param echo     the starting echo mode.
+     * @return the session, its token is unique.
+     */
+    public Session create(String location, boolean echo) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        this.random.nextBytes(bytes);
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), location, echo, this);
+        this.sessions.put(session.token, session);
+        this.created.increment();
+        this.sweepIfDue();
+        return session;
+    }
+
+    /**
+     * Finds the session of a token a client presented and hands it over to the caller.
+     * <p>
+     * The caller gets a new session with the same token and state. The session the
+     * token had before keeps its state for the connection holding it, but is no longer saved.
+     *
+     * @param token the token from the client.
+     * @return the session, or null if the token is unknown, expired or was resumed at the same time.
+     */
+    public Session resume(String token) {
+        Session current = this.sessions.get(token);
+        if (current != null && this.isExpired(current)) {
+            this.drop(current);
+            current = null;
+        }
+        Session session = null;
+        if (current != null) {
+            session = new Session(token, current.location, current.echo, this);
+            if (this.sessions.replace(token, current, session)) {
+                current.superseded = true;
+            } else {
+                session = null; // Resumed or dropped by someone else in between
+            }
+        }
+        if (session == null) {
+            this.rejected.increment();
+            return null;
+        }
+        this.resumed.increment();
+        return session;
+    }
+
+    /**
+     * Forgets a session, ex. one that was replaced by a resumed session.
+     * <p>
+     * A newer session that took over the token is left alone.
+     *
+     * @param session the session to forget.
+     */
+    public void remove(Session session) {
+        session.superseded = true;
+        this.sessions.remove(session.token, session);
+    }
+
+    private void reinsert(Session session) {
+        session.dropped = false;
+        if (this.sessions.putIfAbsent(session.token, session) == null) {
+            this.sweepIfDue();
+        }
+    }
+
+    private void drop(Session session) {
+        if (this.sessions.remove(session.token, session)) {
+            session.dropped = true;
+        }
+    }
+
+    /**
+     * Sweeps the table once it is over capacity, or a quarter of the time to live after the last sweep.
+     * Only one thread sweeps at a time, the others carry on.
+     */
+    private void sweepIfDue() {
+        boolean due = this.sessions.size() > this.capacity || System.nanoTime() - this.lastSweep > this.ttlNanos / 4;
+        if (!due || !this.sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.lastSweep = System.nanoTime();
+            List<Session> live = new ArrayList<>(this.sessions.size());
+            for (Session session : this.sessions.values()) {
+                if (this.isExpired(session)) {
+                    this.drop(session);
+                } else {
+                    live.add(session);
+                }
+            }
+
+            // Down to a little under capacity, so the next sweep isn't one session away
+            int target = this.capacity - this.capacity / 8;
+            if (live.size() > target) {
+                live.sort(Comparator.comparingLong(session -> session.lastUsed));
+                for (int i = 0; i < live.size() - target; i++) {
+                    this.drop(live.get(i));
+                }
+            }
+        } finally {
+            this.sweeping.set(false);
+        }
+    }
+
+    private boolean isExpired(Session session) {
+        return System.nanoTime() - session.lastUsed > this.ttlNanos;
+    }
+}
@@ -0,0 +1,85 @@
+package server;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Makes concurrent loads of the same key share one load.
+ * <p>
+ * The first caller for a key runs the load, anyone asking for the same key while it runs
+ * waits for it and gets the same result, or the same exception. Once the load is done the
+ * key is forgotten, so the next caller loads again.
+ *
+ * @param <K> the key of a load.
+ * @param <V> the result of a load.
+ */
+public class SingleFlight<K, V> {
+
+    /**
+     * A load that may fail with an {@link IOException}.
+     */
+    public interface Load<V> {
+        V load() throws IOException;
+    }
+
+    private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+    private final LongAdder shared = new LongAdder();
+
+    /**
+     * Runs the load for a key, or waits for the one already running.
+     *
+     * @param key  identifies the result, ex. a path and its version.
+     * @param load what to run if no load for the key is running.
+     * @return the result of the load.
+     * @throws IOException if the load failed, or the wait was interrupted.
+     */
+    public V run(K key, Load<V> load) throws IOException {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = this.flights.putIfAbsent(key, flight);
+        if (running != null) {
+            this.shared.increment();
+            return await(running);
+        }
+
+        try {
+            V value = load.load();
+            flight.complete(value);
+            return value;
+        } catch (IOException | RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.flights.remove(key, flight);
+        }
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) throws IOException {
+        try {
+            return flight.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("[SingleFlight] Interrupted while waiting for a load.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * @return the number of callers that got the result of a load run by someone else.
+     */
+    public long getShared() {
+        return this.shared.sum();
+    }
+}
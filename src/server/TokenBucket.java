@@ -0,0 +1,76 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free token bucket that limits how many bytes per second may be sent.
+ * <p>
+ * Instead of refilling tokens on a timer, the bucket tracks the time at which it
+ * will be empty of debt again. Reserving bytes pushes that time forward and tells
+ * the caller how long to wait before sending, so a writer only parks when it is
+ * actually ahead of the rate, once per chunk.
+ */
+public class TokenBucket {
+
+    // Picoseconds so rates of gigabytes per second don't round to a whole nanosecond per byte
+    private final long picosPerByte;
+    private final long burstNanos;
+    private final AtomicLong debtFreeAt = new AtomicLong(System.nanoTime());
+    private final RateMeter rateMeter = new RateMeter();
+
+    /**
+     * Creates a bucket.
+     *
+     * @param bytesPerSecond the sustained rate, 0 or less for unlimited.
+     * @param burstBytes     how many bytes may be sent at once after being idle.
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes) {
+        if (bytesPerSecond <= 0) {
+            this.picosPerByte = 0;
+            this.burstNanos = 0;
+        } else {
+            this.picosPerByte = Math.max(1, 1_000_000_000_000L / bytesPerSecond);
+            this.burstNanos = this.toNanos(burstBytes);
+        }
+    }
+
+    /**
+     * @return how long sending the given number of bytes takes at this bucket's rate.
+     */
+    private long toNanos(long bytes) {
+        // Split up so a slow rate doesn't overflow before dividing
+        return bytes / 1000 * this.picosPerByte + bytes % 1000 * this.picosPerByte / 1000;
+    }
+
+    /**
+     * Takes tokens for the given number of bytes, going into debt if needed.
+     *
+     * @param bytes the number of bytes about to be sent.
+     * @return how many nanoseconds to wait before sending them, 0 to send right away.
+     */
+    public long reserve(long bytes) {
+        this.rateMeter.record(bytes);
+        if (this.picosPerByte == 0) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long cost = this.toNanos(bytes);
+        while (true) {
+            long current = this.debtFreeAt.get();
+            // An idle bucket starts from now, the burst is the debt it may run up without waiting
+            long start = Math.max(current, now);
+            long next = start + cost;
+            if (this.debtFreeAt.compareAndSet(current, next)) {
+                return Math.max(0, next - now - this.burstNanos);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes per second recently sent through this bucket.
+     */
+    public long getBytesPerSecond() {
+        return this.rateMeter.getBytesPerSecond();
+    }
+}
@@ -0,0 +1,197 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Pushes changes under the users folder to the clients watching them.
+ * <p>
+ * A client watching a folder is told about every file and folder created, modified or
+ * deleted anywhere under it. Each change is encoded into a complete message once, and
+ * that same frame is queued on the {@link OutboundQueue} of every subscriber, so a
+ * folder watched by many clients costs one encoding per change instead of one per client.
+ * <p>
+ * The message has the "update/watch" content type, the location of the folder the change
+ * is in, and content like "Created users/alice/notes.txt". Lost changes are sent to every
+ * subscriber as "Overflow users", after which they should list their folders again.
+ */
+public class WatchHub implements FileChangeListener {
+
+    private static final int OK = 200;
+    private static final byte[] CONTENT_TYPE_BYTES = "update/watch".getBytes();
+
+    private final Path root;
+    private final Path canonicalRoot;
+    private final String rootName;
+    private final Map<Path, Set<OutboundQueue>> subscribers = new ConcurrentHashMap<>();
+    private final LongAdder events = new LongAdder();
+    private final LongAdder framesQueued = new LongAdder();
+
+    /**
+     * @param usersFolder the folder watched by the {@link FileWatcher} this is added to.
+     * @param metrics     where the number of subscriptions and pushed frames are reported.
+     * @throws IOException if the canonical path of the users folder could not be found.
+     */
+    public WatchHub(File usersFolder, Metrics metrics) throws IOException {
+        this.root = usersFolder.toPath().toAbsolutePath().normalize();
+        this.canonicalRoot = usersFolder.getCanonicalFile().toPath();
+        this.rootName = this.root.getFileName().toString();
+        metrics.register("watch.subscriptions", () -> {
+            long count = 0;
+            for (Set<OutboundQueue> queues : this.subscribers.values()) {
+                count += queues.size();
+            }
+            return count;
+        });
+        metrics.register("watch.events", this.events::sum);
+        metrics.register("watch.frames.queued", this.framesQueued::sum);
+    }
+
+    /**
+     * Starts pushing changes under a folder to a client.
+     *
+     * @param folder the canonical file of the folder, ex. from {@code getCanonicalFile()}.
+     * @param queue  the outbound queue of the client.
+     * @return the location being watched, ex. "users/alice", or null if the folder is not in the users folder.
+     */
+    public String subscribe(File folder, OutboundQueue queue) {
+        Path key = this.keyOf(folder);
+        if (key == null) {
+            return null;
+        }
+        this.subscribers.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(queue);
+        return this.toLocation(key);
+    }
+
+    /**
+     * Stops pushing changes under a folder to a client.
+     *
+     * @param folder the canonical file of the folder.
+     * @param queue  the outbound queue of the client.
+     * @return true if the client was watching the folder.
+     */
+    public boolean unsubscribe(File folder, OutboundQueue queue) {
+        Path key = this.keyOf(folder);
+        if (key == null) {
+            return false;
+        }
+        boolean removed = false;
+        Set<OutboundQueue> queues = this.subscribers.get(key);
+        if (queues != null) {
+            removed = queues.remove(queue);
+            if (queues.isEmpty()) {
+                this.subscribers.remove(key, queues);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Stops every subscription of a client, ex. when its connection is closed.
+     *
+     * @param queue the outbound queue of the client.
+     */
+    public void unsubscribeAll(OutboundQueue queue) {
+        for (Map.Entry<Path, Set<OutboundQueue>> entry : this.subscribers.entrySet()) {
+            if (entry.getValue().remove(queue) && entry.getValue().isEmpty()) {
+                this.subscribers.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public void onFileChange(Path path, WatchEvent.Kind<?> kind) {
+        if (this.subscribers.isEmpty()) {
+            return;
+        }
+        Path key = this.root.relativize(path.toAbsolutePath().normalize());
+
+        // Everyone watching the path or a folder above it, each of them only once
+        Set<OutboundQueue> targets = new HashSet<>();
+        if (kind == OVERFLOW) {
+            for (Set<OutboundQueue> queues : this.subscribers.values()) {
+                targets.addAll(queues);
+            }
+        } else {
+            for (Path folder = key; folder != null; folder = folder.getParent()) {
+                this.addSubscribers(folder, targets);
+            }
+            if (!key.toString().isEmpty()) {
+                this.addSubscribers(Paths.get(""), targets);
+            }
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+
+        this.events.increment();
+        byte[] frame = this.encode(key, kind);
+        for (OutboundQueue queue : targets) {
+            queue.push(frame);
+        }
+        this.framesQueued.add(targets.size());
+    }
+
+    private void addSubscribers(Path key, Set<OutboundQueue> targets) {
+        Set<OutboundQueue> queues = this.subscribers.get(key);
+        if (queues != null) {
+            targets.addAll(queues);
+        }
+    }
+
+    /**
+     * Encodes the whole message for a change, header and all.
+     */
+    private byte[] encode(Path key, WatchEvent.Kind<?> kind) {
+        String kindName;
+        if (kind == ENTRY_CREATE) {
+            kindName = "Created";
+        } else if (kind == ENTRY_MODIFY) {
+            kindName = "Modified";
+        } else if (kind == ENTRY_DELETE) {
+            kindName = "Deleted";
+        } else {
+            kindName = "Overflow";
+        }
+        Path changed = kind == OVERFLOW ? Paths.get("") : key;
+        Path folder = changed.getParent() == null ? Paths.get("") : changed.getParent();
+        byte[] locationBytes = this.toLocation(folder).getBytes();
+        byte[] content = (kindName + " " + this.toLocation(changed)).getBytes();
+        return ByteBuffer.allocate(16 + locationBytes.length + CONTENT_TYPE_BYTES.length + content.length)
+                .putInt(OK)
+                .putInt(locationBytes.length)
+                .putInt(CONTENT_TYPE_BYTES.length)
+                .putInt(content.length)
+                .put(locationBytes)
+                .put(CONTENT_TYPE_BYTES)
+                .put(content)
+                .array();
+    }
+
+    /**
+     * @return the folder relative to the users folder, or null if it is outside of it.
+     */
+    private Path keyOf(File folder) {
+        Path path = folder.toPath();
+        if (!path.startsWith(this.canonicalRoot)) {
+            return null;
+        }
+        return this.canonicalRoot.relativize(path);
+    }
+
+    private String toLocation(Path key) {
+        String relative = key.toString().replace(File.separatorChar, '/');
+        return relative.isEmpty() ? this.rootName : this.rootName + "/" + relative;
+    }
+}
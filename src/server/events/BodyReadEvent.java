@@ -0,0 +1,16 @@
+package server.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.BodyRead")
+@Label("Body Read")
+@Description("Reading the content of a request into memory")
+public class BodyReadEvent extends ProtocolEvent {
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
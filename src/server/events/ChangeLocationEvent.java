@@ -0,0 +1,17 @@
+package server.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.ChangeLocation")
+@Label("Change Location")
+@Description("Checking and moving to a new location")
+public class ChangeLocationEvent extends ProtocolEvent {
+
+    @Label("Path")
+    public String path;
+
+    @Label("Success")
+    public boolean success;
+}
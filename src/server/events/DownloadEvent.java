@@ -0,0 +1,22 @@
+package server.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.Download")
+@Label("Download")
+@Description("Preparing a file or folder download, folders are streamed while this runs")
+public class DownloadEvent extends ProtocolEvent {
+
+    @Label("Path")
+    public String path;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Status Code")
+    public int statusCode;
+}
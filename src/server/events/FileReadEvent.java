@@ -0,0 +1,19 @@
+package server.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.FileRead")
+@Label("File Read")
+@Description("Reading a whole file into memory")
+public class FileReadEvent extends ProtocolEvent {
+
+    @Label("Path")
+    public String path;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
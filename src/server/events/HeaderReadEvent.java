@@ -0,0 +1,19 @@
+package server.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.HeaderRead")
+@Label("Header Read")
+@Description("Reading the header of a request, starting after its first bytes arrived so idle time isn't counted")
+public class HeaderReadEvent extends ProtocolEvent {
+
+    @Label("Content Type")
+    public String contentType;
+
+    @Label("Content Length")
+    @DataAmount
+    public long contentLength;
+}
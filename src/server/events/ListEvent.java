@@ -0,0 +1,14 @@
+package server.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.List")
+@Label("List Folder")
+@Description("Listing the files and folders of a location")
+public class ListEvent extends ProtocolEvent {
+
+    @Label("Entries")
+    public int entries;
+}
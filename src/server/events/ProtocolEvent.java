@@ -0,0 +1,29 @@
+package server.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * The fields every Java Flight Recorder event of the server protocol has.
+ * <p>
+ * The events are off unless a recording turns them on, ex. with the "trace" command, and
+ * then cost little more than a check of a flag. Call {@link #shouldCommit()} before doing
+ * any work to fill in the fields.
+ */
+@Category({"File Server", "Protocol"})
+@Enabled(false)
+@StackTrace(false)
+public abstract class ProtocolEvent extends Event {
+
+    @Label("Port")
+    public int port;
+
+    @Label("Command")
+    public String command;
+
+    @Label("Location")
+    public String location;
+}
@@ -0,0 +1,71 @@
+package server.events;
+
+import jdk.jfr.Event;
+import jdk.jfr.Recording;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Turns the protocol events on and off while the server runs.
+ * <p>
+ * Starting a recording enables every {@link ProtocolEvent} and stopping it writes them
+ * to a file that can be opened in JDK Mission Control or read with "jfr print".
+ * Other recordings, ex. started with "jcmd JFR.start", can enable the events by name too.
+ */
+public class ProtocolRecording {
+
+    private static final List<Class<? extends Event>> EVENTS = Arrays.asList(
+            HeaderReadEvent.class, BodyReadEvent.class, RequestEvent.class, DownloadEvent.class,
+            FileReadEvent.class, ListEvent.class, ChangeLocationEvent.class, SendEvent.class
+    );
+
+    private Recording recording;
+
+    /**
+     * Starts recording the protocol events.
+     *
+     * @param threshold events shorter than this are left out, zero to keep all of them.
+     * @return false if a recording was already running.
+     */
+    public synchronized boolean start(Duration threshold) {
+        if (this.recording != null) {
+            return false;
+        }
+        this.recording = new Recording();
+        this.recording.setName("protocol");
+        for (Class<? extends Event> event : EVENTS) {
+            this.recording.enable(event).withThreshold(threshold);
+        }
+        this.recording.start();
+        return true;
+    }
+
+    /**
+     * Stops recording and writes the events to a file.
+     *
+     * @param file the file to write to.
+     * @return false if no recording was running.
+     * @throws IOException if the file could not be written.
+     */
+    public synchronized boolean stop(Path file) throws IOException {
+        if (this.recording == null) {
+            return false;
+        }
+        try {
+            this.recording.stop();
+            this.recording.dump(file);
+        } finally {
+            this.recording.close();
+            this.recording = null;
+        }
+        return true;
+    }
+
+    public synchronized boolean isRecording() {
+        return this.recording != null;
+    }
+}
@@ -0,0 +1,17 @@
+package server.events;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.Request")
+@Label("Request Handled")
+@Description("Handling a request up to the response being ready, including anything streamed before it")
+public class RequestEvent extends ProtocolEvent {
+
+    @Label("Content Type")
+    public String contentType;
+
+    @Label("Status Code")
+    public int statusCode;
+}
@@ -0,0 +1,22 @@
+package server.events;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("server.Send")
+@Label("Message Sent")
+@Description("Writing a message to the socket, including any wait on the bandwidth limits")
+public class SendEvent extends ProtocolEvent {
+
+    @Label("Status Code")
+    public int statusCode;
+
+    @Label("Content Type")
+    public String contentType;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}